@@ -0,0 +1,63 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.fail;
+
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import org.junit.Test;
+
+public class PhTypeUtilTest {
+
+    private static byte[] freshKey(Object v, PhType phType) {
+        return new PhTypeUtil.CompositeKeyBuilder().add(v, phType).add("k", PhType.VARCHAR).toBytes();
+    }
+
+    @Test
+    public void testReusedBuilderEncodesTheSameKeyBytes() {
+        Timestamp ts = new Timestamp(1500000000123L);
+        ts.setNanos(123456789);
+        Date date = new Date(1400000000000L);
+        PhTypeUtil.CompositeKeyBuilder builder = new PhTypeUtil.CompositeKeyBuilder();
+
+        for (PhType phType : new PhType[] { PhType.TIMESTAMP, PhType.UNSIGNED_TIMESTAMP }) {
+            // the first key leaves non zero nanos bytes behind in the buffer of the builder
+            byte[] first = builder.reset().add(ts, phType).add("k", PhType.VARCHAR).toBytes();
+            assertArrayEquals(freshKey(ts, phType), first);
+
+            byte[] second = builder.reset().add(date, phType).add("k", PhType.VARCHAR).toBytes();
+            assertArrayEquals(freshKey(date, phType), second);
+
+            builder.reset().add(ts, phType);
+            byte[] parsed = builder.reset().add("2014-05-13 16:53:20", phType).add("k", PhType.VARCHAR).toBytes();
+            assertArrayEquals(freshKey("2014-05-13 16:53:20", phType), parsed);
+
+            builder.reset().add(ts, phType);
+            byte[] unparsed = builder.reset().add("not a date", phType).add("k", PhType.VARCHAR).toBytes();
+            assertArrayEquals(freshKey("not a date", phType), unparsed);
+        }
+    }
+
+    @Test
+    public void testDateEncodersWriteAllTheBytesTheyReport() {
+        for (PhType phType : new PhType[] { PhType.DATE, PhType.UNSIGNED_DATE,
+                                            PhType.TIMESTAMP, PhType.UNSIGNED_TIMESTAMP }) {
+            byte[] expected = PhTypeUtil.toBytes("not a date", phType);
+            byte[] b = new byte[expected.length + 2];
+            Arrays.fill(b, (byte) 0x5A);
+            int len = PhTypeUtil.toBytes("not a date", phType, b, 1);
+            assertArrayEquals(expected, Arrays.copyOfRange(b, 1, 1 + len));
+        }
+    }
+
+    @Test
+    public void testFrontCodingRejectsUnsortedKeysAcrossARestart() {
+        List<byte[]> keys = Arrays.asList(new byte[] { 1 }, new byte[] { 2 }, new byte[] { 3 }, new byte[] { 0 });
+        try {
+            PhTypeUtil.FrontCodedKeys.encode(keys, 3);
+            fail("Keys out of order at a restart point should be rejected");
+        } catch (RuntimeException e) {
+            // expected
+        }
+    }
+}
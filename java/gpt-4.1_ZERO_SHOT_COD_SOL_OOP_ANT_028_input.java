@@ -2,141 +2,1230 @@ public class PhTypeUtil {
 
     public static byte[] toBytes(Object v, PhType phType) {
         if (v == null) return null;
-        byte[] b = null;
-        if (phType == PhType.DEFAULT) {
-            PhType phType1 = PhType.getType(v.getClass());
-            if (phType1 != null && phType1 != PhType.DEFAULT) {
-                toBytes(v, phType1);
+        return CODECS[phType.ordinal()].toBytes(v);
+    }
+
+    /**
+     * Encodes v into b at offset o and returns the number of bytes written. A null value writes
+     * nothing.
+     */
+    public static int toBytes(Object v, PhType phType, byte[] b, int o) {
+        if (v == null) return 0;
+        return CODECS[phType.ordinal()].encode(v, b, o);
+    }
+
+    /**
+     * Encodes v into buf at the absolute index o without moving the position, and returns the number
+     * of bytes written.
+     */
+    public static int toBytes(Object v, PhType phType, ByteBuffer buf, int o) {
+        int len = getEncodedLength(v, phType);
+        if (o < 0 || o + len > buf.limit()) {
+            throw new BufferOverflowException();
+        }
+        if (buf.hasArray()) {
+            return toBytes(v, phType, buf.array(), buf.arrayOffset() + o);
+        }
+        byte[] b;
+        if (len <= MAX_BIG_DECIMAL_BYTES) {
+            b = SCRATCH.get();
+            toBytes(v, phType, b, 0);
+        } else {
+            b = toBytes(v, phType);
+        }
+        for (int i = 0; i < len; i++) {
+            buf.put(o + i, b[i]);
+        }
+        return len;
+    }
+
+    public static Object toObject(ByteBuffer buf, int o, int len, PhType phType) {
+        if (buf.hasArray()) {
+            return toObject(buf.array(), buf.arrayOffset() + o, len, phType);
+        }
+        // The variable length types hand the array back to the caller, so they can't use the scratch
+        byte[] b;
+        if (len <= MAX_BIG_DECIMAL_BYTES && phType != PhType.VARBINARY && phType != PhType.VARCHAR
+            && phType != PhType.DEFAULT) {
+            b = SCRATCH.get();
+        } else {
+            b = new byte[len];
+        }
+        for (int i = 0; i < len; i++) {
+            b[i] = buf.get(o + i);
+        }
+        return toObject(b, 0, len, phType);
+    }
+
+    /**
+     * Returns the number of bytes toBytes will write for v, so that a row can be sized before it is
+     * encoded.
+     */
+    public static int getEncodedLength(Object v, PhType phType) {
+        if (v == null) return 0;
+        return CODECS[phType.ordinal()].getEncodedLength(v);
+    }
+
+    private static int utf8Length(String s) {
+        int n = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                n += 1;
+            } else if (c < 0x800) {
+                n += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                       && Character.isLowSurrogate(s.charAt(i + 1))) {
+                n += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                n += 1; // unpaired surrogates are replaced with '?'
+            } else {
+                n += 3;
             }
-        } else if (phType == PhType.INTEGER) {
-            b = new byte[Bytes.SIZEOF_INT];
-            encodeInt(((Number) v).intValue(), b, 0);
-        } else if (phType == PhType.UNSIGNED_INT) {
-            b = new byte[Bytes.SIZEOF_INT];
-            encodeUnsignedInt(((Number) v).intValue(), b, 0);
-        } else if (phType == PhType.BIGINT) {
-            b = new byte[Bytes.SIZEOF_LONG];
-            encodeLong(((Number) v).longValue(), b, 0);
-        } else if (phType == PhType.UNSIGNED_LONG) {
-            b = new byte[Bytes.SIZEOF_LONG];
-            encodeUnsignedLong(((Number) v).longValue(), b, 0);
-        } else if (phType == PhType.SMALLINT) {
-            b = new byte[Bytes.SIZEOF_SHORT];
-            encodeShort(((Number) v).shortValue(), b, 0);
-        } else if (phType == PhType.UNSIGNED_SMALLINT) {
-            b = new byte[Bytes.SIZEOF_SHORT];
-            encodeUnsignedShort(((Number) v).shortValue(), b, 0);
-        } else if (phType == PhType.TINYINT) {
-            b = new byte[Bytes.SIZEOF_BYTE];
-            encodeByte(((Number) v).byteValue(), b, 0);
-        } else if (phType == PhType.UNSIGNED_TINYINT) {
-            b = new byte[Bytes.SIZEOF_BYTE];
-            encodeUnsignedByte(((Number) v).byteValue(), b, 0);
-        } else if (phType == PhType.FLOAT) {
-            b = new byte[Bytes.SIZEOF_FLOAT];
-            encodeFloat(((Number) v).floatValue(), b, 0);
-        } else if (phType == PhType.UNSIGNED_FLOAT) {
-            b = new byte[Bytes.SIZEOF_FLOAT];
-            encodeUnsignedFloat(((Number) v).floatValue(), b, 0);
-        } else if (phType == PhType.DOUBLE) {
-            b = new byte[Bytes.SIZEOF_DOUBLE];
-            encodeDouble(((Number) v).doubleValue(), b, 0);
-        } else if (phType == PhType.UNSIGNED_DOUBLE) {
-            b = new byte[Bytes.SIZEOF_DOUBLE];
-            encodeUnsignedDouble(((Number) v).doubleValue(), b, 0);
-        } else if (phType == PhType.BOOLEAN) {
-            if ((Boolean) v) {
-                b = new byte[] { 1 };
+        }
+        return n;
+    }
+
+    /**
+     * Writes s as UTF-8 at b[o], the same bytes as Bytes.toBytes(s), without an intermediate array.
+     *
+     * @return the number of bytes written, utf8Length(s)
+     */
+    private static int encodeUtf8(String s, byte[] b, int o) {
+        int start = o;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                b[o++] = (byte) c;
+            } else if (c < 0x800) {
+                b[o++] = (byte) (0xC0 | (c >> 6));
+                b[o++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                       && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                b[o++] = (byte) (0xF0 | (cp >> 18));
+                b[o++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                b[o++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                b[o++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                b[o++] = (byte) '?';
             } else {
-                b = new byte[] { 0 };
-            }
-        } else if (phType == PhType.TIME || phType == PhType.DATE) {
-            b = new byte[Bytes.SIZEOF_LONG];
-            encodeDate(v, b, 0);
-        } else if (phType == PhType.TIMESTAMP) {
-            b = new byte[Bytes.SIZEOF_LONG + Bytes.SIZEOF_INT];
-            encodeTimestamp(v, b, 0);
-        } else if (phType == PhType.UNSIGNED_TIME || phType == PhType.UNSIGNED_DATE) {
-            b = new byte[Bytes.SIZEOF_LONG];
-            encodeUnsignedDate(v, b, 0);
-        } else if (phType == PhType.UNSIGNED_TIMESTAMP) {
-            b = new byte[Bytes.SIZEOF_LONG + Bytes.SIZEOF_INT];
-            encodeUnsignedTimestamp(v, b, 0);
-        } else if (phType == PhType.VARBINARY) {
-            b = (byte[]) v;
-        } else if (phType == PhType.VARCHAR) {
-            b = Bytes.toBytes(v.toString());
-        } else if (phType == PhType.DECIMAL) {
-            if (v instanceof BigDecimal) {
-                b = encodeDecimal(v);
-            } else if (v instanceof Number) {
-                b = encodeDecimal(new BigDecimal(v.toString()));
+                b[o++] = (byte) (0xE0 | (c >> 12));
+                b[o++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                b[o++] = (byte) (0x80 | (c & 0x3F));
             }
         }
-        return b;
+        return o - start;
     }
 
     public static Object toObject(byte[] b, PhType phType) {
         if (b == null) return null;
-        Object v = null;
+        return toObject(b, 0, b.length, phType);
+    }
+
+    public static Object toObject(byte[] b, int o, int len, PhType phType) {
+        if (b == null) return null;
+        return CODECS[phType.ordinal()].decode(b, o, len);
+    }
+
+    /**
+     * Encodes and decodes the values of one PhType. Codecs are stateless singletons looked up by
+     * the ordinal of their type.
+     */
+    public abstract static class PhCodec {
+        private final int width;
+
+        protected PhCodec(int width) {
+            this.width = width;
+        }
+
+        /**
+         * Returns the encoded length of every value, or -1 for variable length types.
+         */
+        public int getWidth() {
+            return width;
+        }
+
+        public int getEncodedLength(Object v) {
+            return width;
+        }
+
+        public byte[] toBytes(Object v) {
+            byte[] b = new byte[getEncodedLength(v)];
+            encode(v, b, 0);
+            return b;
+        }
+
+        public abstract int encode(Object v, byte[] b, int o);
+
+        public abstract Object decode(byte[] b, int o, int len);
+    }
+
+    /**
+     * Replaces the codec of a type. Codecs should be registered before any value of the type is
+     * encoded.
+     */
+    public static void registerCodec(PhType phType, PhCodec codec) {
+        if (phType == PhType.DEFAULT) {
+            throw new RuntimeException("DEFAULT resolves its codec from the value class");
+        }
+        CODECS[phType.ordinal()] = codec;
+    }
+
+    /**
+     * Maps a value class to the type its DEFAULT-typed values are encoded as, in place of
+     * PhType.getType.
+     */
+    public static void registerClass(Class<?> c, PhType phType) {
+        CLASS_TYPES.put(c, phType);
+    }
+
+    private static PhCodec codecFor(PhType phType) {
+        return CODECS[phType.ordinal()];
+    }
+
+    /**
+     * Returns the codec DEFAULT-typed values of class c are encoded with, or null if the class
+     * has no type.
+     */
+    private static PhCodec codecFor(Class<?> c) {
+        PhType phType = CLASS_TYPES.get(c);
+        if (phType == null) {
+            phType = PhType.getType(c);
+            if (phType == null) {
+                phType = PhType.DEFAULT;
+            }
+            CLASS_TYPES.putIfAbsent(c, phType);
+        }
+        return phType == PhType.DEFAULT ? null : CODECS[phType.ordinal()];
+    }
+
+    private static final PhCodec[]                            CODECS      = new PhCodec[PhType.values().length];
+    private static final ConcurrentHashMap<Class<?>, PhType> CLASS_TYPES = new ConcurrentHashMap<>();
+
+    static {
+        CODECS[PhType.DEFAULT.ordinal()] = new PhCodec(-1) {
+            @Override
+            public int getEncodedLength(Object v) {
+                PhCodec codec = codecFor(v.getClass());
+                return codec == null ? 0 : codec.getEncodedLength(v);
+            }
+
+            @Override
+            public byte[] toBytes(Object v) {
+                PhCodec codec = codecFor(v.getClass());
+                return codec == null ? null : codec.toBytes(v);
+            }
+
+            @Override
+            public int encode(Object v, byte[] b, int o) {
+                PhCodec codec = codecFor(v.getClass());
+                return codec == null ? 0 : codec.encode(v, b, o);
+            }
+
+            @Override
+            public Object decode(byte[] b, int o, int len) {
+                return Bytes.toString(b, o, len);
+            }
+        };
+        CODECS[PhType.INTEGER.ordinal()] = new PhCodec(Bytes.SIZEOF_INT) {
+            @Override
+            public int encode(Object v, byte[] b, int o) {
+                return encodeInt(((Number) v).intValue(), b, o);
+            }
+
+            @Override
+            public Object decode(byte[] b, int o, int len) {
+                return decodeInt(b, o);
+            }
+        };
+        CODECS[PhType.UNSIGNED_INT.ordinal()] = new PhCodec(Bytes.SIZEOF_INT) {
+            @Override
+            public int encode(Object v, byte[] b, int o) {
+                return encodeUnsignedInt(((Number) v).intValue(), b, o);
+            }
+
+            @Override
+            public Object decode(byte[] b, int o, int len) {
+                return decodeUnsignedInt(b, o);
+            }
+        };
+        CODECS[PhType.BIGINT.ordinal()] = new PhCodec(Bytes.SIZEOF_LONG) {
+            @Override
+            public int encode(Object v, byte[] b, int o) {
+                return encodeLong(((Number) v).longValue(), b, o);
+            }
+
+            @Override
+            public Object decode(byte[] b, int o, int len) {
+                return decodeLong(b, o);
+            }
+        };
+        CODECS[PhType.UNSIGNED_LONG.ordinal()] = new PhCodec(Bytes.SIZEOF_LONG) {
+            @Override
+            public int encode(Object v, byte[] b, int o) {
+                return encodeUnsignedLong(((Number) v).longValue(), b, o);
+            }
+
+            @Override
+            public Object decode(byte[] b, int o, int len) {
+                return decodeUnsignedLong(b, o);
+            }
+        };
+        CODECS[PhType.SMALLINT.ordinal()] = new PhCodec(Bytes.SIZEOF_SHORT) {
+            @Override
+            public int encode(Object v, byte[] b, int o) {
+                return encodeShort(((Number) v).shortValue(), b, o);
+            }
+
+            @Override
+            public Object decode(byte[] b, int o, int len) {
+                return decodeShort(b, o);
+            }
+        };
+        CODECS[PhType.UNSIGNED_SMALLINT.ordinal()] = new PhCodec(Bytes.SIZEOF_SHORT) {
+            @Override
+            public int encode(Object v, byte[] b, int o) {
+                return encodeUnsignedShort(((Number) v).shortValue(), b, o);
+            }
+
+            @Override
+            public Object decode(byte[] b, int o, int len) {
+                return decodeUnsignedShort(b, o);
+            }
+        };
+        CODECS[PhType.TINYINT.ordinal()] = new PhCodec(Bytes.SIZEOF_BYTE) {
+            @Override
+            public int encode(Object v, byte[] b, int o) {
+                return encodeByte(((Number) v).byteValue(), b, o);
+            }
+
+            @Override
+            public Object decode(byte[] b, int o, int len) {
+                return decodeByte(b, o);
+            }
+        };
+        CODECS[PhType.UNSIGNED_TINYINT.ordinal()] = new PhCodec(Bytes.SIZEOF_BYTE) {
+            @Override
+            public int encode(Object v, byte[] b, int o) {
+                return encodeUnsignedByte(((Number) v).byteValue(), b, o);
+            }
+
+            @Override
+            public Object decode(byte[] b, int o, int len) {
+                return decodeUnsignedByte(b, o);
+            }
+        };
+        CODECS[PhType.FLOAT.ordinal()] = new PhCodec(Bytes.SIZEOF_FLOAT) {
+            @Override
+            public int encode(Object v, byte[] b, int o) {
+                return encodeFloat(((Number) v).floatValue(), b, o);
+            }
+
+            @Override
+            public Object decode(byte[] b, int o, int len) {
+                return decodeFloat(b, o);
+            }
+        };
+        CODECS[PhType.UNSIGNED_FLOAT.ordinal()] = new PhCodec(Bytes.SIZEOF_FLOAT) {
+            @Override
+            public int encode(Object v, byte[] b, int o) {
+                return encodeUnsignedFloat(((Number) v).floatValue(), b, o);
+            }
+
+            @Override
+            public Object decode(byte[] b, int o, int len) {
+                return decodeUnsignedFloat(b, o);
+            }
+        };
+        CODECS[PhType.DOUBLE.ordinal()] = new PhCodec(Bytes.SIZEOF_DOUBLE) {
+            @Override
+            public int encode(Object v, byte[] b, int o) {
+                return encodeDouble(((Number) v).doubleValue(), b, o);
+            }
+
+            @Override
+            public Object decode(byte[] b, int o, int len) {
+                return decodeDouble(b, o);
+            }
+        };
+        CODECS[PhType.UNSIGNED_DOUBLE.ordinal()] = new PhCodec(Bytes.SIZEOF_DOUBLE) {
+            @Override
+            public int encode(Object v, byte[] b, int o) {
+                return encodeUnsignedDouble(((Number) v).doubleValue(), b, o);
+            }
+
+            @Override
+            public Object decode(byte[] b, int o, int len) {
+                return decodeUnsignedDouble(b, o);
+            }
+        };
+        CODECS[PhType.BOOLEAN.ordinal()] = new PhCodec(Bytes.SIZEOF_BOOLEAN) {
+            @Override
+            public int encode(Object v, byte[] b, int o) {
+                checkForSufficientLength(b, o, Bytes.SIZEOF_BOOLEAN);
+                b[o] = (byte) ((Boolean) v ? 1 : 0);
+                return Bytes.SIZEOF_BOOLEAN;
+            }
+
+            @Override
+            public Object decode(byte[] b, int o, int len) {
+                checkForSufficientLength(b, o, Bytes.SIZEOF_BOOLEAN);
+                if (b[o] == 1) {
+                    return true;
+                } else if (b[o] == 0) {
+                    return false;
+                }
+                return null;
+            }
+        };
+        CODECS[PhType.DATE.ordinal()] = new PhCodec(Bytes.SIZEOF_LONG) {
+            @Override
+            public int encode(Object v, byte[] b, int o) {
+                checkForSufficientLength(b, o, Bytes.SIZEOF_LONG);
+                return encodeDate(v, b, o);
+            }
+
+            @Override
+            public Object decode(byte[] b, int o, int len) {
+                return new java.sql.Date(decodeLong(b, o));
+            }
+        };
+        CODECS[PhType.TIME.ordinal()] = new PhCodec(Bytes.SIZEOF_LONG) {
+            @Override
+            public int encode(Object v, byte[] b, int o) {
+                checkForSufficientLength(b, o, Bytes.SIZEOF_LONG);
+                return encodeDate(v, b, o);
+            }
+
+            @Override
+            public Object decode(byte[] b, int o, int len) {
+                return new java.sql.Time(decodeLong(b, o));
+            }
+        };
+        CODECS[PhType.TIMESTAMP.ordinal()] = new PhCodec(Bytes.SIZEOF_LONG + Bytes.SIZEOF_INT) {
+            @Override
+            public int encode(Object v, byte[] b, int o) {
+                checkForSufficientLength(b, o, Bytes.SIZEOF_LONG + Bytes.SIZEOF_INT);
+                return encodeTimestamp(v, b, o);
+            }
+
+            @Override
+            public Object decode(byte[] b, int o, int len) {
+                long millisDeserialized = decodeLong(b, o);
+                Timestamp ts = new Timestamp(millisDeserialized);
+                int nanosDeserialized = decodeUnsignedInt(b, o + Bytes.SIZEOF_LONG);
+                ts.setNanos(nanosDeserialized < 1000000 ? ts.getNanos() + nanosDeserialized : nanosDeserialized);
+                return ts;
+            }
+        };
+        PhCodec unsignedDate = new PhCodec(Bytes.SIZEOF_LONG) {
+            @Override
+            public int encode(Object v, byte[] b, int o) {
+                checkForSufficientLength(b, o, Bytes.SIZEOF_LONG);
+                return encodeUnsignedDate(v, b, o);
+            }
+
+            @Override
+            public Object decode(byte[] b, int o, int len) {
+                return new Date(decodeUnsignedLong(b, o));
+            }
+        };
+        CODECS[PhType.UNSIGNED_DATE.ordinal()] = unsignedDate;
+        CODECS[PhType.UNSIGNED_TIME.ordinal()] = unsignedDate;
+        CODECS[PhType.UNSIGNED_TIMESTAMP.ordinal()] = new PhCodec(Bytes.SIZEOF_LONG + Bytes.SIZEOF_INT) {
+            @Override
+            public int encode(Object v, byte[] b, int o) {
+                checkForSufficientLength(b, o, Bytes.SIZEOF_LONG + Bytes.SIZEOF_INT);
+                return encodeUnsignedTimestamp(v, b, o);
+            }
+
+            @Override
+            public Object decode(byte[] b, int o, int len) {
+                long millisDeserialized = decodeUnsignedLong(b, o);
+                Timestamp ts = new Timestamp(millisDeserialized);
+                int nanosDeserialized = decodeUnsignedInt(b, o + Bytes.SIZEOF_LONG);
+                ts.setNanos(nanosDeserialized < 1000000 ? ts.getNanos() + nanosDeserialized : nanosDeserialized);
+                return ts;
+            }
+        };
+        CODECS[PhType.VARBINARY.ordinal()] = new PhCodec(-1) {
+            @Override
+            public int getEncodedLength(Object v) {
+                return ((byte[]) v).length;
+            }
+
+            @Override
+            public byte[] toBytes(Object v) {
+                return (byte[]) v;
+            }
+
+            @Override
+            public int encode(Object v, byte[] b, int o) {
+                byte[] bytes = (byte[]) v;
+                checkForSufficientLength(b, o, bytes.length);
+                System.arraycopy(bytes, 0, b, o, bytes.length);
+                return bytes.length;
+            }
+
+            @Override
+            public Object decode(byte[] b, int o, int len) {
+                return o == 0 && len == b.length ? b : Arrays.copyOfRange(b, o, o + len);
+            }
+        };
+        CODECS[PhType.VARCHAR.ordinal()] = new PhCodec(-1) {
+            @Override
+            public int getEncodedLength(Object v) {
+                return utf8Length(v.toString());
+            }
+
+            @Override
+            public byte[] toBytes(Object v) {
+                return Bytes.toBytes(v.toString());
+            }
+
+            @Override
+            public int encode(Object v, byte[] b, int o) {
+                String s = v.toString();
+                checkForSufficientLength(b, o, utf8Length(s));
+                return encodeUtf8(s, b, o);
+            }
+
+            @Override
+            public Object decode(byte[] b, int o, int len) {
+                return Bytes.toString(b, o, len);
+            }
+        };
+        CODECS[PhType.DECIMAL.ordinal()] = new PhCodec(-1) {
+            @Override
+            public int getEncodedLength(Object v) {
+                return getDecimalLength(v);
+            }
+
+            @Override
+            public byte[] toBytes(Object v) {
+                if (!(v instanceof Number)) {
+                    return null;
+                }
+                byte[] result = new byte[getDecimalLength(v)];
+                encodeDecimal(v, result, 0);
+                return result;
+            }
+
+            @Override
+            public int encode(Object v, byte[] b, int o) {
+                return encodeDecimal(v, b, o);
+            }
+
+            @Override
+            public Object decode(byte[] b, int o, int len) {
+                return decodeDecimal(b, o, len);
+            }
+        };
+    }
+
+    /**
+     * A column of encoded values laid out back to back in a single array. The value at index i
+     * occupies data[offsets[i]] to data[offsets[i + 1]]. Null values are flagged in a bitmap and
+     * take an empty cell, so that an empty VARCHAR or VARBINARY still decodes to the empty value.
+     */
+    public static final class EncodedColumn {
+        private final byte[] data;
+        private final int[] offsets;
+        // bit i set when the value at index i is null, null when the column has no null values
+        private final long[] nulls;
+
+        public EncodedColumn(byte[] data, int[] offsets) {
+            this(data, offsets, null);
+        }
+
+        public EncodedColumn(byte[] data, int[] offsets, long[] nulls) {
+            this.data = data;
+            this.offsets = offsets;
+            this.nulls = nulls;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        public int[] getOffsets() {
+            return offsets;
+        }
+
+        public long[] getNulls() {
+            return nulls;
+        }
+
+        public int size() {
+            return offsets.length - 1;
+        }
+
+        public int getOffset(int i) {
+            return offsets[i];
+        }
+
+        public int getLength(int i) {
+            return offsets[i + 1] - offsets[i];
+        }
+
+        public boolean isNull(int i) {
+            return nulls != null && (nulls[i >>> 6] & (1L << i)) != 0;
+        }
+    }
+
+    public static EncodedColumn encodeColumn(int[] values, PhType phType) {
+        int n = values.length;
         if (phType == PhType.INTEGER) {
-            v = decodeInt(b, 0);
+            byte[] b = new byte[n * Bytes.SIZEOF_INT];
+            for (int i = 0; i < n; i++) {
+                encodeInt(values[i], b, i * Bytes.SIZEOF_INT);
+            }
+            return new EncodedColumn(b, fixedOffsets(n, Bytes.SIZEOF_INT));
         } else if (phType == PhType.UNSIGNED_INT) {
-            v = decodeUnsignedInt(b, 0);
-        } else if (phType == PhType.BIGINT) {
-            v = decodeLong(b, 0);
+            byte[] b = new byte[n * Bytes.SIZEOF_INT];
+            for (int i = 0; i < n; i++) {
+                encodeUnsignedInt(values[i], b, i * Bytes.SIZEOF_INT);
+            }
+            return new EncodedColumn(b, fixedOffsets(n, Bytes.SIZEOF_INT));
+        }
+        Object[] boxed = new Object[n];
+        for (int i = 0; i < n; i++) {
+            boxed[i] = values[i];
+        }
+        return encodeColumn(boxed, phType);
+    }
+
+    public static EncodedColumn encodeColumn(long[] values, PhType phType) {
+        int n = values.length;
+        if (phType == PhType.BIGINT) {
+            byte[] b = new byte[n * Bytes.SIZEOF_LONG];
+            for (int i = 0; i < n; i++) {
+                encodeLong(values[i], b, i * Bytes.SIZEOF_LONG);
+            }
+            return new EncodedColumn(b, fixedOffsets(n, Bytes.SIZEOF_LONG));
         } else if (phType == PhType.UNSIGNED_LONG) {
-            v = decodeUnsignedLong(b, 0);
+            byte[] b = new byte[n * Bytes.SIZEOF_LONG];
+            for (int i = 0; i < n; i++) {
+                encodeUnsignedLong(values[i], b, i * Bytes.SIZEOF_LONG);
+            }
+            return new EncodedColumn(b, fixedOffsets(n, Bytes.SIZEOF_LONG));
+        }
+        Object[] boxed = new Object[n];
+        for (int i = 0; i < n; i++) {
+            boxed[i] = values[i];
+        }
+        return encodeColumn(boxed, phType);
+    }
+
+    public static EncodedColumn encodeColumn(double[] values, PhType phType) {
+        int n = values.length;
+        if (phType == PhType.DOUBLE) {
+            byte[] b = new byte[n * Bytes.SIZEOF_DOUBLE];
+            for (int i = 0; i < n; i++) {
+                encodeDouble(values[i], b, i * Bytes.SIZEOF_DOUBLE);
+            }
+            return new EncodedColumn(b, fixedOffsets(n, Bytes.SIZEOF_DOUBLE));
+        } else if (phType == PhType.UNSIGNED_DOUBLE) {
+            byte[] b = new byte[n * Bytes.SIZEOF_DOUBLE];
+            for (int i = 0; i < n; i++) {
+                encodeUnsignedDouble(values[i], b, i * Bytes.SIZEOF_DOUBLE);
+            }
+            return new EncodedColumn(b, fixedOffsets(n, Bytes.SIZEOF_DOUBLE));
+        }
+        Object[] boxed = new Object[n];
+        for (int i = 0; i < n; i++) {
+            boxed[i] = values[i];
+        }
+        return encodeColumn(boxed, phType);
+    }
+
+    public static EncodedColumn encodeColumn(Object[] values, PhType phType) {
+        int n = values.length;
+        int[] offsets = new int[n + 1];
+        long[] nulls = null;
+        for (int i = 0; i < n; i++) {
+            if (values[i] == null) {
+                if (nulls == null) {
+                    nulls = new long[(n + 63) >>> 6];
+                }
+                nulls[i >>> 6] |= 1L << i;
+            }
+        }
+        PhCodec codec = codecFor(phType);
+        int width = codec.getWidth();
+        if (width > 0) {
+            // fixed width values are written in place
+            byte[] b = new byte[n * width];
+            int o = 0;
+            for (int i = 0; i < n; i++) {
+                if (values[i] != null) {
+                    o += codec.encode(values[i], b, o);
+                }
+                offsets[i + 1] = o;
+            }
+            return new EncodedColumn(o == b.length ? b : Arrays.copyOf(b, o), offsets, nulls);
+        }
+        byte[][] cells = new byte[n][];
+        int total = 0;
+        for (int i = 0; i < n; i++) {
+            cells[i] = values[i] == null ? null : codec.toBytes(values[i]);
+            total += cells[i] == null ? 0 : cells[i].length;
+        }
+        byte[] b = new byte[total];
+        int o = 0;
+        for (int i = 0; i < n; i++) {
+            if (cells[i] != null) {
+                System.arraycopy(cells[i], 0, b, o, cells[i].length);
+                o += cells[i].length;
+            }
+            offsets[i + 1] = o;
+        }
+        return new EncodedColumn(b, offsets, nulls);
+    }
+
+    public static Object[] decodeColumn(EncodedColumn column, PhType phType) {
+        byte[] b = column.getData();
+        int n = column.size();
+        Object[] values = new Object[n];
+        PhCodec codec = codecFor(phType);
+        for (int i = 0; i < n; i++) {
+            if (!column.isNull(i)) {
+                values[i] = codec.decode(b, column.getOffset(i), column.getLength(i));
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Decodes the column into dst starting at dstOffset. Null cells are left as 0, check
+     * EncodedColumn.isNull to tell them apart.
+     */
+    public static void decodeColumn(EncodedColumn column, PhType phType, long[] dst, int dstOffset) {
+        byte[] b = column.getData();
+        int n = column.size();
+        if (phType == PhType.BIGINT) {
+            for (int i = 0; i < n; i++) {
+                dst[dstOffset + i] = column.isNull(i) ? 0 : decodeLong(b, column.getOffset(i));
+            }
+        } else if (phType == PhType.UNSIGNED_LONG) {
+            for (int i = 0; i < n; i++) {
+                dst[dstOffset + i] = column.isNull(i) ? 0 : decodeUnsignedLong(b, column.getOffset(i));
+            }
+        } else {
+            for (int i = 0; i < n; i++) {
+                dst[dstOffset + i] = column.isNull(i) ? 0 : decodeLongAt(b, column.getOffset(i), phType);
+            }
+        }
+    }
+
+    public static void decodeColumn(EncodedColumn column, PhType phType, double[] dst, int dstOffset) {
+        byte[] b = column.getData();
+        int n = column.size();
+        if (phType == PhType.DOUBLE) {
+            for (int i = 0; i < n; i++) {
+                dst[dstOffset + i] = column.isNull(i) ? 0 : decodeDouble(b, column.getOffset(i));
+            }
+        } else if (phType == PhType.UNSIGNED_DOUBLE) {
+            for (int i = 0; i < n; i++) {
+                dst[dstOffset + i] = column.isNull(i) ? 0 : decodeUnsignedDouble(b, column.getOffset(i));
+            }
+        } else {
+            for (int i = 0; i < n; i++) {
+                dst[dstOffset + i] = column.isNull(i) ? 0 : decodeDoubleAt(b, column.getOffset(i), phType);
+            }
+        }
+    }
+
+    /**
+     * Decodes count fixed width cells packed back to back from b at offset o, as written by
+     * encodeColumn for a primitive array.
+     */
+    public static void decodeColumn(byte[] b, int o, int count, PhType phType, long[] dst, int dstOffset) {
+        int width = codecFor(phType).getWidth();
+        if (phType == PhType.BIGINT) {
+            for (int i = 0; i < count; i++) {
+                dst[dstOffset + i] = decodeLong(b, o + i * width);
+            }
+        } else {
+            for (int i = 0; i < count; i++) {
+                dst[dstOffset + i] = decodeLongAt(b, o + i * width, phType);
+            }
+        }
+    }
+
+    public static void decodeColumn(byte[] b, int o, int count, PhType phType, double[] dst, int dstOffset) {
+        int width = codecFor(phType).getWidth();
+        if (phType == PhType.DOUBLE) {
+            for (int i = 0; i < count; i++) {
+                dst[dstOffset + i] = decodeDouble(b, o + i * width);
+            }
+        } else {
+            for (int i = 0; i < count; i++) {
+                dst[dstOffset + i] = decodeDoubleAt(b, o + i * width, phType);
+            }
+        }
+    }
+
+    public static int decodeIntAt(byte[] b, int o, PhType phType) {
+        if (phType == PhType.INTEGER) {
+            return decodeInt(b, o);
+        } else if (phType == PhType.UNSIGNED_INT) {
+            return decodeUnsignedInt(b, o);
         } else if (phType == PhType.SMALLINT) {
-            v = decodeShort(b, 0);
+            return decodeShort(b, o);
         } else if (phType == PhType.UNSIGNED_SMALLINT) {
-            v = decodeUnsignedShort(b, 0);
+            return decodeUnsignedShort(b, o);
         } else if (phType == PhType.TINYINT) {
-            v = decodeByte(b, 0);
+            return decodeByte(b, o);
         } else if (phType == PhType.UNSIGNED_TINYINT) {
-            v = decodeUnsignedByte(b, 0);
-        } else if (phType == PhType.FLOAT) {
-            v = decodeFloat(b, 0);
+            return decodeUnsignedByte(b, o);
+        }
+        throw new RuntimeException("Cannot decode " + phType + " as an int");
+    }
+
+    /**
+     * Decodes any integral type, and the date types as epoch millis.
+     */
+    public static long decodeLongAt(byte[] b, int o, PhType phType) {
+        if (phType == PhType.BIGINT || phType == PhType.DATE || phType == PhType.TIME
+            || phType == PhType.TIMESTAMP) {
+            return decodeLong(b, o);
+        } else if (phType == PhType.UNSIGNED_LONG || phType == PhType.UNSIGNED_DATE
+                   || phType == PhType.UNSIGNED_TIME || phType == PhType.UNSIGNED_TIMESTAMP) {
+            return decodeUnsignedLong(b, o);
+        }
+        return decodeIntAt(b, o, phType);
+    }
+
+    public static float decodeFloatAt(byte[] b, int o, PhType phType) {
+        if (phType == PhType.FLOAT) {
+            return decodeFloat(b, o);
         } else if (phType == PhType.UNSIGNED_FLOAT) {
-            v = decodeUnsignedFloat(b, 0);
-        } else if (phType == PhType.DOUBLE) {
-            v = decodeDouble(b, 0);
+            return decodeUnsignedFloat(b, o);
+        }
+        throw new RuntimeException("Cannot decode " + phType + " as a float");
+    }
+
+    /**
+     * Decodes any numeric type.
+     */
+    public static double decodeDoubleAt(byte[] b, int o, PhType phType) {
+        if (phType == PhType.DOUBLE) {
+            return decodeDouble(b, o);
         } else if (phType == PhType.UNSIGNED_DOUBLE) {
-            v = decodeUnsignedDouble(b, 0);
-        } else if (phType == PhType.BOOLEAN) {
-            checkForSufficientLength(b, 0, Bytes.SIZEOF_BOOLEAN);
-            if (b[0] == 1) {
-                v = true;
-            } else if (b[0] == 0) {
-                v = false;
-            }
-        } else if (phType == PhType.DATE) {
-            v = new java.sql.Date(decodeLong(b, 0));
-        } else if (phType == PhType.TIME) {
-            v = new java.sql.Time(decodeLong(b, 0));
-        } else if (phType == PhType.TIMESTAMP) {
-            long millisDeserialized = decodeLong(b, 0);
-            Timestamp ts = new Timestamp(millisDeserialized);
-            int nanosDeserialized = decodeUnsignedInt(b, Bytes.SIZEOF_LONG);
-            ts.setNanos(nanosDeserialized < 1000000 ? ts.getNanos() + nanosDeserialized : nanosDeserialized);
-            v = ts;
-        } else if (phType == PhType.UNSIGNED_TIME || phType == PhType.UNSIGNED_DATE) {
-            v = new Date(decodeUnsignedLong(b, 0));
-        } else if (phType == PhType.UNSIGNED_TIMESTAMP) {
-            long millisDeserialized = decodeUnsignedLong(b, 0);
-            Timestamp ts = new Timestamp(millisDeserialized);
-            int nanosDeserialized = decodeUnsignedInt(b, Bytes.SIZEOF_LONG);
-            ts.setNanos(nanosDeserialized < 1000000 ? ts.getNanos() + nanosDeserialized : nanosDeserialized);
-            v = ts;
-        } else if (phType == PhType.VARBINARY) {
-            v = b;
-        } else if (phType == PhType.VARCHAR || phType == PhType.DEFAULT) {
-            v = Bytes.toString(b);
-        } else if (phType == PhType.DECIMAL) {
-            v = decodeDecimal(b, 0, b.length);
+            return decodeUnsignedDouble(b, o);
+        } else if (phType == PhType.FLOAT || phType == PhType.UNSIGNED_FLOAT) {
+            return decodeFloatAt(b, o, phType);
         }
+        return decodeLongAt(b, o, phType);
+    }
 
-        return v;
+    /**
+     * Encodes the DECIMAL unscaled * 10^-scale with long arithmetic. Values of more than 18 digits
+     * go through BigDecimal.
+     */
+    public static byte[] toDecimalBytes(long unscaled, int scale) {
+        byte[] b = new byte[getDecimalLength(unscaled, scale)];
+        toDecimalBytes(unscaled, scale, b, 0);
+        return b;
+    }
+
+    public static int toDecimalBytes(long unscaled, int scale, byte[] b, int o) {
+        if (unscaled <= -MAX_FAST_DECIMAL || unscaled >= MAX_FAST_DECIMAL) {
+            return encodeDecimal(BigDecimal.valueOf(unscaled, scale), b, o);
+        }
+        if (unscaled == 0) {
+            checkForSufficientLength(b, o, 1);
+            b[o] = ZERO_BYTE;
+            return 1;
+        }
+        while (unscaled % 10 == 0) {
+            unscaled /= 10;
+            scale--;
+        }
+        int length = getDecimalLength(unscaled, scale);
+        checkForSufficientLength(b, o, length);
+        // Same layout as decimalToBytes
+        int index = o + length;
+        int expOffset = scale % 2 * (scale < 0 ? -1 : 1);
+        int multiplyBy = expOffset == 0 ? 1 : 10;
+        int digitOffset;
+        if (unscaled > 0) {
+            digitOffset = POS_DIGIT_OFFSET;
+            scale -= (length - 2) * 2;
+            b[o] = (byte) ((-(scale + expOffset) / 2 + EXP_BYTE_OFFSET) | 0x80);
+        } else {
+            digitOffset = NEG_DIGIT_OFFSET;
+            scale -= (length - 2 - 1) * 2;
+            b[o] = (byte) (~(-(scale + expOffset) / 2 + EXP_BYTE_OFFSET + 128) & 0x7F);
+            b[--index] = NEG_TERMINAL_BYTE;
+        }
+        long l = unscaled;
+        do {
+            long divBy = 100 / multiplyBy;
+            long digit = l % divBy;
+            l /= divBy;
+            b[--index] = (byte) (digit * multiplyBy + digitOffset);
+            multiplyBy = 1;
+        } while (l != 0);
+        return length;
+    }
+
+    public static int getDecimalLength(long unscaled, int scale) {
+        if (unscaled <= -MAX_FAST_DECIMAL || unscaled >= MAX_FAST_DECIMAL) {
+            return getDecimalLength(BigDecimal.valueOf(unscaled, scale));
+        }
+        if (unscaled == 0) {
+            return 1;
+        }
+        while (unscaled % 10 == 0) {
+            unscaled /= 10;
+            scale--;
+        }
+        int precision = 1;
+        for (long l = Math.abs(unscaled); l >= 10; l /= 10) {
+            precision++;
+        }
+        return (unscaled < 0 ? 2 : 1) + (precision + 1 + (scale % 2 == 0 ? 0 : 1)) / 2;
+    }
+
+    /**
+     * Returns the scale of an encoded DECIMAL, the smallest that represents it exactly.
+     */
+    public static int decodeDecimalScale(byte[] b, int o, int len) {
+        if (len == 1 && b[o] == ZERO_BYTE) {
+            return 0;
+        }
+        int scale;
+        int end;
+        int last;
+        if ((b[o] & 0x80) != 0) {
+            scale = (byte) (((b[o] & 0x7F) - EXP_BYTE_OFFSET) * -2);
+            end = o + len;
+            last = b[end - 1] - POS_DIGIT_OFFSET;
+        } else {
+            scale = (byte) ((~b[o] - EXP_BYTE_OFFSET - 128) * -2);
+            end = o + len - (b[o + len - 1] == NEG_TERMINAL_BYTE ? 1 : 0);
+            last = NEG_DIGIT_OFFSET - b[end - 1];
+        }
+        scale += (end - o - 2) * 2;
+        return last % 10 == 0 ? scale - 1 : scale;
+    }
+
+    public static long decodeDecimalUnscaled(byte[] b, int o, int len) {
+        return decodeDecimalUnscaled(b, o, len, decodeDecimalScale(b, o, len));
+    }
+
+    /**
+     * Decodes an encoded DECIMAL as its unscaled value at the given scale, e.g. scale 2 for cents.
+     * Throws if the value has more digits after the point than the scale, or does not fit a long.
+     */
+    public static long decodeDecimalUnscaled(byte[] b, int o, int len, int scale) {
+        if (len == 1 && b[o] == ZERO_BYTE) {
+            return 0;
+        }
+        boolean positive = (b[o] & 0x80) != 0;
+        int decodedScale;
+        int end;
+        if (positive) {
+            decodedScale = (byte) (((b[o] & 0x7F) - EXP_BYTE_OFFSET) * -2);
+            end = o + len;
+        } else {
+            decodedScale = (byte) ((~b[o] - EXP_BYTE_OFFSET - 128) * -2);
+            end = o + len - (b[o + len - 1] == NEG_TERMINAL_BYTE ? 1 : 0);
+        }
+        decodedScale += (end - o - 2) * 2;
+        long l = 0;
+        for (int i = o + 1; i < end; i++) {
+            int digit100 = positive ? b[i] - POS_DIGIT_OFFSET : NEG_DIGIT_OFFSET - b[i];
+            if (i == end - 1 && digit100 % 10 == 0) { // trailing zero
+                decodedScale--;
+                digit100 /= 10;
+                if (l > MAX_LONG_FOR_DIGIT_PAIR * 10) {
+                    throw new RuntimeException("DECIMAL does not fit in a long");
+                }
+                l = l * 10 + digit100;
+            } else {
+                if (l > MAX_LONG_FOR_DIGIT_PAIR) {
+                    throw new RuntimeException("DECIMAL does not fit in a long");
+                }
+                l = l * 100 + digit100;
+            }
+        }
+        for (; decodedScale < scale; decodedScale++) {
+            l = LongMath.checkedMultiply(l, 10);
+        }
+        for (; decodedScale > scale; decodedScale--) {
+            if (l % 10 != 0) {
+                throw new RuntimeException("DECIMAL has more than " + scale + " digits after the point");
+            }
+            l /= 10;
+        }
+        return positive ? l : -l;
+    }
+
+    /**
+     * Writes the columns of a row key into one reusable buffer. Fixed width columns are written as
+     * is. Variable width columns have every 0x00 byte escaped as 0x00 0xFF and are terminated with
+     * 0x00 0x01, so that keys sort column by column under compareKeys.
+     */
+    public static final class CompositeKeyBuilder {
+        private byte[] buf;
+        private int length;
+
+        public CompositeKeyBuilder() {
+            this(64);
+        }
+
+        public CompositeKeyBuilder(int capacity) {
+            this.buf = new byte[capacity];
+        }
+
+        public CompositeKeyBuilder add(Object v, PhType phType) {
+            PhCodec codec = codecFor(phType);
+            int width = codec.getWidth();
+            if (width > 0) {
+                if (v == null) {
+                    throw new RuntimeException("Fixed width key column of type " + phType + " cannot be null");
+                }
+                ensureCapacity(width);
+                length += codec.encode(v, buf, length);
+                return this;
+            }
+            int len = getEncodedLength(v, phType);
+            // Encode past the worst case escaped length, then escape down into place
+            ensureCapacity(len * 2 + 2);
+            int from = length + len;
+            if (v != null) {
+                codec.encode(v, buf, from);
+            }
+            for (int i = from; i < from + len; i++) {
+                byte b = buf[i];
+                buf[length++] = b;
+                if (b == SEPARATOR_BYTE) {
+                    buf[length++] = ESCAPE_BYTE;
+                }
+            }
+            buf[length++] = SEPARATOR_BYTE;
+            buf[length++] = TERMINATOR_BYTE;
+            return this;
+        }
+
+        public CompositeKeyBuilder reset() {
+            length = 0;
+            return this;
+        }
+
+        public byte[] getBuffer() {
+            return buf;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public byte[] toBytes() {
+            return Arrays.copyOf(buf, length);
+        }
+
+        private void ensureCapacity(int n) {
+            if (length + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, length + n));
+            }
+        }
+    }
+
+    public static final Comparator<byte[]> KEY_COMPARATOR = new Comparator<byte[]>() {
+        @Override
+        public int compare(byte[] a, byte[] b) {
+            return compareKeys(a, 0, a.length, b, 0, b.length);
+        }
+    };
+
+    /**
+     * Compares encoded keys as unsigned bytes, which orders them by their decoded values.
+     */
+    public static int compareKeys(byte[] a, int ao, int al, byte[] b, int bo, int bl) {
+        int n = Math.min(al, bl);
+        for (int i = 0; i < n; i++) {
+            int d = (a[ao + i] & 0xFF) - (b[bo + i] & 0xFF);
+            if (d != 0) {
+                return d;
+            }
+        }
+        return al - bl;
+    }
+
+    /**
+     * An immutable run of sorted keys, each stored as the length of the prefix it shares with the
+     * previous key followed by the rest of its bytes. Every restartInterval-th key is stored in full
+     * so that a lookup only decodes the keys after the nearest restart.
+     */
+    public static final class FrontCodedKeys {
+        private final byte[] data;
+        private final int[]  restarts;
+        private final int    restartInterval;
+        private final int    size;
+
+        private FrontCodedKeys(byte[] data, int[] restarts, int restartInterval, int size) {
+            this.data = data;
+            this.restarts = restarts;
+            this.restartInterval = restartInterval;
+            this.size = size;
+        }
+
+        public static FrontCodedKeys encode(List<byte[]> sortedKeys, int restartInterval) {
+            if (restartInterval < 1) {
+                throw new RuntimeException("Restart interval must be positive, but was " + restartInterval);
+            }
+            int size = sortedKeys.size();
+            int[] restarts = new int[(size + restartInterval - 1) / restartInterval];
+            byte[] data = new byte[64];
+            int o = 0;
+            byte[] prev = null;
+            for (int i = 0; i < size; i++) {
+                byte[] key = sortedKeys.get(i);
+                int shared = 0;
+                if (i > 0 && compareKeys(prev, 0, prev.length, key, 0, key.length) > 0) {
+                    throw new RuntimeException("Keys are not sorted at index " + i);
+                }
+                if (i % restartInterval == 0) {
+                    restarts[i / restartInterval] = o;
+                } else {
+                    int n = Math.min(prev.length, key.length);
+                    while (shared < n && prev[shared] == key[shared]) {
+                        shared++;
+                    }
+                }
+                if (o + key.length - shared + 10 > data.length) {
+                    data = Arrays.copyOf(data, Math.max(data.length * 2, o + key.length - shared + 10));
+                }
+                o = putVInt(data, o, shared);
+                o = putVInt(data, o, key.length - shared);
+                System.arraycopy(key, shared, data, o, key.length - shared);
+                o += key.length - shared;
+                prev = key;
+            }
+            return new FrontCodedKeys(Arrays.copyOf(data, o), restarts, restartInterval, size);
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public int getSizeInBytes() {
+            return data.length + restarts.length * 4;
+        }
+
+        public byte[] get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Index " + index + " out of " + size + " keys");
+            }
+            byte[] key = new byte[0];
+            int o = restarts[index / restartInterval];
+            for (int i = index - index % restartInterval; i <= index; i++) {
+                int shared = getVInt(data, o);
+                o += vIntSize(shared);
+                int suffix = getVInt(data, o);
+                o += vIntSize(suffix);
+                byte[] next = new byte[shared + suffix];
+                System.arraycopy(key, 0, next, 0, shared);
+                System.arraycopy(data, o, next, shared, suffix);
+                o += suffix;
+                key = next;
+            }
+            return key;
+        }
+
+        /**
+         * Returns the index of key, or -(insertion point) - 1 if it is not present, as
+         * Arrays.binarySearch does.
+         */
+        public int search(byte[] key) {
+            // Find the last restart whose key is <= key
+            int lo = 0;
+            int hi = restarts.length - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int o = restarts[mid];
+                o += vIntSize(0);
+                int len = getVInt(data, o);
+                o += vIntSize(len);
+                int c = compareKeys(data, o, len, key, 0, key.length);
+                if (c == 0) {
+                    return mid * restartInterval;
+                } else if (c < 0) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            if (hi < 0) {
+                return -1;
+            }
+            // Scan the keys after that restart, rebuilding each in a scratch buffer
+            byte[] current = new byte[64];
+            int o = restarts[hi];
+            int end = Math.min(size, (hi + 1) * restartInterval);
+            for (int i = hi * restartInterval; i < end; i++) {
+                int shared = getVInt(data, o);
+                o += vIntSize(shared);
+                int suffix = getVInt(data, o);
+                o += vIntSize(suffix);
+                if (shared + suffix > current.length) {
+                    current = Arrays.copyOf(current, Math.max(current.length * 2, shared + suffix));
+                }
+                System.arraycopy(data, o, current, shared, suffix);
+                o += suffix;
+                int c = compareKeys(current, 0, shared + suffix, key, 0, key.length);
+                if (c == 0) {
+                    return i;
+                } else if (c > 0) {
+                    return -i - 1;
+                }
+            }
+            return -end - 1;
+        }
+
+        private static int putVInt(byte[] b, int o, int v) {
+            while ((v & ~0x7F) != 0) {
+                b[o++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            b[o++] = (byte) v;
+            return o;
+        }
+
+        private static int getVInt(byte[] b, int o) {
+            int v = 0;
+            int shift = 0;
+            byte x;
+            do {
+                x = b[o++];
+                v |= (x & 0x7F) << shift;
+                shift += 7;
+            } while ((x & 0x80) != 0);
+            return v;
+        }
+
+        private static int vIntSize(int v) {
+            int n = 1;
+            while ((v & ~0x7F) != 0) {
+                v >>>= 7;
+                n++;
+            }
+            return n;
+        }
+    }
+
+    private static int[] fixedOffsets(int n, int width) {
+        int[] offsets = new int[n + 1];
+        for (int i = 1; i <= n; i++) {
+            offsets[i] = i * width;
+        }
+        return offsets;
     }
 
     private static int decodeInt(byte[] bytes, int o) {
@@ -365,19 +1454,12 @@ public class PhTypeUtil {
     }
 
     private static int encodeDate(Object v, byte[] b, int o) {
-        if (v instanceof Date) {
-            encodeLong(((Date) v).getTime(), b, 0);
-        } else if (v instanceof String) {
-            String dateStr = (String) v;
-            Date date;
-            try {
-                date = Util.parseDate(dateStr);
-                if (date != null) {
-                    encodeLong(date.getTime(), b, 0);
-                }
-            } catch (Exception e) {
-                throw new RuntimeException(e);
-            }
+        Long millis = toMillis(v);
+        if (millis != null) {
+            encodeLong(millis, b, o);
+        } else {
+            // b may be a reused buffer, a value that is not a date is always encoded as zeros
+            clear(b, o, Bytes.SIZEOF_LONG);
         }
         return Bytes.SIZEOF_LONG;
     }
@@ -386,27 +1468,20 @@ public class PhTypeUtil {
         if (v instanceof Timestamp) {
             Timestamp ts = (Timestamp) v;
             encodeLong(ts.getTime(), b, o);
-            Bytes.putInt(b, Bytes.SIZEOF_LONG, ts.getNanos() % 1000000);
+            Bytes.putInt(b, o + Bytes.SIZEOF_LONG, ts.getNanos() % 1000000);
         } else {
             encodeDate(v, b, o);
+            Bytes.putInt(b, o + Bytes.SIZEOF_LONG, 0);
         }
         return Bytes.SIZEOF_LONG + Bytes.SIZEOF_INT;
     }
 
     private static int encodeUnsignedDate(Object v, byte[] b, int o) {
-        if (v instanceof Date) {
-            encodeUnsignedLong(((Date) v).getTime(), b, 0);
-        } else if (v instanceof String) {
-            String dateStr = (String) v;
-            Date date;
-            try {
-                date = Util.parseDate(dateStr);
-                if (date != null) {
-                    encodeUnsignedLong(date.getTime(), b, 0);
-                }
-            } catch (Exception e) {
-                throw new RuntimeException(e);
-            }
+        Long millis = toMillis(v);
+        if (millis != null) {
+            encodeUnsignedLong(millis, b, o);
+        } else {
+            clear(b, o, Bytes.SIZEOF_LONG);
         }
         return Bytes.SIZEOF_LONG;
     }
@@ -415,23 +1490,251 @@ public class PhTypeUtil {
         if (v instanceof Timestamp) {
             Timestamp ts = (Timestamp) v;
             encodeUnsignedLong(ts.getTime(), b, o);
-            Bytes.putInt(b, Bytes.SIZEOF_LONG, ts.getNanos() % 1000000);
+            Bytes.putInt(b, o + Bytes.SIZEOF_LONG, ts.getNanos() % 1000000);
         } else {
             encodeUnsignedDate(v, b, o);
+            Bytes.putInt(b, o + Bytes.SIZEOF_LONG, 0);
         }
         return Bytes.SIZEOF_LONG + Bytes.SIZEOF_INT;
     }
 
-    private static byte[] encodeDecimal(Object object) {
-        if (object == null) {
-            return new byte[0];
+    /**
+     * @return the epoch millis of a Date or of a date string, null if v is neither or does not parse
+     */
+    private static Long toMillis(Object v) {
+        if (v instanceof Date) {
+            return ((Date) v).getTime();
+        } else if (v instanceof String) {
+            return DATE_PARSE_CACHE.parse((String) v);
+        }
+        return null;
+    }
+
+    private static void clear(byte[] b, int o, int len) {
+        checkForSufficientLength(b, o, len);
+        Arrays.fill(b, o, o + len, (byte) 0);
+    }
+
+    public static DateParseCache getDateParseCache() {
+        return DATE_PARSE_CACHE;
+    }
+
+    /**
+     * Caches the epoch millis of date strings. Entries go into a current generation; once it is
+     * half full it becomes the previous generation and the one before is dropped, so the cache holds
+     * at most maxSize entries and keeps the strings that are still being seen.
+     */
+    public static final class DateParseCache {
+        private final int                                 maxSize;
+        private volatile ConcurrentHashMap<String, Long> current  = new ConcurrentHashMap<>();
+        private volatile ConcurrentHashMap<String, Long> previous = new ConcurrentHashMap<>();
+        private final LongAdder                           hits     = new LongAdder();
+        private final LongAdder                           misses   = new LongAdder();
+
+        public DateParseCache(int maxSize) {
+            if (maxSize < 2) {
+                throw new RuntimeException("Cache size must be at least 2, but was " + maxSize);
+            }
+            this.maxSize = maxSize;
+        }
+
+        /**
+         * Returns the epoch millis of the date string, or null if it does not parse to a date.
+         */
+        public Long parse(String dateStr) {
+            Long millis = current.get(dateStr);
+            if (millis != null) {
+                hits.increment();
+                return millis;
+            }
+            millis = previous.get(dateStr);
+            if (millis != null) {
+                hits.increment();
+            } else {
+                misses.increment();
+                millis = parseDate(dateStr);
+                if (millis == null) {
+                    return null;
+                }
+            }
+            ConcurrentHashMap<String, Long> c = current;
+            c.put(dateStr, millis);
+            if (c.size() >= maxSize / 2) {
+                synchronized (this) {
+                    if (current == c) {
+                        previous = c;
+                        current = new ConcurrentHashMap<>();
+                    }
+                }
+            }
+            return millis;
+        }
+
+        public long getHits() {
+            return hits.sum();
+        }
+
+        public long getMisses() {
+            return misses.sum();
+        }
+
+        public int size() {
+            return current.size() + previous.size();
+        }
+
+        public synchronized void clear() {
+            current = new ConcurrentHashMap<>();
+            previous = new ConcurrentHashMap<>();
+        }
+    }
+
+    private static Long parseDate(String dateStr) {
+        Long millis = parseIso8601(dateStr);
+        if (millis != null) {
+            return millis;
+        }
+        try {
+            Date date = Util.parseDate(dateStr);
+            return date == null ? null : date.getTime();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
         }
-        BigDecimal v = (BigDecimal) object;
-        v = v.round(DEFAULT_MATH_CONTEXT).stripTrailingZeros();
-        int len = getLength(v);
-        byte[] result = new byte[Math.min(len, 21)];
-        decimalToBytes(v, result, 0, len);
-        return result;
+    }
+
+    /**
+     * Parses yyyy-MM-ddTHH:mm[:ss[.fraction]] followed by Z or a +-HH[[:]mm] offset, with a space
+     * allowed in place of the T. Returns null for anything else, including strings without an
+     * offset, whose time zone is up to Util.parseDate.
+     */
+    private static Long parseIso8601(String s) {
+        int n = s.length();
+        if (n < 17 || s.charAt(4) != '-' || s.charAt(7) != '-' || (s.charAt(10) != 'T' && s.charAt(10) != ' ')
+            || s.charAt(13) != ':') {
+            return null;
+        }
+        int year = parseDigits(s, 0, 4);
+        int month = parseDigits(s, 5, 2);
+        int day = parseDigits(s, 8, 2);
+        int hour = parseDigits(s, 11, 2);
+        int minute = parseDigits(s, 14, 2);
+        int second = 0;
+        int millis = 0;
+        int i = 16;
+        if (s.charAt(i) == ':') {
+            second = parseDigits(s, 17, 2);
+            i = 19;
+            if (i < n && s.charAt(i) == '.') {
+                int start = ++i;
+                while (i < n && s.charAt(i) >= '0' && s.charAt(i) <= '9') {
+                    if (i - start < 3) {
+                        millis = millis * 10 + (s.charAt(i) - '0');
+                    }
+                    i++;
+                }
+                if (i == start) {
+                    return null;
+                }
+                for (int k = i - start; k < 3; k++) {
+                    millis *= 10;
+                }
+            }
+        }
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month) || hour < 0
+            || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59 || i >= n) {
+            return null;
+        }
+        int offsetSeconds;
+        char c = s.charAt(i);
+        if (c == 'Z' && i + 1 == n) {
+            offsetSeconds = 0;
+        } else if (c == '+' || c == '-') {
+            int offsetHours = parseDigits(s, i + 1, 2);
+            int offsetMinutes;
+            if (n == i + 3) {
+                offsetMinutes = 0;
+            } else if (n == i + 5) {
+                offsetMinutes = parseDigits(s, i + 3, 2);
+            } else if (n == i + 6 && s.charAt(i + 3) == ':') {
+                offsetMinutes = parseDigits(s, i + 4, 2);
+            } else {
+                return null;
+            }
+            if (offsetHours < 0 || offsetHours > 18 || offsetMinutes < 0 || offsetMinutes > 59) {
+                return null;
+            }
+            offsetSeconds = (offsetHours * 3600 + offsetMinutes * 60) * (c == '-' ? -1 : 1);
+        } else {
+            return null;
+        }
+        // Days since the epoch of the proleptic Gregorian date, counting years from March
+        long y = month <= 2 ? year - 1 : year;
+        long era = Math.floorDiv(y, 400);
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        long epochDay = era * 146097 + dayOfEra - 719468;
+        return (epochDay * 86400 + hour * 3600 + minute * 60 + second - offsetSeconds) * 1000 + millis;
+    }
+
+    private static int parseDigits(String s, int o, int len) {
+        if (o + len > s.length()) {
+            return -1;
+        }
+        int v = 0;
+        for (int i = o; i < o + len; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            v = v * 10 + (c - '0');
+        }
+        return v;
+    }
+
+    private static int daysInMonth(int year, int month) {
+        if (month == 2) {
+            return year % 4 == 0 && (year % 100 != 0 || year % 400 == 0) ? 29 : 28;
+        }
+        return month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31;
+    }
+
+    private static BigDecimal toRoundedDecimal(Object v) {
+        BigDecimal d;
+        if (v instanceof BigDecimal) {
+            d = (BigDecimal) v;
+        } else if (v instanceof Number) {
+            d = new BigDecimal(v.toString());
+        } else {
+            return null;
+        }
+        return d.round(DEFAULT_MATH_CONTEXT).stripTrailingZeros();
+    }
+
+    private static int encodeDecimal(Object v, byte[] b, int o) {
+        if (v instanceof Long || v instanceof Integer || v instanceof Short || v instanceof Byte) {
+            return toDecimalBytes(((Number) v).longValue(), 0, b, o);
+        } else if (v instanceof BigDecimal && ((BigDecimal) v).precision() <= MAX_FAST_DECIMAL_DIGITS) {
+            BigDecimal d = (BigDecimal) v;
+            return toDecimalBytes(d.unscaledValue().longValue(), d.scale(), b, o);
+        }
+        BigDecimal d = toRoundedDecimal(v);
+        if (d == null) {
+            return 0;
+        }
+        int len = getLength(d);
+        checkForSufficientLength(b, o, Math.min(len, MAX_BIG_DECIMAL_BYTES));
+        return Math.min(decimalToBytes(d, b, o, len), MAX_BIG_DECIMAL_BYTES);
+    }
+
+    private static int getDecimalLength(Object v) {
+        if (v instanceof Long || v instanceof Integer || v instanceof Short || v instanceof Byte) {
+            return getDecimalLength(((Number) v).longValue(), 0);
+        } else if (v instanceof BigDecimal && ((BigDecimal) v).precision() <= MAX_FAST_DECIMAL_DIGITS) {
+            BigDecimal d = (BigDecimal) v;
+            return getDecimalLength(d.unscaledValue().longValue(), d.scale());
+        }
+        BigDecimal d = toRoundedDecimal(v);
+        return d == null ? 0 : Math.min(getLength(d), MAX_BIG_DECIMAL_BYTES);
     }
 
     private static BigDecimal decodeDecimal(byte[] bytes, int offset, int length) {
@@ -485,7 +1788,7 @@ public class PhTypeUtil {
                 bi = bi.negate();
             }
         } else {
-            bi = BigInteger.valueOf(l * signum);
+            return BigDecimal.valueOf(l * signum, scale + (length - 2) * 2);
         }
         // Update the scale based on the precision
         scale += (length - 2) * 2;
@@ -513,6 +1816,18 @@ public class PhTypeUtil {
     private static final BigInteger  MIN_LONG                 = BigInteger.valueOf(Long.MIN_VALUE);
     private static final BigInteger  ONE_HUNDRED              = BigInteger.valueOf(100);
     private static final long        MAX_LONG_FOR_DESERIALIZE = Long.MAX_VALUE / 1000;
+    private static final int         MAX_FAST_DECIMAL_DIGITS  = 18;
+    private static final long        MAX_FAST_DECIMAL         = 1000000000000000000L;
+    private static final long        MAX_LONG_FOR_DIGIT_PAIR  = (Long.MAX_VALUE - 99) / 100;
+    private static final byte        SEPARATOR_BYTE           = 0;
+    private static final byte        ESCAPE_BYTE              = (byte) 0xFF;
+    private static final byte        TERMINATOR_BYTE          = 1;
+    private static final int         DATE_PARSE_CACHE_SIZE    = 16384;
+
+    private static final DateParseCache DATE_PARSE_CACHE = new DateParseCache(DATE_PARSE_CACHE_SIZE);
+
+    // Holds one fixed width value or a DECIMAL while it is copied to or from a direct buffer
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[MAX_BIG_DECIMAL_BYTES]);
 
     private static int decimalToBytes(BigDecimal v, byte[] result, final int offset, int length) {
         int signum = v.signum();
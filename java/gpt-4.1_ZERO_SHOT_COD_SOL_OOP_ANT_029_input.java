@@ -19,6 +19,38 @@ public class PerChannelBookieClient extends ChannelInboundHandlerAdapter {
     private static final int DEFAULT_HIGH_PRIORITY_VALUE = 100; // We may add finer grained priority later.
     private static final AtomicLong txnIdGenerator = new AtomicLong(0);
 
+    // Per channel collector of the responses read in the current read cycle, see channelReadComplete
+    private static final AttributeKey<ResponseDispatcher> RESPONSE_DISPATCHER =
+            AttributeKey.valueOf(PerChannelBookieClient.class, "responseDispatcher");
+
+    // Write batching: when enabled, flushes of requests written to the channel are coalesced
+    // until one of the thresholds below is reached or the event loop has drained its queue.
+    static final String WRITE_BATCHING_ENABLED = "clientWriteBatchingEnabled";
+    static final String WRITE_BATCHING_MAX_ENTRIES = "clientWriteBatchingMaxEntries";
+    static final String WRITE_BATCHING_MAX_BYTES = "clientWriteBatchingMaxBytes";
+    static final String WRITE_BATCHING_MAX_DELAY_MICROS = "clientWriteBatchingMaxDelayMicros";
+    static final String NETTY_BATCH_SIZE = "NETTY_BATCH_SIZE";
+    static final String NETTY_BATCH_LATENCY = "NETTY_BATCH_LATENCY";
+
+    // Adaptive concurrency limit on adds and reads, applied to the requests that allow fast fail.
+    static final String CONCURRENCY_LIMITER_ENABLED = "clientConcurrencyLimiterEnabled";
+    static final String CONCURRENCY_LIMITER_MIN = "clientConcurrencyLimiterMin";
+    static final String CONCURRENCY_LIMITER_MAX = "clientConcurrencyLimiterMax";
+    static final String CONCURRENCY_LIMITER_INITIAL = "clientConcurrencyLimiterInitial";
+    static final String CONCURRENCY_LIMIT = "CHANNEL_CONCURRENCY_LIMIT";
+    static final String CONCURRENCY_LIMIT_REJECTED = "CHANNEL_CONCURRENCY_LIMIT_REJECTED";
+
+    // Identical reads in flight share a single request, see ReadCompletion#join
+    static final String READ_COALESCING_ENABLED = "clientReadCoalescingEnabled";
+    static final String COALESCED_READS = "CHANNEL_COALESCED_READS";
+
+    // Identical long poll reads in flight share a single request, see LacSubscriptionManager
+    static final String LONG_POLL_MULTIPLEXING_ENABLED = "clientLongPollMultiplexingEnabled";
+    static final String LONG_POLLS_JOINED = "CHANNEL_LONG_POLLS_JOINED";
+
+    // Registers a ChannelStatsMXBean per client, to inspect the latencies of a single bookie
+    static final String CHANNEL_JMX_ENABLED = "clientChannelJmxEnabled";
+
     final BookieSocketAddress addr;
     final EventLoopGroup eventLoopGroup;
     final ByteBufAllocator allocator;
@@ -32,10 +64,25 @@ public class PerChannelBookieClient extends ChannelInboundHandlerAdapter {
     private final ConcurrentOpenHashMap<CompletionKey, CompletionValue> completionObjects =
         new ConcurrentOpenHashMap<CompletionKey, CompletionValue>();
 
-    // Map that hold duplicated read requests. The idea is to only use this map (synchronized) when there is a duplicate
-    // read request for the same ledgerId/entryId
-    private final SynchronizedHashMultiMap<CompletionKey, CompletionValue> completionObjectsV2Conflicts =
-        new SynchronizedHashMultiMap<>();
+    // Table that holds the V2 requests, keyed by ledgerId/entryId/operation. Duplicated read requests for the
+    // same ledgerId/entryId are kept under the same key, so the response path never needs a key object.
+    private final V2CompletionTable<CompletionValue> completionObjectsV2 = new V2CompletionTable<>();
+
+    // Deadlines of all the pending completions, so that timeout checks only look at the ones that are due
+    private final TimeoutWheel timeoutWheel = new TimeoutWheel();
+
+    // Normal reads in flight that other reads of the same entry can join, keyed by ledgerId/entryId
+    private final V2CompletionTable<ReadCompletion> inflightReads = new V2CompletionTable<>();
+
+    // Long poll reads in flight that other long polls of the same ledger can join, null if disabled
+    private final LacSubscriptionManager lacSubscriptions;
+
+    // Recent latencies of the successful reads, the same samples reported to readEntryOpLogger
+    private final ReadLatencyTracker readLatencyTracker = new ReadLatencyTracker();
+
+    // Latencies of this channel only, indexed by LatencyOp ordinal, see latencySnapshot
+    private final LatencyHistogram[] latencyHistograms = LatencyHistogram.forAllOps();
+    private final ObjectName mxBeanName;
 
     private final StatsLogger statsLogger;
     @StatsDoc(
@@ -128,12 +175,47 @@ public class PerChannelBookieClient extends ChannelInboundHandlerAdapter {
         help = "the number of outstanding add_entry requests"
     )
     private final Counter readEntryOutstanding;
+    @StatsDoc(
+        name = CONCURRENCY_LIMIT,
+        help = "the current adaptive limit of outstanding add and read requests"
+    )
+    private final AimdConcurrencyLimiter concurrencyLimiter;
+    @StatsDoc(
+        name = CONCURRENCY_LIMIT_REJECTED,
+        help = "the number of requests rejected because the adaptive concurrency limit was reached"
+    )
+    private final Counter concurrencyLimitRejected;
+    @StatsDoc(
+        name = COALESCED_READS,
+        help = "the number of reads served by an identical read already in flight"
+    )
+    private final Counter coalescedReads;
+    @StatsDoc(
+        name = LONG_POLLS_JOINED,
+        help = "the number of long poll reads served by an identical long poll already in flight"
+    )
+    private final Counter longPollsJoined;
+    // same as the two counters above, but readable whatever the stats provider is
+    private final LongAdder numOutstandingAdds = new LongAdder();
+    private final LongAdder numOutstandingReads = new LongAdder();
+    // bytes of the frames written and not yet handed to the socket, see PendingBytesCounter
+    private final LongAdder bytesInFlight = new LongAdder();
     /* collect stats on all Ops that flows through netty pipeline */
     @StatsDoc(
         name = BookKeeperClientStats.NETTY_OPS,
         help = "channel stats for all operations flowing through netty pipeline"
     )
     private final OpStatsLogger nettyOpLogger;
+    @StatsDoc(
+        name = NETTY_BATCH_SIZE,
+        help = "the number of requests flushed together when write batching is enabled"
+    )
+    private final OpStatsLogger nettyBatchSizeLogger;
+    @StatsDoc(
+        name = NETTY_BATCH_LATENCY,
+        help = "time between the first request of a batch being written and the batch being flushed"
+    )
+    private final OpStatsLogger nettyBatchLatencyLogger;
     @StatsDoc(
         name = BookKeeperClientStats.ACTIVE_NON_TLS_CHANNEL_COUNTER,
         help = "the number of active non-tls channels"
@@ -157,14 +239,22 @@ public class PerChannelBookieClient extends ChannelInboundHandlerAdapter {
 
     private final boolean useV2WireProtocol;
     private final boolean preserveMdcForTaskExecution;
+    private final boolean readCoalescingEnabled;
+    private final boolean writeBatchingEnabled;
+    private final int writeBatchingMaxEntries;
+    private final long writeBatchingMaxBytes;
+    private final long writeBatchingMaxDelayNanos;
 
     /**
-     * The following member variables do not need to be concurrent, or volatile
-     * because they are always updated under a lock.
+     * Operations waiting for the connection attempt in progress. The queue is drained by whoever
+     * moves the connection out of CONNECTING/START_TLS, and by any thread that queues an op and
+     * then finds that the attempt is already over.
      */
-    private volatile Queue<GenericCallback<PerChannelBookieClient>> pendingOps =
-            new ArrayDeque<GenericCallback<PerChannelBookieClient>>();
+    private final Queue<GenericCallback<PerChannelBookieClient>> pendingOps =
+            new ConcurrentLinkedQueue<GenericCallback<PerChannelBookieClient>>();
     volatile Channel channel = null;
+    private static final AtomicReferenceFieldUpdater<PerChannelBookieClient, Channel> CHANNEL_UPDATER =
+            AtomicReferenceFieldUpdater.newUpdater(PerChannelBookieClient.class, Channel.class, "channel");
     private final ClientConnectionPeer connectionPeer;
     private volatile BookKeeperPrincipal authorizedId = BookKeeperPrincipal.ANONYMOUS;
 
@@ -172,8 +262,10 @@ public class PerChannelBookieClient extends ChannelInboundHandlerAdapter {
         DISCONNECTED, CONNECTING, CONNECTED, CLOSED, START_TLS
     }
 
+    // all the transitions go through compareAndSet, no lock is held while changing the state
     volatile ConnectionState state;
-    final ReentrantReadWriteLock closeLock = new ReentrantReadWriteLock();
+    private static final AtomicReferenceFieldUpdater<PerChannelBookieClient, ConnectionState> STATE_UPDATER =
+            AtomicReferenceFieldUpdater.newUpdater(PerChannelBookieClient.class, ConnectionState.class, "state");
     private final ClientConfiguration conf;
 
     private final PerChannelBookieClientPool pcbcPool;
@@ -230,6 +322,14 @@ public class PerChannelBookieClient extends ChannelInboundHandlerAdapter {
         this.startTLSTimeout = conf.getStartTLSTimeout();
         this.useV2WireProtocol = conf.getUseV2WireProtocol();
         this.preserveMdcForTaskExecution = conf.getPreserveMdcForTaskExecution();
+        this.readCoalescingEnabled = conf.getBoolean(READ_COALESCING_ENABLED, true);
+        this.lacSubscriptions = !useV2WireProtocol && conf.getBoolean(LONG_POLL_MULTIPLEXING_ENABLED, true)
+                ? new LacSubscriptionManager() : null;
+        this.writeBatchingEnabled = conf.getBoolean(WRITE_BATCHING_ENABLED, false);
+        this.writeBatchingMaxEntries = conf.getInt(WRITE_BATCHING_MAX_ENTRIES, 128);
+        this.writeBatchingMaxBytes = conf.getLong(WRITE_BATCHING_MAX_BYTES, 256 * 1024);
+        this.writeBatchingMaxDelayNanos = TimeUnit.MICROSECONDS.toNanos(
+                conf.getLong(WRITE_BATCHING_MAX_DELAY_MICROS, 100));
 
         this.authProviderFactory = authProviderFactory;
         this.extRegistry = extRegistry;
@@ -263,12 +363,36 @@ public class PerChannelBookieClient extends ChannelInboundHandlerAdapter {
         connectTimer = statsLogger.getOpStatsLogger(BookKeeperClientStats.CLIENT_CONNECT_TIMER);
         addEntryOutstanding = statsLogger.getCounter(BookKeeperClientStats.ADD_OP_OUTSTANDING);
         readEntryOutstanding = statsLogger.getCounter(BookKeeperClientStats.READ_OP_OUTSTANDING);
+        concurrencyLimitRejected = statsLogger.getCounter(CONCURRENCY_LIMIT_REJECTED);
+        coalescedReads = statsLogger.getCounter(COALESCED_READS);
+        longPollsJoined = statsLogger.getCounter(LONG_POLLS_JOINED);
+        if (conf.getBoolean(CONCURRENCY_LIMITER_ENABLED, false)) {
+            final AimdConcurrencyLimiter limiter = new AimdConcurrencyLimiter(
+                    conf.getInt(CONCURRENCY_LIMITER_MIN, 16),
+                    conf.getInt(CONCURRENCY_LIMITER_MAX, 10000),
+                    conf.getInt(CONCURRENCY_LIMITER_INITIAL, 1000));
+            statsLogger.registerGauge(CONCURRENCY_LIMIT, new Gauge<Integer>() {
+                @Override
+                public Integer getDefaultValue() {
+                    return 0;
+                }
+
+                @Override
+                public Integer getSample() {
+                    return limiter.getLimit();
+                }
+            });
+            concurrencyLimiter = limiter;
+        } else {
+            concurrencyLimiter = null;
+        }
         nettyOpLogger = statsLogger.getOpStatsLogger(BookKeeperClientStats.NETTY_OPS);
+        nettyBatchSizeLogger = statsLogger.getOpStatsLogger(NETTY_BATCH_SIZE);
+        nettyBatchLatencyLogger = statsLogger.getOpStatsLogger(NETTY_BATCH_LATENCY);
         activeNonTlsChannelCounter = statsLogger.getCounter(BookKeeperClientStats.ACTIVE_NON_TLS_CHANNEL_COUNTER);
         activeTlsChannelCounter = statsLogger.getCounter(BookKeeperClientStats.ACTIVE_TLS_CHANNEL_COUNTER);
         failedConnectionCounter = statsLogger.getCounter(BookKeeperClientStats.FAILED_CONNECTION_COUNTER);
         failedTlsHandshakeCounter = statsLogger.getCounter(BookKeeperClientStats.FAILED_TLS_HANDSHAKE_COUNTER);
-
         this.pcbcPool = pcbcPool;
 
         this.connectionPeer = new ClientConnectionPeer() {
@@ -337,24 +461,135 @@ public class PerChannelBookieClient extends ChannelInboundHandlerAdapter {
             }
 
         };
+
+        // last, a JMX client may query the channel stats as soon as they are registered
+        this.mxBeanName = conf.getBoolean(CHANNEL_JMX_ENABLED, false)
+                ? registerMXBean(nameBuilder.toString()) : null;
     }
 
-    private void completeOperation(GenericCallback<PerChannelBookieClient> op, int rc) {
-        //Thread.dumpStack();
-        closeLock.readLock().lock();
-        try {
-            if (ConnectionState.CLOSED == state) {
-                op.operationComplete(BKException.Code.ClientClosedException, this);
-            } else {
-                op.operationComplete(rc, this);
+    private boolean casState(ConnectionState expected, ConnectionState update) {
+        return STATE_UPDATER.compareAndSet(this, expected, update);
+    }
+
+    /**
+     * Moves the connection to DISCONNECTED, unless it was closed permanently.
+     */
+    private void markDisconnected() {
+        ConnectionState s;
+        do {
+            s = state;
+            if (s == ConnectionState.CLOSED || s == ConnectionState.DISCONNECTED) {
+                return;
             }
-        } finally {
-            closeLock.readLock().unlock();
+        } while (!casState(s, ConnectionState.DISCONNECTED));
+    }
+
+    private void completeOperation(GenericCallback<PerChannelBookieClient> op, int rc) {
+        if (ConnectionState.CLOSED == state) {
+            op.operationComplete(BKException.Code.ClientClosedException, this);
+            return;
+        }
+        op.operationComplete(rc, this);
+        if (ConnectionState.CLOSED == state) {
+            // the client was closed while the op was running, so the entries it registered may have
+            // been missed by the sweep in close(). Sweep again, erroring out twice is harmless.
+            errorOutOutstandingEntries(BKException.Code.ClientClosedException);
         }
     }
 
     protected long getNumPendingCompletionRequests() {
-        return completionObjects.size();
+        return completionObjects.size() + completionObjectsV2.size();
+    }
+
+    /**
+     * @return the number of add requests written to the channel and still waiting for a response
+     */
+    long getNumOutstandingAdds() {
+        return numOutstandingAdds.sum();
+    }
+
+    /**
+     * @return the number of read requests written to the channel and still waiting for a response
+     */
+    long getNumOutstandingReads() {
+        return numOutstandingReads.sum();
+    }
+
+    /**
+     * @return the bytes written to the channel and not yet flushed to the socket
+     */
+    long getBytesInFlight() {
+        return bytesInFlight.sum();
+    }
+
+    /**
+     * Latencies of all the operations completed on this channel, along with the requests and
+     * bytes currently in flight. Use a {@link LatencyCursor} to get the latencies of an interval.
+     */
+    public ChannelLatencySnapshot latencySnapshot() {
+        LatencyOp[] ops = LatencyOp.values();
+        LatencyHistogram.Interval[] intervals = new LatencyHistogram.Interval[ops.length];
+        for (int i = 0; i < ops.length; i++) {
+            intervals[i] = latencyHistograms[i].intervalSnapshot(null);
+        }
+        return new ChannelLatencySnapshot(addr, getNumOutstandingAdds(), getNumOutstandingReads(),
+                                          getBytesInFlight(), intervals);
+    }
+
+    /**
+     * @return a cursor whose first snapshot covers the operations completed from now on
+     */
+    public LatencyCursor newLatencyCursor() {
+        LatencyCursor cursor = new LatencyCursor();
+        cursor.snapshot();
+        return cursor;
+    }
+
+    /**
+     * Position of one consumer in the latencies of this channel. Each cursor keeps its own
+     * counts, so consumers taking interval snapshots do not take each other's samples.
+     */
+    public final class LatencyCursor {
+        private final long[][] lastCounts = new long[LatencyOp.values().length][LatencyHistogram.NUM_BUCKETS];
+
+        private LatencyCursor() {
+        }
+
+        /**
+         * Latencies of the operations completed on this channel since the previous snapshot of
+         * this cursor, along with the requests and bytes currently in flight.
+         */
+        public synchronized ChannelLatencySnapshot snapshot() {
+            LatencyHistogram.Interval[] intervals = new LatencyHistogram.Interval[lastCounts.length];
+            for (int i = 0; i < intervals.length; i++) {
+                intervals[i] = latencyHistograms[i].intervalSnapshot(lastCounts[i]);
+            }
+            return new ChannelLatencySnapshot(addr, getNumOutstandingAdds(), getNumOutstandingReads(),
+                                              getBytesInFlight(), intervals);
+        }
+    }
+
+    private ObjectName registerMXBean(String channelName) {
+        try {
+            ObjectName name = new ObjectName("org.apache.bookkeeper:type=PerChannelBookieClient,bookie="
+                    + ObjectName.quote(channelName) + ",id=" + System.identityHashCode(this));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new ChannelStats(), name);
+            return name;
+        } catch (JMException e) {
+            LOG.warn("Failed to register the channel stats of bookie {} in JMX", addr, e);
+            return null;
+        }
+    }
+
+    private void unregisterMXBean() {
+        if (mxBeanName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(mxBeanName);
+        } catch (JMException e) {
+            LOG.warn("Failed to unregister the channel stats of bookie {} from JMX", addr, e);
+        }
     }
 
     protected ChannelFuture connect() {
@@ -403,15 +638,22 @@ public class PerChannelBookieClient extends ChannelInboundHandlerAdapter {
                 ChannelPipeline pipeline = ch.pipeline();
 
                 pipeline.addLast("bytebufList", ByteBufList.ENCODER_WITH_SIZE);
+                pipeline.addLast("pendingBytes", new PendingBytesCounter());
                 pipeline.addLast("lengthbasedframedecoder",
                         new LengthFieldBasedFrameDecoder(maxFrameSize, 0, 4, 0, 4));
                 pipeline.addLast("lengthprepender", new LengthFieldPrepender(4));
+                if (writeBatchingEnabled) {
+                    // above the length prepender, which writes the length of a frame as a buffer of its own
+                    pipeline.addLast("writeBatcher", new WriteBatchingHandler());
+                }
                 pipeline.addLast("bookieProtoEncoder", new BookieProtoEncoding.RequestEncoder(extRegistry));
                 pipeline.addLast(
                     "bookieProtoDecoder",
                     new BookieProtoEncoding.ResponseDecoder(extRegistry, useV2WireProtocol));
                 pipeline.addLast("authHandler", new AuthHandler.ClientSideHandler(authProviderFactory, txnIdGenerator,
                             connectionPeer, useV2WireProtocol));
+                // above the auth handler, which only holds back encoded frames until authentication completes
+                pipeline.addLast("v3RequestEncoder", new V3RequestEncoder());
                 pipeline.addLast("mainhandler", PerChannelBookieClient.this);
             }
         });
@@ -449,82 +691,156 @@ public class PerChannelBookieClient extends ChannelInboundHandlerAdapter {
     }
 
     void connectIfNeededAndDoOp(GenericCallback<PerChannelBookieClient> op) {
-        boolean completeOpNow = false;
-        int opRc = BKException.Code.OK;
-        // common case without lock first
-        if (channel != null && state == ConnectionState.CONNECTED) {
-            completeOpNow = true;
-        } else {
+        // common case first
+        ConnectionState s = state;
+        if (channel != null && s == ConnectionState.CONNECTED) {
+            completeOperation(op, BKException.Code.OK);
+            return;
+        } else if (s == ConnectionState.CLOSED) {
+            completeOperation(op, BKException.Code.BookieHandleNotAvailableException);
+            return;
+        }
 
-            synchronized (this) {
-                // check the channel status again under lock
-                if (channel != null && state == ConnectionState.CONNECTED) {
-                    completeOpNow = true;
-                    opRc = BKException.Code.OK;
-                } else if (state == ConnectionState.CLOSED) {
-                    completeOpNow = true;
-                    opRc = BKException.Code.BookieHandleNotAvailableException;
-                } else {
-                    // channel is either null (first connection attempt), or the
-                    // channel is disconnected. Connection attempt is still in
-                    // progress, queue up this op. Op will be executed when
-                    // connection attempt either fails or succeeds
-                    pendingOps.add(op);
-
-                    if (state == ConnectionState.CONNECTING
-                        || state == ConnectionState.START_TLS) {
-                        // the connection request has already been sent and it is waiting for the response.
-                        return;
-                    }
-                    // switch state to connecting and do connection attempt
-                    state = ConnectionState.CONNECTING;
+        // channel is either null (first connection attempt), or the channel is
+        // disconnected. Queue up this op, it will be executed when the connection
+        // attempt either fails or succeeds
+        pendingOps.add(op);
+
+        while (true) {
+            s = state;
+            if (s == ConnectionState.DISCONNECTED) {
+                if (casState(ConnectionState.DISCONNECTED, ConnectionState.CONNECTING)) {
+                    // Start connection attempt to the input server host.
+                    connect();
+                    return;
+                }
+            } else if (s == ConnectionState.CONNECTING || s == ConnectionState.START_TLS) {
+                // the connection request has already been sent and it is waiting for the response,
+                // the op will be drained once the attempt completes.
+                return;
+            } else {
+                // the attempt completed while the op was being queued and may already have drained
+                // the queue, so drain it here as well.
+                drainPendingOps(s == ConnectionState.CONNECTED && channel != null
+                        ? BKException.Code.OK : BKException.Code.BookieHandleNotAvailableException,
+                        PerChannelBookieClient.this);
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return true if the channel is connected, and the connection handshakes (TLS, auth) are over
+     *         for a client that was warmed up
+     */
+    public boolean isConnected() {
+        return channel != null && state == ConnectionState.CONNECTED;
+    }
+
+    /**
+     * Connects the channel ahead of the first operation. With V3, a get bookie info request is then
+     * sent as a ping: the auth handler holds requests back until authentication is over, so its
+     * completion means the channel is usable end to end.
+     */
+    void warmUp(GenericCallback<PerChannelBookieClient> cb) {
+        connectIfNeededAndDoOp((rc, client) -> {
+            if (rc != BKException.Code.OK || useV2WireProtocol) {
+                cb.operationComplete(rc, PerChannelBookieClient.this);
+                return;
+            }
+            getBookieInfo(0L, (pingRc, bookieInfo, ctx) -> cb.operationComplete(pingRc, PerChannelBookieClient.this),
+                          null);
+        });
+    }
+
+    /**
+     * Warms up the given clients in parallel, with at most maxConcurrentWarmups connection attempts
+     * in flight, see {@link #warmUp(GenericCallback)}.
+     *
+     * @return the readiness of each bookie: OK if all its clients are ready, or the error code of one
+     *         that is not
+     */
+    static CompletableFuture<Map<BookieSocketAddress, Integer>> warmUp(Collection<PerChannelBookieClient> clients,
+                                                                     int maxConcurrentWarmups) {
+        checkArgument(maxConcurrentWarmups > 0, "maxConcurrentWarmups must be positive");
+        return new ChannelWarmup(clients).start(maxConcurrentWarmups);
+    }
+
+    /**
+     * State of a {@link #warmUp(Collection, int)} call. Each completed warm up starts the next one.
+     */
+    static class ChannelWarmup implements GenericCallback<PerChannelBookieClient> {
+        private final Iterator<PerChannelBookieClient> pending;
+        private final int total;
+        private final AtomicInteger completed = new AtomicInteger(0);
+        private final ConcurrentHashMap<BookieSocketAddress, Integer> readiness = new ConcurrentHashMap<>();
+        private final CompletableFuture<Map<BookieSocketAddress, Integer>> future = new CompletableFuture<>();
+
+        ChannelWarmup(Collection<PerChannelBookieClient> clients) {
+            this.pending = new ArrayList<>(clients).iterator();
+            this.total = clients.size();
+        }
+
+        CompletableFuture<Map<BookieSocketAddress, Integer>> start(int maxConcurrentWarmups) {
+            if (total == 0) {
+                future.complete(Collections.emptyMap());
+                return future;
+            }
+            for (int i = 0; i < maxConcurrentWarmups; i++) {
+                if (!warmUpNext()) {
+                    break;
                 }
             }
-            if (!completeOpNow) {
-                // Start connection attempt to the input server host.
-                connect();
+            return future;
+        }
+
+        private boolean warmUpNext() {
+            PerChannelBookieClient client;
+            synchronized (pending) {
+                if (!pending.hasNext()) {
+                    return false;
+                }
+                client = pending.next();
             }
+            client.warmUp(this);
+            return true;
         }
 
-        if (completeOpNow) {
-            completeOperation(op, opRc);
+        @Override
+        public void operationComplete(int rc, PerChannelBookieClient client) {
+            if (rc != BKException.Code.OK) {
+                LOG.warn("Failed to warm up the channel to bookie {} : {}", client.addr, BKException.getMessage(rc));
+            }
+            readiness.merge(client.addr, rc, (prev, cur) -> prev == BKException.Code.OK ? cur : prev);
+            if (completed.incrementAndGet() == total) {
+                future.complete(Collections.unmodifiableMap(readiness));
+            } else {
+                warmUpNext();
+            }
         }
+    }
 
+    private void drainPendingOps(int rc, PerChannelBookieClient client) {
+        GenericCallback<PerChannelBookieClient> pendingOp;
+        while ((pendingOp = pendingOps.poll()) != null) {
+            pendingOp.operationComplete(rc, client);
+        }
     }
 
     void writeLac(final long ledgerId, final byte[] masterKey, final long lac, ByteBufList toSend, WriteLacCallback cb,
             Object ctx) {
         final long txnId = getTxnId();
+        final MdcRequestContext requestContext = requestContext();
         final CompletionKey completionKey = new V3CompletionKey(txnId,
                                                                 OperationType.WRITE_LAC);
         // writeLac is mostly like addEntry hence uses addEntryTimeout
-        completionObjects.put(completionKey,
+        putCompletionKeyValue(completionKey,
                               new WriteLacCompletion(completionKey, cb,
-                                                     ctx, lac));
-
-        // Build the request
-        BKPacketHeader.Builder headerBuilder = BKPacketHeader.newBuilder()
-                .setVersion(ProtocolVersion.VERSION_THREE)
-                .setOperation(OperationType.WRITE_LAC)
-                .setTxnId(txnId);
-        ByteString body;
-        if (toSend.hasArray()) {
-            body = UnsafeByteOperations.unsafeWrap(toSend.array(), toSend.arrayOffset(), toSend.readableBytes());
-        } else if (toSend.size() == 1) {
-            body = UnsafeByteOperations.unsafeWrap(toSend.getBuffer(0).nioBuffer());
-        } else {
-            body = UnsafeByteOperations.unsafeWrap(toSend.toArray());
-        }
-        WriteLacRequest.Builder writeLacBuilder = WriteLacRequest.newBuilder()
-                .setLedgerId(ledgerId)
-                .setLac(lac)
-                .setMasterKey(UnsafeByteOperations.unsafeWrap(masterKey))
-                .setBody(body);
+                                                     ctx, lac), requestContext);
 
-        final Request writeLacRequest = withRequestContext(Request.newBuilder())
-                .setHeader(headerBuilder)
-                .setWriteLacRequest(writeLacBuilder)
-                .build();
+        // Build the request, the body is streamed from the buffers of toSend by V3RequestEncoder
+        final V3WriteLacRequest writeLacRequest = V3WriteLacRequest.create(txnId, ledgerId, lac, masterKey,
+                requestContext, toSend);
         writeAndFlush(channel, completionKey, writeLacRequest);
     }
 
@@ -537,12 +853,13 @@ public class PerChannelBookieClient extends ChannelInboundHandlerAdapter {
                 return;
         }
         final long txnId = getTxnId();
+        final MdcRequestContext requestContext = requestContext();
         final CompletionKey completionKey = new V3CompletionKey(txnId,
                                                                 OperationType.FORCE_LEDGER);
         // force is mostly like addEntry hence uses addEntryTimeout
-        completionObjects.put(completionKey,
+        putCompletionKeyValue(completionKey,
                               new ForceLedgerCompletion(completionKey, cb,
-                                                     ctx, ledgerId));
+                                                     ctx, ledgerId), requestContext);
 
         // Build the request
         BKPacketHeader.Builder headerBuilder = BKPacketHeader.newBuilder()
@@ -552,7 +869,7 @@ public class PerChannelBookieClient extends ChannelInboundHandlerAdapter {
         ForceLedgerRequest.Builder writeLacBuilder = ForceLedgerRequest.newBuilder()
                 .setLedgerId(ledgerId);
 
-        final Request forceLedgerRequest = withRequestContext(Request.newBuilder())
+        final Request forceLedgerRequest = requestContext.appendTo(Request.newBuilder())
                 .setHeader(headerBuilder)
                 .setForceLedgerRequest(writeLacBuilder)
                 .build();
@@ -582,6 +899,7 @@ public class PerChannelBookieClient extends ChannelInboundHandlerAdapter {
      */
     void addEntry(final long ledgerId, byte[] masterKey, final long entryId, ByteBufList toSend, WriteCallback cb,
                   Object ctx, final int options, boolean allowFastFail, final EnumSet<WriteFlag> writeFlags) {
+        final MdcRequestContext requestContext = requestContext();
         Object request = null;
         CompletionKey completionKey = null;
         if (useV2WireProtocol) {
@@ -600,47 +918,19 @@ public class PerChannelBookieClient extends ChannelInboundHandlerAdapter {
             final long txnId = getTxnId();
             completionKey = new V3CompletionKey(txnId, OperationType.ADD_ENTRY);
 
-            // Build the request and calculate the total size to be included in the packet.
-            BKPacketHeader.Builder headerBuilder = BKPacketHeader.newBuilder()
-                    .setVersion(ProtocolVersion.VERSION_THREE)
-                    .setOperation(OperationType.ADD_ENTRY)
-                    .setTxnId(txnId);
-            if (((short) options & BookieProtocol.FLAG_HIGH_PRIORITY) == BookieProtocol.FLAG_HIGH_PRIORITY) {
-                headerBuilder.setPriority(DEFAULT_HIGH_PRIORITY_VALUE);
-            }
-
-            ByteString body;
-            if (toSend.hasArray()) {
-                body = UnsafeByteOperations.unsafeWrap(toSend.array(), toSend.arrayOffset(), toSend.readableBytes());
-            } else if (toSend.size() == 1) {
-                body = UnsafeByteOperations.unsafeWrap(toSend.getBuffer(0).nioBuffer());
-            } else {
-                body = UnsafeByteOperations.unsafeWrap(toSend.toArray());
-            }
-            AddRequest.Builder addBuilder = AddRequest.newBuilder()
-                    .setLedgerId(ledgerId)
-                    .setEntryId(entryId)
-                    .setMasterKey(UnsafeByteOperations.unsafeWrap(masterKey))
-                    .setBody(body);
-
-            if (((short) options & BookieProtocol.FLAG_RECOVERY_ADD) == BookieProtocol.FLAG_RECOVERY_ADD) {
-                addBuilder.setFlag(AddRequest.Flag.RECOVERY_ADD);
-            }
-
-            if (!writeFlags.isEmpty()) {
-                // add flags only if needed, in order to be able to talk with old bookies
-                addBuilder.setWriteFlags(WriteFlag.getWriteFlagsValue(writeFlags));
-            }
-
-            request = withRequestContext(Request.newBuilder())
-                    .setHeader(headerBuilder)
-                    .setAddRequest(addBuilder)
-                    .build();
+            // the body is not copied into the request, V3RequestEncoder streams the buffers of toSend
+            request = V3AddRequest.create(txnId,
+                    ((short) options & BookieProtocol.FLAG_HIGH_PRIORITY) == BookieProtocol.FLAG_HIGH_PRIORITY,
+                    ledgerId, entryId, masterKey,
+                    ((short) options & BookieProtocol.FLAG_RECOVERY_ADD) == BookieProtocol.FLAG_RECOVERY_ADD,
+                    // add flags only if needed, in order to be able to talk with old bookies
+                    writeFlags.isEmpty() ? null : WriteFlag.getWriteFlagsValue(writeFlags),
+                    requestContext, toSend);
         }
 
         putCompletionKeyValue(completionKey,
                               acquireAddCompletion(completionKey,
-                                                   cb, ctx, ledgerId, entryId));
+                                                   cb, ctx, ledgerId, entryId), requestContext);
         final Channel c = channel;
         if (c == null) {
             // usually checked in writeAndFlush, but we have extra check
@@ -655,6 +945,7 @@ public class PerChannelBookieClient extends ChannelInboundHandlerAdapter {
     }
 
     public void readLac(final long ledgerId, ReadLacCallback cb, Object ctx) {
+        final MdcRequestContext requestContext = requestContext();
         Object request = null;
         CompletionKey completionKey = null;
         if (useV2WireProtocol) {
@@ -664,27 +955,21 @@ public class PerChannelBookieClient extends ChannelInboundHandlerAdapter {
         } else {
             final long txnId = getTxnId();
             completionKey = new V3CompletionKey(txnId, OperationType.READ_LAC);
-
-            // Build the request and calculate the total size to be included in the packet.
-            BKPacketHeader.Builder headerBuilder = BKPacketHeader.newBuilder()
-                    .setVersion(ProtocolVersion.VERSION_THREE)
-                    .setOperation(OperationType.READ_LAC)
-                    .setTxnId(txnId);
-            ReadLacRequest.Builder readLacBuilder = ReadLacRequest.newBuilder()
-                    .setLedgerId(ledgerId);
-            request = withRequestContext(Request.newBuilder())
-                    .setHeader(headerBuilder)
-                    .setReadLacRequest(readLacBuilder)
-                    .build();
+            request = new V3ReadLacRequest(txnId, ledgerId, requestContext);
         }
         putCompletionKeyValue(completionKey,
                               new ReadLacCompletion(completionKey, cb,
-                                                    ctx, ledgerId));
+                                                    ctx, ledgerId), requestContext);
         writeAndFlush(channel, completionKey, request);
     }
 
     /**
      * Long Poll Reads.
+     *
+     * <p>When long poll multiplexing is enabled, a call identical to a long poll already pending on
+     * this channel joins it instead of sending its own request. A reader that joins late is then
+     * bound by what is left of the timeout of the pending poll, not by its own timeOutInMillis, and
+     * may see the poll time out earlier than it asked for.
      */
     public void readEntryWaitForLACUpdate(final long ledgerId,
                                           final long entryId,
@@ -694,7 +979,7 @@ public class PerChannelBookieClient extends ChannelInboundHandlerAdapter {
                                           ReadEntryCallback cb,
                                           Object ctx) {
         readEntryInternal(ledgerId, entryId, previousLAC, timeOutInMillis,
-                          piggyBackEntry, cb, ctx, (short) 0, null, false);
+                          piggyBackEntry, cb, ctx, (short) 0, null, false, true);
     }
 
     /**
@@ -708,19 +993,70 @@ public class PerChannelBookieClient extends ChannelInboundHandlerAdapter {
                           byte[] masterKey,
                           boolean allowFastFail) {
         readEntryInternal(ledgerId, entryId, null, null, false,
-                          cb, ctx, (short) flags, masterKey, allowFastFail);
-    }
-
-    private void readEntryInternal(final long ledgerId,
-                                   final long entryId,
-                                   final Long previousLAC,
-                                   final Long timeOutInMillis,
-                                   final boolean piggyBackEntry,
-                                   final ReadEntryCallback cb,
-                                   final Object ctx,
-                                   int flags,
-                                   byte[] masterKey,
-                                   boolean allowFastFail) {
+                          cb, ctx, (short) flags, masterKey, allowFastFail, true);
+    }
+
+    /**
+     * Callback for {@link #readEntries}.
+     */
+    interface ReadEntriesCallback extends ReadEntryCallback {
+        /**
+         * Called once no more entries will be delivered, either because the whole range was read,
+         * because maxBytes was reached, or because a read failed.
+         *
+         * @param lastEntryId the last entry delivered to {@link #readEntryComplete}, or firstEntryId - 1
+         */
+        void readEntriesComplete(int rc, long ledgerId, long lastEntryId, Object ctx);
+    }
+
+    /**
+     * Range Reads.
+     *
+     * <p>Reads the entries from firstEntryId to lastEntryId, delivering the successful ones to
+     * {@link ReadEntriesCallback#readEntryComplete} in entry order. The reads are pipelined: a
+     * window of requests is written to the channel with a single flush, and the window is refilled
+     * as the entries are delivered. No entries are requested once the delivered entries add up to
+     * maxBytes, so the range can end early.
+     */
+    public void readEntries(final long ledgerId,
+                            final long firstEntryId,
+                            final long lastEntryId,
+                            final long maxBytes,
+                            ReadEntriesCallback cb,
+                            Object ctx) {
+        new ReadEntriesOp(ledgerId, firstEntryId, lastEntryId, maxBytes, cb, ctx).issueReads();
+    }
+
+    private ReadCompletion readEntryInternal(final long ledgerId,
+                                             final long entryId,
+                                             final Long previousLAC,
+                                             final Long timeOutInMillis,
+                                             final boolean piggyBackEntry,
+                                             final ReadEntryCallback cb,
+                                             final Object ctx,
+                                             int flags,
+                                             byte[] masterKey,
+                                             boolean allowFastFail,
+                                             boolean flush) {
+        // fencing and long poll reads have side effects or wait on purpose, they are never shared
+        final boolean coalescible = readCoalescingEnabled
+                && previousLAC == null && timeOutInMillis == null && !piggyBackEntry
+                && ((short) flags & BookieProtocol.FLAG_DO_FENCING) != BookieProtocol.FLAG_DO_FENCING;
+        if (coalescible) {
+            ReadCompletion inflight = inflightReads.get(ledgerId, entryId, OperationType.READ_ENTRY.getNumber());
+            if (inflight != null && inflight.join(cb, ctx)) {
+                coalescedReads.inc();
+                return null;
+            }
+        }
+        final LongPollKey pollKey = lacSubscriptions != null && timeOutInMillis != null && previousLAC != null
+                && ((short) flags & BookieProtocol.FLAG_DO_FENCING) != BookieProtocol.FLAG_DO_FENCING
+                ? new LongPollKey(ledgerId, entryId, previousLAC, piggyBackEntry) : null;
+        if (pollKey != null && lacSubscriptions.join(pollKey, cb, ctx)) {
+            return null;
+        }
+
+        final MdcRequestContext requestContext = requestContext();
         Object request = null;
         CompletionKey completionKey = null;
         if (useV2WireProtocol) {
@@ -731,98 +1067,209 @@ public class PerChannelBookieClient extends ChannelInboundHandlerAdapter {
             final long txnId = getTxnId();
             completionKey = new V3CompletionKey(txnId, OperationType.READ_ENTRY);
 
-            // Build the request and calculate the total size to be included in the packet.
-            BKPacketHeader.Builder headerBuilder = BKPacketHeader.newBuilder()
-                    .setVersion(ProtocolVersion.VERSION_THREE)
-                    .setOperation(OperationType.READ_ENTRY)
-                    .setTxnId(txnId);
-            if (((short) flags & BookieProtocol.FLAG_HIGH_PRIORITY) == BookieProtocol.FLAG_HIGH_PRIORITY) {
-                headerBuilder.setPriority(DEFAULT_HIGH_PRIORITY_VALUE);
-            }
-
-            ReadRequest.Builder readBuilder = ReadRequest.newBuilder()
-                    .setLedgerId(ledgerId)
-                    .setEntryId(entryId);
-
-            if (null != previousLAC) {
-                readBuilder = readBuilder.setPreviousLAC(previousLAC);
-            }
-
-            if (null != timeOutInMillis) {
-                // Long poll requires previousLAC
-                if (null == previousLAC) {
-                    cb.readEntryComplete(BKException.Code.IncorrectParameterException,
-                        ledgerId, entryId, null, ctx);
-                    return;
-                }
-                readBuilder = readBuilder.setTimeOut(timeOutInMillis);
-            }
-
-            if (piggyBackEntry) {
+            if ((null != timeOutInMillis || piggyBackEntry) && null == previousLAC) {
                 // Long poll requires previousLAC
-                if (null == previousLAC) {
-                    cb.readEntryComplete(BKException.Code.IncorrectParameterException,
-                        ledgerId, entryId, null, ctx);
-                    return;
-                }
-                readBuilder = readBuilder.setFlag(ReadRequest.Flag.ENTRY_PIGGYBACK);
+                cb.readEntryComplete(BKException.Code.IncorrectParameterException,
+                    ledgerId, entryId, null, ctx);
+                return null;
             }
+            ReadRequest.Flag flag = piggyBackEntry ? ReadRequest.Flag.ENTRY_PIGGYBACK : null;
+            byte[] fencingKey = null;
 
             // Only one flag can be set on the read requests
             if (((short) flags & BookieProtocol.FLAG_DO_FENCING) == BookieProtocol.FLAG_DO_FENCING) {
-                readBuilder.setFlag(ReadRequest.Flag.FENCE_LEDGER);
                 if (masterKey == null) {
                     cb.readEntryComplete(BKException.Code.IncorrectParameterException,
                                          ledgerId, entryId, null, ctx);
-                    return;
+                    return null;
                 }
-                readBuilder.setMasterKey(ByteString.copyFrom(masterKey));
+                flag = ReadRequest.Flag.FENCE_LEDGER;
+                fencingKey = masterKey;
             }
 
-            request = withRequestContext(Request.newBuilder())
-                    .setHeader(headerBuilder)
-                    .setReadRequest(readBuilder)
-                    .build();
+            request = new V3ReadRequest(txnId,
+                    ((short) flags & BookieProtocol.FLAG_HIGH_PRIORITY) == BookieProtocol.FLAG_HIGH_PRIORITY,
+                    ledgerId, entryId, fencingKey, previousLAC, timeOutInMillis, flag, requestContext);
         }
 
         ReadCompletion readCompletion = new ReadCompletion(completionKey, cb, ctx, ledgerId, entryId);
-        putCompletionKeyValue(completionKey, readCompletion);
+        // long poll reads are slow on purpose, they would only skew the concurrency limit
+        readCompletion.concurrencyLimited = timeOutInMillis == null;
+        readCompletion.tracksReadLatency = timeOutInMillis == null;
+        putCompletionKeyValue(completionKey, readCompletion, requestContext);
+        if (coalescible) {
+            readCompletion.coalescible = true;
+            inflightReads.put(ledgerId, entryId, OperationType.READ_ENTRY.getNumber(), readCompletion);
+        } else if (pollKey != null) {
+            readCompletion.pollKey = pollKey;
+            lacSubscriptions.register(pollKey, readCompletion);
+        }
+
+        write(channel, completionKey, request, allowFastFail, flush);
+        return readCompletion;
+    }
+
+    /**
+     * Normal read that can be withdrawn with {@link #cancelRead} while it is in flight.
+     *
+     * @return the pending read, or null if it cannot be cancelled: the request was rejected
+     *         before being sent, or the read joined an identical read already in flight
+     */
+    ReadCompletion readEntryCancellable(final long ledgerId,
+                                        final long entryId,
+                                        ReadEntryCallback cb,
+                                        Object ctx,
+                                        int flags,
+                                        byte[] masterKey) {
+        return readEntryInternal(ledgerId, entryId, null, null, false,
+                                 cb, ctx, (short) flags, masterKey, true, true);
+    }
+
+    /**
+     * Withdraws a read issued by {@link #readEntryCancellable}. Its callback will not be called, and
+     * the response, if the bookie still sends one, is dropped and released on arrival.
+     *
+     * @return false if the read had already completed, failed or timed out, or if other reads joined it
+     */
+    boolean cancelRead(ReadCompletion completion) {
+        if (!completion.closeIfNotJoined()) {
+            // other reads are waiting on this one
+            return false;
+        }
+        if (!removeCompletionValue(completion.key, completion)) {
+            return false;
+        }
+        timeoutWheel.cancel(completion);
+        completion.cancelOutstanding();
+        if (completion.concurrencyLimited && concurrencyLimiter != null) {
+            concurrencyLimiter.onCancel();
+        }
+        // the key is not released: a failing write may still look it up
+        return true;
+    }
+
+    /**
+     * Latency under which the given percentile of the recent successful reads completed.
+     *
+     * @return the latency in nanos, or -1 if too few reads were sampled yet
+     */
+    long getReadLatencyPercentileNanos(double percentile) {
+        return readLatencyTracker.percentileNanos(percentile);
+    }
+
+    /**
+     * State of a {@link #readEntries} call. The responses come back in any order; they are parked in
+     * a ring indexed by entry id until all the entries before them have been delivered.
+     */
+    class ReadEntriesOp implements ReadEntryCallback {
+        private static final int WINDOW = 64;
+
+        private final long ledgerId;
+        private final long lastEntryId;
+        private final long maxBytes;
+        private final ReadEntriesCallback cb;
+        private final Object ctx;
+
+        private final int[] rcs = new int[WINDOW];
+        private final ByteBuf[] buffers = new ByteBuf[WINDOW];
+        private final boolean[] received = new boolean[WINDOW];
+        private long nextToIssue;
+        private long nextToDeliver;
+        private long bytesDelivered = 0;
+        private boolean done = false;
+
+        ReadEntriesOp(long ledgerId, long firstEntryId, long lastEntryId, long maxBytes,
+                      ReadEntriesCallback cb, Object ctx) {
+            this.ledgerId = ledgerId;
+            this.lastEntryId = lastEntryId;
+            this.maxBytes = maxBytes;
+            this.cb = cb;
+            this.ctx = ctx;
+            this.nextToIssue = firstEntryId;
+            this.nextToDeliver = firstEntryId;
+        }
+
+        synchronized void issueReads() {
+            if (nextToDeliver > lastEntryId) {
+                finish(BKException.Code.OK);
+                return;
+            }
+            boolean issued = false;
+            while (!done && nextToIssue <= lastEntryId && nextToIssue - nextToDeliver < WINDOW) {
+                readEntryInternal(ledgerId, nextToIssue++, null, null, false,
+                                  this, ctx, (short) 0, null, false, false);
+                issued = true;
+            }
+            final Channel c = channel;
+            if (issued && c != null) {
+                c.flush();
+            }
+        }
+
+        @Override
+        public synchronized void readEntryComplete(int rc, long ledgerId, long entryId, ByteBuf buffer, Object ctx) {
+            if (done || entryId < nextToDeliver || entryId >= nextToDeliver + WINDOW) {
+                return;
+            }
+            int slot = (int) (entryId % WINDOW);
+            rcs[slot] = rc;
+            // the buffer is only valid during the callback, keep it until the entry is delivered
+            buffers[slot] = rc == BKException.Code.OK && buffer != null ? buffer.retain() : null;
+            received[slot] = true;
+
+            while (!done && received[(int) (nextToDeliver % WINDOW)]) {
+                slot = (int) (nextToDeliver % WINDOW);
+                received[slot] = false;
+                ByteBuf entry = buffers[slot];
+                buffers[slot] = null;
+                if (rcs[slot] != BKException.Code.OK) {
+                    finish(rcs[slot]);
+                    break;
+                }
+                try {
+                    bytesDelivered += entry.readableBytes();
+                    cb.readEntryComplete(BKException.Code.OK, ledgerId, nextToDeliver, entry, this.ctx);
+                } finally {
+                    entry.release();
+                }
+                nextToDeliver++;
+                if (nextToDeliver > lastEntryId || bytesDelivered >= maxBytes) {
+                    finish(BKException.Code.OK);
+                }
+            }
+            if (!done) {
+                issueReads();
+            }
+        }
 
-        writeAndFlush(channel, completionKey, request, allowFastFail);
+        private void finish(int rc) {
+            done = true;
+            for (int i = 0; i < WINDOW; i++) {
+                if (buffers[i] != null) {
+                    buffers[i].release();
+                    buffers[i] = null;
+                }
+            }
+            cb.readEntriesComplete(rc, ledgerId, nextToDeliver - 1, ctx);
+        }
     }
 
     public void getBookieInfo(final long requested, GetBookieInfoCallback cb, Object ctx) {
         final long txnId = getTxnId();
+        final MdcRequestContext requestContext = requestContext();
         final CompletionKey completionKey = new V3CompletionKey(txnId, OperationType.GET_BOOKIE_INFO);
-        completionObjects.put(completionKey,
+        putCompletionKeyValue(completionKey,
                               new GetBookieInfoCompletion(
-                                      completionKey, cb, ctx));
-
-        // Build the request and calculate the total size to be included in the packet.
-        BKPacketHeader.Builder headerBuilder = BKPacketHeader.newBuilder()
-                .setVersion(ProtocolVersion.VERSION_THREE)
-                .setOperation(OperationType.GET_BOOKIE_INFO)
-                .setTxnId(txnId);
+                                      completionKey, cb, ctx), requestContext);
 
-        GetBookieInfoRequest.Builder getBookieInfoBuilder = GetBookieInfoRequest.newBuilder()
-                .setRequested(requested);
-
-        final Request getBookieInfoRequest = withRequestContext(Request.newBuilder())
-                .setHeader(headerBuilder)
-                .setGetBookieInfoRequest(getBookieInfoBuilder)
-                .build();
+        final V3GetBookieInfoRequest getBookieInfoRequest =
+                new V3GetBookieInfoRequest(txnId, requested, requestContext);
 
         writeAndFlush(channel, completionKey, getBookieInfoRequest);
     }
 
-    private static final BiPredicate<CompletionKey, CompletionValue> timeoutCheck = (key, value) -> {
-        return value.maybeTimeout();
-    };
-
     public void checkTimeoutOnPendingOperations() {
-        int timedOutOperations = completionObjects.removeIf(timeoutCheck);
-
-        timedOutOperations += completionObjectsV2Conflicts.removeIf(timeoutCheck);
+        int timedOutOperations = timeoutWheel.expire(MathUtils.nowInNano());
 
         if (timedOutOperations > 0) {
             LOG.info("Timed-out {} operations to channel {} for {}",
@@ -851,16 +1298,13 @@ public class PerChannelBookieClient extends ChannelInboundHandlerAdapter {
 
     public void close(boolean wait) {
         LOG.info("Closing the per channel bookie client for {}", addr);
-        closeLock.writeLock().lock();
-        try {
-            if (ConnectionState.CLOSED == state) {
-                return;
-            }
-            state = ConnectionState.CLOSED;
-            errorOutOutstandingEntries(BKException.Code.ClientClosedException);
-        } finally {
-            closeLock.writeLock().unlock();
+        if (ConnectionState.CLOSED == STATE_UPDATER.getAndSet(this, ConnectionState.CLOSED)) {
+            return;
         }
+        // ops running concurrently sweep again once they notice the client is closed,
+        // see completeOperation
+        errorOutOutstandingEntries(BKException.Code.ClientClosedException);
+        unregisterMXBean();
 
         if (channel != null && channel.pipeline().get(SslHandler.class) != null) {
             activeTlsChannelCounter.dec();
@@ -872,17 +1316,15 @@ public class PerChannelBookieClient extends ChannelInboundHandlerAdapter {
     }
 
     private void closeInternal(boolean permanent, boolean wait) {
-        Channel toClose = null;
-        synchronized (this) {
-            if (permanent) {
-                state = ConnectionState.CLOSED;
-            } else if (state != ConnectionState.CLOSED) {
-                state = ConnectionState.DISCONNECTED;
-            }
-            toClose = channel;
-            channel = null;
-            makeWritable();
+        // swap the channel out before leaving CONNECTED: once the state moves, a new connect may
+        // publish its own channel, which must neither be closed nor nulled out here
+        Channel toClose = CHANNEL_UPDATER.getAndSet(this, null);
+        if (permanent) {
+            state = ConnectionState.CLOSED;
+        } else {
+            markDisconnected();
         }
+        makeWritable();
         if (toClose != null) {
             ChannelFuture cf = closeChannel(toClose);
             if (wait) {
@@ -898,8 +1340,136 @@ public class PerChannelBookieClient extends ChannelInboundHandlerAdapter {
         return c.close().addListener(x -> makeWritable());
     }
 
-    @Override
-    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+    /**
+     * Counts the bytes of the frames written to the channel until their promise completes, that
+     * is until they are handed to the socket or fail. Unlike the outbound buffer of the channel,
+     * the count can be read from any thread.
+     */
+    class PendingBytesCounter extends ChannelOutboundHandlerAdapter {
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+            final long bytes;
+            if (msg instanceof ByteBuf) {
+                bytes = ((ByteBuf) msg).readableBytes();
+            } else if (msg instanceof ByteBufList) {
+                bytes = ((ByteBufList) msg).readableBytes();
+            } else {
+                bytes = 0;
+            }
+            if (bytes > 0) {
+                bytesInFlight.add(bytes);
+                promise = promise.unvoid();
+                promise.addListener(future -> bytesInFlight.add(-bytes));
+            }
+            ctx.write(msg, promise);
+        }
+    }
+
+    /**
+     * Coalesces the flushes issued by {@link #writeAndFlush} so that many small requests
+     * (typically adds) leave the channel in a single write syscall. The handler sits right
+     * below the request encoders, so it sees every encoded request as a single write and counts
+     * one entry per write. Pending writes are flushed as soon as the entry or byte threshold is
+     * crossed, even if no flush was requested yet, and otherwise when the event loop has drained
+     * the tasks queued ahead of the flush, or when the batch deadline passes, whichever comes
+     * first. Every request keeps its own promise, so
+     * completions and timeouts are still tracked per entry.
+     *
+     * <p>All state is confined to the channel's event loop.
+     */
+    class WriteBatchingHandler extends ChannelDuplexHandler {
+        private ChannelHandlerContext ctx;
+        private int pendingEntries = 0;
+        private long pendingBytes = 0;
+        private long batchStartTime = 0;
+        private boolean idleFlushScheduled = false;
+        private ScheduledFuture<?> deadlineFlush = null;
+
+        private final Runnable flushTask = () -> flushPending();
+
+        @Override
+        public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+            this.ctx = ctx;
+        }
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+            if (pendingEntries++ == 0) {
+                batchStartTime = MathUtils.nowInNano();
+            }
+            if (msg instanceof ByteBuf) {
+                pendingBytes += ((ByteBuf) msg).readableBytes();
+            } else if (msg instanceof ByteBufList) {
+                pendingBytes += ((ByteBufList) msg).readableBytes();
+            }
+            ctx.write(msg, promise);
+            if (pendingEntries >= writeBatchingMaxEntries || pendingBytes >= writeBatchingMaxBytes) {
+                flushPending();
+            }
+        }
+
+        @Override
+        public void flush(ChannelHandlerContext ctx) throws Exception {
+            if (pendingEntries == 0) {
+                // the writes were already flushed when they crossed a threshold
+                return;
+            }
+            if (!idleFlushScheduled) {
+                // runs once the event loop has gone through the writes already queued behind this one
+                idleFlushScheduled = true;
+                ctx.executor().execute(flushTask);
+            }
+            if (deadlineFlush == null) {
+                deadlineFlush = ctx.executor().schedule(flushTask, writeBatchingMaxDelayNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+            if (!ctx.channel().isWritable()) {
+                // let the pending writes drain instead of holding them back behind the watermark
+                flushPending();
+            }
+            ctx.fireChannelWritabilityChanged();
+        }
+
+        @Override
+        public void close(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+            flushPending();
+            ctx.close(promise);
+        }
+
+        @Override
+        public void disconnect(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+            flushPending();
+            ctx.disconnect(promise);
+        }
+
+        @Override
+        public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+            flushPending();
+        }
+
+        private void flushPending() {
+            idleFlushScheduled = false;
+            if (deadlineFlush != null) {
+                deadlineFlush.cancel(false);
+                deadlineFlush = null;
+            }
+            if (pendingEntries == 0) {
+                return;
+            }
+            nettyBatchSizeLogger.registerSuccessfulValue(pendingEntries);
+            nettyBatchLatencyLogger.registerSuccessfulEvent(MathUtils.elapsedNanos(batchStartTime),
+                                                            TimeUnit.NANOSECONDS);
+            pendingEntries = 0;
+            pendingBytes = 0;
+            ctx.flush();
+        }
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
         final Channel c = channel;
         if (c == null || c.isWritable()) {
             makeWritable();
@@ -917,8 +1487,21 @@ public class PerChannelBookieClient extends ChannelInboundHandlerAdapter {
                            final CompletionKey key,
                            final Object request,
                            final boolean allowFastFail) {
+        write(channel, key, request, allowFastFail, true);
+    }
+
+    /**
+     * Writes the request to the channel, flushing it only if asked to. Requests written without
+     * a flush leave the channel at the next flush of the channel.
+     */
+    private void write(final Channel channel,
+                       final CompletionKey key,
+                       final Object request,
+                       final boolean allowFastFail,
+                       final boolean flush) {
         if (channel == null) {
             LOG.warn("Operation {} failed: channel == null", StringUtils.requestToString(request));
+            releaseUnsent(request);
             errorOut(key);
             return;
         }
@@ -933,6 +1516,18 @@ public class PerChannelBookieClient extends ChannelInboundHandlerAdapter {
             LOG.warn("Operation {} failed: TooManyRequestsException",
                     StringUtils.requestToString(request));
 
+            releaseUnsent(request);
+            errorOut(key, BKException.Code.TooManyRequestsException);
+            return;
+        }
+
+        if (allowFastFail && concurrencyLimiter != null && concurrencyLimiter.isOverLimit()) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Operation {} failed: TooManyRequestsException, concurrency limit {} reached",
+                        StringUtils.requestToString(request), concurrencyLimiter.getLimit());
+            }
+            concurrencyLimitRejected.inc();
+            releaseUnsent(request);
             errorOut(key, BKException.Code.TooManyRequestsException);
             return;
         }
@@ -942,8 +1537,10 @@ public class PerChannelBookieClient extends ChannelInboundHandlerAdapter {
 
             ChannelPromise promise = channel.newPromise().addListener(future -> {
                 if (future.isSuccess()) {
-                    nettyOpLogger.registerSuccessfulEvent(MathUtils.elapsedNanos(startTime), TimeUnit.NANOSECONDS);
-                    CompletionValue completion = completionObjects.get(key);
+                    final long latency = MathUtils.elapsedNanos(startTime);
+                    nettyOpLogger.registerSuccessfulEvent(latency, TimeUnit.NANOSECONDS);
+                    latencyHistograms[LatencyOp.NETTY_WRITE.ordinal()].record(latency);
+                    CompletionValue completion = peekCompletionValue(key);
                     if (completion != null) {
                         completion.setOutstanding();
                     }
@@ -952,23 +1549,31 @@ public class PerChannelBookieClient extends ChannelInboundHandlerAdapter {
                 }
             });
 
-            channel.writeAndFlush(request, promise);
+            if (flush) {
+                channel.writeAndFlush(request, promise);
+            } else {
+                channel.write(request, promise);
+            }
         } catch (Throwable e) {
             LOG.warn("Operation {} failed", StringUtils.requestToString(request), e);
             errorOut(key);
         }
     }
 
+    /**
+     * Releases the body retained by a request that will never reach the encoder.
+     */
+    private static void releaseUnsent(Object request) {
+        ReferenceCountUtil.release(request);
+    }
+
     void errorOut(final CompletionKey key) {
         if (LOG.isDebugEnabled()) {
             LOG.debug("Removing completion key: {}", key);
         }
-        CompletionValue completion = completionObjects.remove(key);
+        CompletionValue completion = getCompletionValue(key);
         if (completion != null) {
             completion.errorOut();
-        } else {
-            // If there's no completion object here, try in the multimap
-            completionObjectsV2Conflicts.removeAny(key).ifPresent(c -> c.errorOut());
         }
     }
 
@@ -976,12 +1581,9 @@ public class PerChannelBookieClient extends ChannelInboundHandlerAdapter {
         if (LOG.isDebugEnabled()) {
             LOG.debug("Removing completion key: {}", key);
         }
-        CompletionValue completion = completionObjects.remove(key);
+        CompletionValue completion = getCompletionValue(key);
         if (completion != null) {
             completion.errorOut(rc);
-        } else {
-            // If there's no completion object here, try in the multimap
-            completionObjectsV2Conflicts.removeAny(key).ifPresent(c -> c.errorOut(rc));
         }
     }
 
@@ -991,15 +1593,7 @@ public class PerChannelBookieClient extends ChannelInboundHandlerAdapter {
      * will be sent to completion with error.
      */
     void errorOutPendingOps(int rc) {
-        Queue<GenericCallback<PerChannelBookieClient>> oldPendingOps;
-        synchronized (this) {
-            oldPendingOps = pendingOps;
-            pendingOps = new ArrayDeque<>();
-        }
-
-        for (GenericCallback<PerChannelBookieClient> pendingOp : oldPendingOps) {
-            pendingOp.operationComplete(rc, PerChannelBookieClient.this);
-        }
+        drainPendingOps(rc, PerChannelBookieClient.this);
     }
 
     /**
@@ -1010,11 +1604,10 @@ public class PerChannelBookieClient extends ChannelInboundHandlerAdapter {
      */
 
     void errorOutOutstandingEntries(int rc) {
-        Optional<CompletionKey> multikey = completionObjectsV2Conflicts.getAnyKey();
-        while (multikey.isPresent()) {
-            multikey.ifPresent(k -> errorOut(k, rc));
-            multikey = completionObjectsV2Conflicts.getAnyKey();
-        }
+        completionObjectsV2.removeAll(c -> {
+            timeoutWheel.cancel(c);
+            c.errorOut(rc);
+        });
         for (CompletionKey key : completionObjects.keys()) {
             errorOut(key, rc);
         }
@@ -1033,6 +1626,11 @@ public class PerChannelBookieClient extends ChannelInboundHandlerAdapter {
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
         LOG.info("Disconnected from bookie channel {}", ctx.channel());
         if (ctx.channel() != null) {
+            // responses already read off the wire still complete normally
+            ResponseDispatcher dispatcher = ctx.channel().attr(RESPONSE_DISPATCHER).getAndSet(null);
+            if (dispatcher != null) {
+                dispatcher.dispatch();
+            }
             closeChannel(ctx.channel());
             if (ctx.channel().pipeline().get(SslHandler.class) != null) {
                 activeTlsChannelCounter.dec();
@@ -1044,10 +1642,10 @@ public class PerChannelBookieClient extends ChannelInboundHandlerAdapter {
         errorOutOutstandingEntries(BKException.Code.BookieHandleNotAvailableException);
         errorOutPendingOps(BKException.Code.BookieHandleNotAvailableException);
 
-        synchronized (this) {
-            if (this.channel == ctx.channel()
-                && state != ConnectionState.CLOSED) {
-                state = ConnectionState.DISCONNECTED;
+        if (this.channel == ctx.channel()) {
+            // only an established connection is torn down here, an attempt in progress owns its own state
+            if (!casState(ConnectionState.CONNECTED, ConnectionState.DISCONNECTED)) {
+                casState(ConnectionState.START_TLS, ConnectionState.DISCONNECTED);
             }
         }
 
@@ -1099,15 +1697,13 @@ public class PerChannelBookieClient extends ChannelInboundHandlerAdapter {
             return;
         }
 
-        synchronized (this) {
-            if (state == ConnectionState.CLOSED) {
-                if (LOG.isDebugEnabled()) {
-                    LOG.debug("Unexpected exception caught by bookie client channel handler, "
-                            + "but the client is closed, so it isn't important", cause);
-                }
-            } else {
-                LOG.error("Unexpected exception caught by bookie client channel handler", cause);
+        if (state == ConnectionState.CLOSED) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Unexpected exception caught by bookie client channel handler, "
+                        + "but the client is closed, so it isn't important", cause);
             }
+        } else {
+            LOG.error("Unexpected exception caught by bookie client channel handler", cause);
         }
 
         // Since we are a library, cant terminate App here, can we?
@@ -1122,22 +1718,47 @@ public class PerChannelBookieClient extends ChannelInboundHandlerAdapter {
 
         if (msg instanceof BookieProtocol.Response) {
             BookieProtocol.Response response = (BookieProtocol.Response) msg;
-            readV2Response(response);
+            readV2Response(responseDispatcher(ctx), response);
         } else if (msg instanceof Response) {
             Response response = (Response) msg;
-            readV3Response(response);
+            readV3Response(responseDispatcher(ctx), response);
         } else {
             ctx.fireChannelRead(msg);
         }
     }
 
-    private void readV2Response(final BookieProtocol.Response response) {
+    /**
+     * Called by netty once the current read cycle is over. The responses collected since the
+     * previous cycle are handed to the executor, one task per ledger.
+     */
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        ResponseDispatcher dispatcher = ctx.channel().attr(RESPONSE_DISPATCHER).get();
+        if (dispatcher != null) {
+            dispatcher.dispatch();
+        }
+        ctx.fireChannelReadComplete();
+    }
+
+    private ResponseDispatcher responseDispatcher(ChannelHandlerContext ctx) {
+        Attribute<ResponseDispatcher> attr = ctx.channel().attr(RESPONSE_DISPATCHER);
+        ResponseDispatcher dispatcher = attr.get();
+        if (dispatcher == null) {
+            dispatcher = new ResponseDispatcher();
+            attr.set(dispatcher);
+        }
+        return dispatcher;
+    }
+
+    private void readV2Response(ResponseDispatcher dispatcher, final BookieProtocol.Response response) {
         OperationType operationType = getOperationType(response.getOpCode());
         StatusCode status = getStatusCodeFromErrorCode(response.errorCode);
 
-        CompletionKey key = acquireV2Key(response.ledgerId, response.entryId, operationType);
-        CompletionValue completionValue = getCompletionValue(key);
-        key.release();
+        CompletionValue completionValue = completionObjectsV2.removeAny(
+                response.ledgerId, response.entryId, operationType.getNumber());
+        if (null != completionValue) {
+            timeoutWheel.cancel(completionValue);
+        }
 
         if (null == completionValue) {
             // Unexpected response, so log it. The txnId should have been present.
@@ -1147,952 +1768,3034 @@ public class PerChannelBookieClient extends ChannelInboundHandlerAdapter {
             }
             response.release();
         } else {
+            dispatcher.add(completionValue, response, status);
+        }
+    }
+
+    /**
+     * Collects the responses read from one channel during a read cycle, grouped by ordering key.
+     * It is only ever touched from the channel's event loop, so it needs no synchronization.
+     *
+     * <p>Responses of the same ledger keep their arrival order inside a batch, and batches of a
+     * ledger are submitted to the same ordered executor thread in cycle order, so the ordering
+     * guarantees are the same as submitting every response on its own.
+     */
+    class ResponseDispatcher {
+        private final LongObjectHashMap<ResponseBatch> batches = new LongObjectHashMap<>();
+        private final ArrayList<ResponseBatch> order = new ArrayList<>();
+
+        void add(CompletionValue completionValue, Object response, StatusCode status) {
             long orderingKey = completionValue.ledgerId;
-            executor.executeOrdered(orderingKey,
-                    ReadV2ResponseCallback.create(completionValue, response.ledgerId, response.entryId,
-                                                  status, response));
+            ResponseBatch batch = batches.get(orderingKey);
+            if (batch == null) {
+                batch = ResponseBatch.create(orderingKey);
+                batches.put(orderingKey, batch);
+                order.add(batch);
+            }
+            batch.add(completionValue, response, status);
+        }
+
+        void dispatch() {
+            if (order.isEmpty()) {
+                return;
+            }
+            for (int i = 0; i < order.size(); i++) {
+                ResponseBatch batch = order.get(i);
+                executor.executeOrdered(batch.orderingKey, batch);
+            }
+            order.clear();
+            batches.clear();
         }
     }
 
-    private static class ReadV2ResponseCallback extends SafeRunnable {
-        CompletionValue completionValue;
-        long ledgerId;
-        long entryId;
-        StatusCode status;
-        BookieProtocol.Response response;
+    /**
+     * Completes the responses of a single ledger read in one cycle, in arrival order.
+     */
+    private static class ResponseBatch extends SafeRunnable {
+        private static final int INITIAL_CAPACITY = 8;
+
+        long orderingKey;
+        int size;
+        CompletionValue[] completionValues = new CompletionValue[INITIAL_CAPACITY];
+        Object[] responses = new Object[INITIAL_CAPACITY];
+        StatusCode[] statuses = new StatusCode[INITIAL_CAPACITY];
+
+        static ResponseBatch create(long orderingKey) {
+            ResponseBatch batch = RECYCLER.get();
+            batch.orderingKey = orderingKey;
+            return batch;
+        }
 
-        static ReadV2ResponseCallback create(CompletionValue completionValue, long ledgerId, long entryId,
-                                             StatusCode status, BookieProtocol.Response response) {
-            ReadV2ResponseCallback callback = RECYCLER.get();
-            callback.completionValue = completionValue;
-            callback.ledgerId = ledgerId;
-            callback.entryId = entryId;
-            callback.status = status;
-            callback.response = response;
-            return callback;
+        void add(CompletionValue completionValue, Object response, StatusCode status) {
+            if (size == completionValues.length) {
+                int capacity = size * 2;
+                completionValues = Arrays.copyOf(completionValues, capacity);
+                responses = Arrays.copyOf(responses, capacity);
+                statuses = Arrays.copyOf(statuses, capacity);
+            }
+            completionValues[size] = completionValue;
+            responses[size] = response;
+            statuses[size] = status;
+            size++;
         }
 
         @Override
         public void safeRun() {
-            completionValue.handleV2Response(ledgerId, entryId, status, response);
-            response.release();
-            response.recycle();
-            recycle();
+            try {
+                for (int i = 0; i < size; i++) {
+                    try {
+                        complete(completionValues[i], responses[i], statuses[i]);
+                    } catch (Throwable t) {
+                        // one misbehaving callback must not strand the rest of the batch
+                        LOG.error("Unexpected throwable caught while completing response for ledger {}",
+                                  orderingKey, t);
+                    }
+                }
+            } finally {
+                recycle();
+            }
+        }
+
+        private static void complete(CompletionValue completionValue, Object msg, StatusCode status) {
+            if (msg instanceof BookieProtocol.Response) {
+                BookieProtocol.Response response = (BookieProtocol.Response) msg;
+                try {
+                    completionValue.handleV2Response(response.ledgerId, response.entryId, status, response);
+                } finally {
+                    response.release();
+                    response.recycle();
+                }
+            } else {
+                completionValue.restoreMdcContext();
+                completionValue.handleV3Response((Response) msg);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "HandleResponses(Ledger=" + orderingKey + ", Count=" + size + ")";
         }
 
         void recycle() {
-            completionValue = null;
-            ledgerId = -1;
-            entryId = -1;
-            status = null;
-            response = null;
+            Arrays.fill(completionValues, 0, size, null);
+            Arrays.fill(responses, 0, size, null);
+            Arrays.fill(statuses, 0, size, null);
+            size = 0;
+            orderingKey = -1;
             recyclerHandle.recycle(this);
         }
 
-        private final Handle<ReadV2ResponseCallback> recyclerHandle;
+        private final Handle<ResponseBatch> recyclerHandle;
 
-        private ReadV2ResponseCallback(Handle<ReadV2ResponseCallback> recyclerHandle) {
+        private ResponseBatch(Handle<ResponseBatch> recyclerHandle) {
             this.recyclerHandle = recyclerHandle;
         }
 
-        private static final Recycler<ReadV2ResponseCallback> RECYCLER = new Recycler<ReadV2ResponseCallback>() {
+        private static final Recycler<ResponseBatch> RECYCLER = new Recycler<ResponseBatch>() {
             @Override
-            protected ReadV2ResponseCallback newObject(Handle<ReadV2ResponseCallback> handle) {
-                return new ReadV2ResponseCallback(handle);
+            protected ResponseBatch newObject(Handle<ResponseBatch> handle) {
+                return new ResponseBatch(handle);
             }
         };
     }
 
-    private static OperationType getOperationType(byte opCode) {
-        switch (opCode) {
-            case BookieProtocol.ADDENTRY:
-                return  OperationType.ADD_ENTRY;
-            case BookieProtocol.READENTRY:
-                return OperationType.READ_ENTRY;
-            case BookieProtocol.AUTH:
-                return OperationType.AUTH;
-            case BookieProtocol.READ_LAC:
-                return OperationType.READ_LAC;
-            case BookieProtocol.WRITE_LAC:
-                return OperationType.WRITE_LAC;
-            case BookieProtocol.GET_BOOKIE_INFO:
-                return OperationType.GET_BOOKIE_INFO;
-            default:
-                throw new IllegalArgumentException("Invalid operation type " + opCode);
-        }
-    }
+    /**
+     * Pre-serialized fields of a {@link BKPacketHeader}: the version and operation, which are fixed for
+     * a given operation, and the priority. Only the txnId is encoded per request. Protobuf writes
+     * the fields in field number order (version, operation, txnId, priority), so the header is byte
+     * for byte what the builder would have produced.
+     */
+    static final class V3HeaderTemplate {
+        private static final V3HeaderTemplate[] TEMPLATES;
 
-    private static StatusCode getStatusCodeFromErrorCode(int errorCode) {
-        switch (errorCode) {
-            case BookieProtocol.EOK:
-                return StatusCode.EOK;
-            case BookieProtocol.ENOLEDGER:
-                return StatusCode.ENOLEDGER;
-            case BookieProtocol.ENOENTRY:
-                return StatusCode.ENOENTRY;
-            case BookieProtocol.EBADREQ:
-                return StatusCode.EBADREQ;
-            case BookieProtocol.EIO:
-                return StatusCode.EIO;
-            case BookieProtocol.EUA:
-                return StatusCode.EUA;
-            case BookieProtocol.EBADVERSION:
-                return StatusCode.EBADVERSION;
-            case BookieProtocol.EFENCED:
-                return StatusCode.EFENCED;
-            case BookieProtocol.EREADONLY:
-                return StatusCode.EREADONLY;
-            case BookieProtocol.ETOOMANYREQUESTS:
-                return StatusCode.ETOOMANYREQUESTS;
-            default:
-                throw new IllegalArgumentException("Invalid error code: " + errorCode);
+        static {
+            int maxOperation = 0;
+            for (OperationType operation : OperationType.values()) {
+                maxOperation = Math.max(maxOperation, operation.getNumber());
+            }
+            TEMPLATES = new V3HeaderTemplate[(maxOperation + 1) * 2];
+            for (OperationType operation : OperationType.values()) {
+                TEMPLATES[operation.getNumber() * 2] = new V3HeaderTemplate(operation, false);
+                TEMPLATES[operation.getNumber() * 2 + 1] = new V3HeaderTemplate(operation, true);
+            }
         }
-    }
 
-    private void readV3Response(final Response response) {
-        final BKPacketHeader header = response.getHeader();
+        private final byte[] fixedFields;
+        private final byte[] priorityField;
 
-        final CompletionKey key = newCompletionKey(header.getTxnId(), header.getOperation());
-        final CompletionValue completionValue = completionObjects.get(key);
+        private V3HeaderTemplate(OperationType operation, boolean highPriority) {
+            this.fixedFields = BKPacketHeader.newBuilder()
+                    .setVersion(ProtocolVersion.VERSION_THREE)
+                    .setOperation(operation)
+                    .buildPartial()
+                    .toByteArray();
+            this.priorityField = highPriority
+                    ? BKPacketHeader.newBuilder().setPriority(DEFAULT_HIGH_PRIORITY_VALUE).buildPartial().toByteArray()
+                    : new byte[0];
+        }
 
-        if (null == completionValue) {
-            // Unexpected response, so log it. The txnId should have been present.
-            if (LOG.isDebugEnabled()) {
-                LOG.debug("Unexpected response received from bookie : " + addr + " for type : "
-                        + header.getOperation() + " and txnId : " + header.getTxnId());
-            }
-        } else {
-            long orderingKey = completionValue.ledgerId;
-            executor.executeOrdered(orderingKey, new SafeRunnable() {
-                @Override
-                public void safeRun() {
-                    completionValue.restoreMdcContext();
-                    completionValue.handleV3Response(response);
-                }
+        static V3HeaderTemplate of(OperationType operation, boolean highPriority) {
+            return TEMPLATES[operation.getNumber() * 2 + (highPriority ? 1 : 0)];
+        }
 
-                @Override
-                public String toString() {
-                    return String.format("HandleResponse(Txn=%d, Type=%s, Entry=(%d, %d))",
-                                         header.getTxnId(), header.getOperation(),
-                                         completionValue.ledgerId, completionValue.entryId);
-                }
-            });
+        int serializedSize(long txnId) {
+            return fixedFields.length
+                    + CodedOutputStream.computeUInt64Size(BKPacketHeader.TXNID_FIELD_NUMBER, txnId)
+                    + priorityField.length;
         }
 
-        completionObjects.remove(key);
+        void writeTo(CodedOutputStream out, long txnId) throws IOException {
+            out.writeRawBytes(fixedFields);
+            out.writeUInt64(BKPacketHeader.TXNID_FIELD_NUMBER, txnId);
+            out.writeRawBytes(priorityField);
+        }
     }
 
-    void initTLSHandshake() {
-        // create TLS handler
-        PerChannelBookieClient parentObj = PerChannelBookieClient.this;
-        SslHandler handler = parentObj.shFactory.newTLSHandler();
-        channel.pipeline().addFirst(parentObj.shFactory.getHandlerName(), handler);
-        handler.handshakeFuture().addListener(new GenericFutureListener<Future<Channel>>() {
-                @Override
-                public void operationComplete(Future<Channel> future) throws Exception {
-                    int rc;
-                    Queue<GenericCallback<PerChannelBookieClient>> oldPendingOps;
-
-                    synchronized (PerChannelBookieClient.this) {
-                        if (future.isSuccess() && state == ConnectionState.CONNECTING) {
-                            LOG.error("Connection state changed before TLS handshake completed {}/{}", addr, state);
-                            rc = BKException.Code.BookieHandleNotAvailableException;
-                            closeChannel(channel);
-                            channel = null;
-                            if (state != ConnectionState.CLOSED) {
-                                state = ConnectionState.DISCONNECTED;
-                            }
-                        } else if (future.isSuccess() && state == ConnectionState.START_TLS) {
-                            rc = BKException.Code.OK;
-                            LOG.info("Successfully connected to bookie using TLS: " + addr);
-
-                            state = ConnectionState.CONNECTED;
-                            AuthHandler.ClientSideHandler authHandler = future.get().pipeline()
-                                    .get(AuthHandler.ClientSideHandler.class);
-                            authHandler.authProvider.onProtocolUpgrade();
-                            activeTlsChannelCounter.inc();
-                        } else if (future.isSuccess()
-                                && (state == ConnectionState.CLOSED || state == ConnectionState.DISCONNECTED)) {
-                            LOG.warn("Closed before TLS handshake completed, clean up: {}, current state {}",
-                                    channel, state);
-                            closeChannel(channel);
-                            rc = BKException.Code.BookieHandleNotAvailableException;
-                            channel = null;
-                        } else if (future.isSuccess() && state == ConnectionState.CONNECTED) {
-                            LOG.debug("Already connected with another channel({}), so close the new channel({})",
-                                    channel, channel);
-                            closeChannel(channel);
-                            return; // pendingOps should have been completed when other channel connected
-                        } else {
-                            LOG.error("TLS handshake failed with bookie: {}/{}, current state {} : ",
-                                    channel, addr, state, future.cause());
-                            rc = BKException.Code.SecurityException;
-                            closeChannel(channel);
-                            channel = null;
-                            if (state != ConnectionState.CLOSED) {
-                                state = ConnectionState.DISCONNECTED;
-                            }
-                            failedTlsHandshakeCounter.inc();
-                        }
+    /**
+     * V3 request serialized by {@link V3RequestEncoder} straight from its fields, without going through
+     * the protobuf builders. The header comes from a {@link V3HeaderTemplate}. Subclasses write the
+     * fields of the inner request in field number order. Requests that carry a body extend
+     * {@link V3BodyRequest}.
+     */
+    abstract static class V3FastRequest {
+        final V3HeaderTemplate header;
+        final long txnId;
+        final MdcRequestContext requestContext;
 
-                        // trick to not do operations under the lock, take the list
-                        // of pending ops and assign it to a new variable, while
-                        // emptying the pending ops by just assigning it to a new
-                        // list
-                        oldPendingOps = pendingOps;
-                        pendingOps = new ArrayDeque<>();
-                    }
+        V3FastRequest(OperationType operation, long txnId, boolean highPriority,
+                      MdcRequestContext requestContext) {
+            this.header = V3HeaderTemplate.of(operation, highPriority);
+            this.txnId = txnId;
+            this.requestContext = requestContext;
+        }
 
-                    makeWritable();
+        /**
+         * @return the number of the field holding the inner request in {@link Request}
+         */
+        abstract int requestFieldNumber();
 
-                    for (GenericCallback<PerChannelBookieClient> pendingOp : oldPendingOps) {
-                        pendingOp.operationComplete(rc, PerChannelBookieClient.this);
-                    }
-                }
-            });
+        abstract int fieldsBeforeBodySize();
+
+        abstract void writeFieldsBeforeBody(CodedOutputStream out) throws IOException;
+
+        int fieldsAfterBodySize() {
+            return 0;
+        }
+
+        void writeFieldsAfterBody(CodedOutputStream out) throws IOException {
+        }
     }
 
     /**
-     * Boiler-plate wrapper classes follow.
-     *
+     * V3 request whose inner request carries a body that is kept as the caller's buffers instead of
+     * being copied into a ByteString. The fields numbered after the body are written after it.
+     * The reference count is the body's, so Netty releases the body along with a request it
+     * drops before the request reaches the encoder.
      */
+    abstract static class V3BodyRequest extends V3FastRequest implements ReferenceCounted {
+        /**
+         * The body, retained by the request and released once it is encoded.
+         */
+        final ByteBufList body;
+
+        V3BodyRequest(OperationType operation, long txnId, boolean highPriority,
+                      MdcRequestContext requestContext, ByteBufList body) {
+            super(operation, txnId, highPriority, requestContext);
+            this.body = body;
+        }
 
-    // visible for testing
-    abstract class CompletionValue {
-        private final OpStatsLogger opLogger;
-        private final OpStatsLogger timeoutOpLogger;
-        private final String operationName;
-        private final Map<String, String> mdcContextMap;
-        protected Object ctx;
-        protected long ledgerId;
-        protected long entryId;
-        protected long startTime;
+        /**
+         * @return the number of the body field in the inner request
+         */
+        abstract int bodyFieldNumber();
 
-        public CompletionValue(String operationName,
-                               Object ctx,
-                               long ledgerId, long entryId,
-                               OpStatsLogger opLogger,
-                               OpStatsLogger timeoutOpLogger) {
-            this.operationName = operationName;
-            this.ctx = ctx;
-            this.ledgerId = ledgerId;
-            this.entryId = entryId;
-            this.startTime = MathUtils.nowInNano();
-            this.opLogger = opLogger;
-            this.timeoutOpLogger = timeoutOpLogger;
-            this.mdcContextMap = preserveMdcForTaskExecution ? MDC.getCopyOfContextMap() : null;
+        @Override
+        public int refCnt() {
+            return body.refCnt();
         }
 
-        private long latency() {
-            return MathUtils.elapsedNanos(startTime);
+        @Override
+        public ReferenceCounted retain() {
+            body.retain();
+            return this;
         }
 
-        void logOpResult(int rc) {
-            if (rc != BKException.Code.OK) {
-                opLogger.registerFailedEvent(latency(), TimeUnit.NANOSECONDS);
-            } else {
-                opLogger.registerSuccessfulEvent(latency(), TimeUnit.NANOSECONDS);
-            }
+        @Override
+        public ReferenceCounted retain(int increment) {
+            body.retain(increment);
+            return this;
+        }
 
-            if (rc != BKException.Code.OK
-                && !expectedBkOperationErrors.contains(rc)) {
-                recordError();
-            }
+        @Override
+        public ReferenceCounted touch() {
+            body.touch();
+            return this;
         }
 
-        boolean maybeTimeout() {
-            if (MathUtils.elapsedNanos(startTime) >= readEntryTimeoutNanos) {
-                timeout();
-                return true;
-            } else {
-                return false;
-            }
+        @Override
+        public ReferenceCounted touch(Object hint) {
+            body.touch(hint);
+            return this;
         }
 
-        void timeout() {
-            errorOut(BKException.Code.TimeoutException);
-            timeoutOpLogger.registerSuccessfulEvent(latency(),
-                                                    TimeUnit.NANOSECONDS);
+        @Override
+        public boolean release() {
+            return body.release();
         }
 
-        protected void logResponse(StatusCode status, Object... extraInfo) {
-            if (LOG.isDebugEnabled()) {
-                LOG.debug("Got {} response from bookie:{} rc:{}, {}", operationName, addr, status,
-                        Joiner.on(":").join(extraInfo));
-            }
+        @Override
+        public boolean release(int decrement) {
+            return body.release(decrement);
         }
+    }
 
-        protected int convertStatus(StatusCode status, int defaultStatus) {
-            // convert to BKException code
-            int rcToRet = statusCodeToExceptionCode(status);
-            if (rcToRet == BKException.Code.UNINITIALIZED) {
-                LOG.error("{} for failed on bookie {} code {}",
-                          operationName, addr, status);
-                return defaultStatus;
-            } else {
-                return rcToRet;
-            }
+    /**
+     * V3 add request that keeps the entry payload as the caller's buffers instead of copying it
+     * into a protobuf ByteString.
+     */
+    static final class V3AddRequest extends V3BodyRequest {
+        final long ledgerId;
+        final long entryId;
+        final byte[] masterKey;
+        final boolean recoveryAdd;
+        final Integer writeFlags;
+
+        private V3AddRequest(long txnId, boolean highPriority, long ledgerId, long entryId, byte[] masterKey,
+                             boolean recoveryAdd, Integer writeFlags,
+                             MdcRequestContext requestContext, ByteBufList body) {
+            super(OperationType.ADD_ENTRY, txnId, highPriority, requestContext, body);
+            this.ledgerId = ledgerId;
+            this.entryId = entryId;
+            this.masterKey = masterKey;
+            this.recoveryAdd = recoveryAdd;
+            this.writeFlags = writeFlags;
         }
 
-        public void restoreMdcContext() {
-            MdcUtils.restoreContext(mdcContextMap);
+        /**
+         * Creates the request, retaining the body until the request is encoded.
+         */
+        static V3AddRequest create(long txnId, boolean highPriority, long ledgerId, long entryId, byte[] masterKey,
+                                   boolean recoveryAdd, Integer writeFlags,
+                                   MdcRequestContext requestContext, ByteBufList body) {
+            body.retain();
+            return new V3AddRequest(txnId, highPriority, ledgerId, entryId, masterKey, recoveryAdd, writeFlags,
+                                    requestContext, body);
         }
 
-        public abstract void errorOut();
-        public abstract void errorOut(int rc);
-        public void setOutstanding() {
-            // no-op
+        @Override
+        int requestFieldNumber() {
+            return Request.ADDREQUEST_FIELD_NUMBER;
         }
 
-        protected void errorOutAndRunCallback(final Runnable callback) {
-            executor.executeOrdered(ledgerId,
-                    new SafeRunnable() {
-                        @Override
-                        public void safeRun() {
-                            String bAddress = "null";
-                            Channel c = channel;
-                            if (c != null && c.remoteAddress() != null) {
-                                bAddress = c.remoteAddress().toString();
-                            }
-                            if (LOG.isDebugEnabled()) {
-                                LOG.debug("Could not write {} request to bookie {} for ledger {}, entry {}",
-                                          operationName, bAddress,
-                                          ledgerId, entryId);
-                            }
-                            callback.run();
-                        }
-                    });
+        @Override
+        int fieldsBeforeBodySize() {
+            return CodedOutputStream.computeInt64Size(AddRequest.LEDGERID_FIELD_NUMBER, ledgerId)
+                    + CodedOutputStream.computeInt64Size(AddRequest.ENTRYID_FIELD_NUMBER, entryId)
+                    + CodedOutputStream.computeByteArraySize(AddRequest.MASTERKEY_FIELD_NUMBER, masterKey);
         }
 
-        public void handleV2Response(
-                long ledgerId, long entryId, StatusCode status,
-                BookieProtocol.Response response) {
-            LOG.warn("Unhandled V2 response {}", response);
+        @Override
+        void writeFieldsBeforeBody(CodedOutputStream out) throws IOException {
+            out.writeInt64(AddRequest.LEDGERID_FIELD_NUMBER, ledgerId);
+            out.writeInt64(AddRequest.ENTRYID_FIELD_NUMBER, entryId);
+            out.writeByteArray(AddRequest.MASTERKEY_FIELD_NUMBER, masterKey);
         }
 
-        public abstract void handleV3Response(
-                BookkeeperProtocol.Response response);
-    }
+        @Override
+        int bodyFieldNumber() {
+            return AddRequest.BODY_FIELD_NUMBER;
+        }
 
-    // visible for testing
-    class WriteLacCompletion extends CompletionValue {
-        final WriteLacCallback cb;
+        @Override
+        int fieldsAfterBodySize() {
+            int size = 0;
+            if (writeFlags != null) {
+                size += CodedOutputStream.computeInt32Size(AddRequest.WRITEFLAGS_FIELD_NUMBER, writeFlags);
+            }
+            if (recoveryAdd) {
+                size += CodedOutputStream.computeEnumSize(
+                        AddRequest.FLAG_FIELD_NUMBER, AddRequest.Flag.RECOVERY_ADD.getNumber());
+            }
+            return size;
+        }
 
-        public WriteLacCompletion(final CompletionKey key,
-                                  final WriteLacCallback originalCallback,
-                                  final Object originalCtx,
-                                  final long ledgerId) {
-            super("WriteLAC",
-                  originalCtx, ledgerId, BookieProtocol.LAST_ADD_CONFIRMED,
-                  writeLacOpLogger, writeLacTimeoutOpLogger);
-            this.cb = new WriteLacCallback() {
-                    @Override
-                    public void writeLacComplete(int rc, long ledgerId,
-                                                 BookieSocketAddress addr,
-                                                 Object ctx) {
-                        logOpResult(rc);
-                        originalCallback.writeLacComplete(rc, ledgerId,
-                                                          addr, originalCtx);
-                        key.release();
-                    }
-                };
+        @Override
+        void writeFieldsAfterBody(CodedOutputStream out) throws IOException {
+            if (writeFlags != null) {
+                out.writeInt32(AddRequest.WRITEFLAGS_FIELD_NUMBER, writeFlags);
+            }
+            if (recoveryAdd) {
+                out.writeEnum(AddRequest.FLAG_FIELD_NUMBER, AddRequest.Flag.RECOVERY_ADD.getNumber());
+            }
         }
 
         @Override
-        public void errorOut() {
-            errorOut(BKException.Code.BookieHandleNotAvailableException);
+        public String toString() {
+            return String.format("AddRequest(Txn=%d, Entry=(%d, %d))", txnId, ledgerId, entryId);
+        }
+    }
+
+    /**
+     * V3 read request, for normal, fencing and long poll reads.
+     */
+    static final class V3ReadRequest extends V3FastRequest {
+        final long ledgerId;
+        final long entryId;
+        final byte[] masterKey;
+        final Long previousLAC;
+        final Long timeOut;
+        final ReadRequest.Flag flag;
+
+        V3ReadRequest(long txnId, boolean highPriority, long ledgerId, long entryId, byte[] masterKey,
+                      Long previousLAC, Long timeOut, ReadRequest.Flag flag, MdcRequestContext requestContext) {
+            super(OperationType.READ_ENTRY, txnId, highPriority, requestContext);
+            this.ledgerId = ledgerId;
+            this.entryId = entryId;
+            this.masterKey = masterKey;
+            this.previousLAC = previousLAC;
+            this.timeOut = timeOut;
+            this.flag = flag;
         }
 
         @Override
-        public void errorOut(final int rc) {
-            errorOutAndRunCallback(
-                    () -> cb.writeLacComplete(rc, ledgerId, addr, ctx));
+        int requestFieldNumber() {
+            return Request.READREQUEST_FIELD_NUMBER;
         }
 
         @Override
-        public void handleV3Response(BookkeeperProtocol.Response response) {
-            WriteLacResponse writeLacResponse = response.getWriteLacResponse();
-            StatusCode status = response.getStatus() == StatusCode.EOK
-                ? writeLacResponse.getStatus() : response.getStatus();
-            long ledgerId = writeLacResponse.getLedgerId();
+        int fieldsBeforeBodySize() {
+            int size = CodedOutputStream.computeInt64Size(ReadRequest.LEDGERID_FIELD_NUMBER, ledgerId)
+                    + CodedOutputStream.computeInt64Size(ReadRequest.ENTRYID_FIELD_NUMBER, entryId);
+            if (masterKey != null) {
+                size += CodedOutputStream.computeByteArraySize(ReadRequest.MASTERKEY_FIELD_NUMBER, masterKey);
+            }
+            if (previousLAC != null) {
+                size += CodedOutputStream.computeInt64Size(ReadRequest.PREVIOUSLAC_FIELD_NUMBER, previousLAC);
+            }
+            if (timeOut != null) {
+                size += CodedOutputStream.computeInt64Size(ReadRequest.TIMEOUT_FIELD_NUMBER, timeOut);
+            }
+            if (flag != null) {
+                size += CodedOutputStream.computeEnumSize(ReadRequest.FLAG_FIELD_NUMBER, flag.getNumber());
+            }
+            return size;
+        }
 
-            if (LOG.isDebugEnabled()) {
-                logResponse(status, "ledger", ledgerId);
+        @Override
+        void writeFieldsBeforeBody(CodedOutputStream out) throws IOException {
+            out.writeInt64(ReadRequest.LEDGERID_FIELD_NUMBER, ledgerId);
+            out.writeInt64(ReadRequest.ENTRYID_FIELD_NUMBER, entryId);
+            if (masterKey != null) {
+                out.writeByteArray(ReadRequest.MASTERKEY_FIELD_NUMBER, masterKey);
             }
-            int rc = convertStatus(status, BKException.Code.WriteException);
-            cb.writeLacComplete(rc, ledgerId, addr, ctx);
+            if (previousLAC != null) {
+                out.writeInt64(ReadRequest.PREVIOUSLAC_FIELD_NUMBER, previousLAC);
+            }
+            if (timeOut != null) {
+                out.writeInt64(ReadRequest.TIMEOUT_FIELD_NUMBER, timeOut);
+            }
+            // the flag has the highest field number
+            if (flag != null) {
+                out.writeEnum(ReadRequest.FLAG_FIELD_NUMBER, flag.getNumber());
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format("ReadRequest(Txn=%d, Entry=(%d, %d))", txnId, ledgerId, entryId);
         }
     }
 
-    class ForceLedgerCompletion extends CompletionValue {
-        final ForceLedgerCallback cb;
+    /**
+     * V3 read lac request.
+     */
+    static final class V3ReadLacRequest extends V3FastRequest {
+        final long ledgerId;
 
-        public ForceLedgerCompletion(final CompletionKey key,
-                                  final ForceLedgerCallback originalCallback,
-                                  final Object originalCtx,
-                                  final long ledgerId) {
-            super("ForceLedger",
-                  originalCtx, ledgerId, BookieProtocol.LAST_ADD_CONFIRMED,
-                  forceLedgerOpLogger, forceLedgerTimeoutOpLogger);
-            this.cb = new ForceLedgerCallback() {
-                    @Override
-                    public void forceLedgerComplete(int rc, long ledgerId,
-                                                 BookieSocketAddress addr,
-                                                 Object ctx) {
-                        logOpResult(rc);
-                        originalCallback.forceLedgerComplete(rc, ledgerId,
-                                                          addr, originalCtx);
-                        key.release();
-                    }
-                };
+        V3ReadLacRequest(long txnId, long ledgerId, MdcRequestContext requestContext) {
+            super(OperationType.READ_LAC, txnId, false, requestContext);
+            this.ledgerId = ledgerId;
         }
 
         @Override
-        public void errorOut() {
-            errorOut(BKException.Code.BookieHandleNotAvailableException);
+        int requestFieldNumber() {
+            return Request.READLACREQUEST_FIELD_NUMBER;
         }
 
         @Override
-        public void errorOut(final int rc) {
-            errorOutAndRunCallback(
-                    () -> cb.forceLedgerComplete(rc, ledgerId, addr, ctx));
+        int fieldsBeforeBodySize() {
+            return CodedOutputStream.computeInt64Size(ReadLacRequest.LEDGERID_FIELD_NUMBER, ledgerId);
         }
 
         @Override
-        public void handleV3Response(BookkeeperProtocol.Response response) {
-            ForceLedgerResponse forceLedgerResponse = response.getForceLedgerResponse();
-            StatusCode status = response.getStatus() == StatusCode.EOK
-                ? forceLedgerResponse.getStatus() : response.getStatus();
-            long ledgerId = forceLedgerResponse.getLedgerId();
+        void writeFieldsBeforeBody(CodedOutputStream out) throws IOException {
+            out.writeInt64(ReadLacRequest.LEDGERID_FIELD_NUMBER, ledgerId);
+        }
 
-            if (LOG.isDebugEnabled()) {
-                logResponse(status, "ledger", ledgerId);
-            }
-            int rc = convertStatus(status, BKException.Code.WriteException);
-            cb.forceLedgerComplete(rc, ledgerId, addr, ctx);
+        @Override
+        public String toString() {
+            return String.format("ReadLacRequest(Txn=%d, Ledger=%d)", txnId, ledgerId);
         }
     }
 
-    // visible for testing
-    class ReadLacCompletion extends CompletionValue {
-        final ReadLacCallback cb;
+    /**
+     * V3 write lac request, keeping the body as the caller's buffers like {@link V3AddRequest}.
+     */
+    static final class V3WriteLacRequest extends V3BodyRequest {
+        final long ledgerId;
+        final long lac;
+        final byte[] masterKey;
+
+        private V3WriteLacRequest(long txnId, long ledgerId, long lac, byte[] masterKey,
+                                  MdcRequestContext requestContext, ByteBufList body) {
+            super(OperationType.WRITE_LAC, txnId, false, requestContext, body);
+            this.ledgerId = ledgerId;
+            this.lac = lac;
+            this.masterKey = masterKey;
+        }
 
-        public ReadLacCompletion(final CompletionKey key,
-                                 ReadLacCallback originalCallback,
-                                 final Object ctx, final long ledgerId) {
-            super("ReadLAC", ctx, ledgerId, BookieProtocol.LAST_ADD_CONFIRMED,
-                  readLacOpLogger, readLacTimeoutOpLogger);
-            this.cb = new ReadLacCallback() {
-                    @Override
-                    public void readLacComplete(int rc, long ledgerId,
-                                                ByteBuf lacBuffer,
-                                                ByteBuf lastEntryBuffer,
-                                                Object ctx) {
-                        logOpResult(rc);
-                        originalCallback.readLacComplete(
-                                rc, ledgerId, lacBuffer, lastEntryBuffer, ctx);
-                        key.release();
-                    }
-                };
+        /**
+         * Creates the request, retaining the body until the request is encoded.
+         */
+        static V3WriteLacRequest create(long txnId, long ledgerId, long lac, byte[] masterKey,
+                                        MdcRequestContext requestContext, ByteBufList body) {
+            body.retain();
+            return new V3WriteLacRequest(txnId, ledgerId, lac, masterKey, requestContext, body);
         }
 
         @Override
-        public void errorOut() {
-            errorOut(BKException.Code.BookieHandleNotAvailableException);
+        int requestFieldNumber() {
+            return Request.WRITELACREQUEST_FIELD_NUMBER;
         }
 
         @Override
-        public void errorOut(final int rc) {
-            errorOutAndRunCallback(
-                    () -> cb.readLacComplete(rc, ledgerId, null, null, ctx));
+        int fieldsBeforeBodySize() {
+            return CodedOutputStream.computeInt64Size(WriteLacRequest.LEDGERID_FIELD_NUMBER, ledgerId)
+                    + CodedOutputStream.computeInt64Size(WriteLacRequest.LAC_FIELD_NUMBER, lac)
+                    + CodedOutputStream.computeByteArraySize(WriteLacRequest.MASTERKEY_FIELD_NUMBER, masterKey);
         }
 
         @Override
-        public void handleV3Response(BookkeeperProtocol.Response response) {
-            ReadLacResponse readLacResponse = response.getReadLacResponse();
-            ByteBuf lacBuffer = Unpooled.EMPTY_BUFFER;
-            ByteBuf lastEntryBuffer = Unpooled.EMPTY_BUFFER;
-            StatusCode status = response.getStatus() == StatusCode.EOK
-                ? readLacResponse.getStatus() : response.getStatus();
-
-            if (readLacResponse.hasLacBody()) {
-                lacBuffer = Unpooled.wrappedBuffer(readLacResponse.getLacBody().asReadOnlyByteBuffer());
-            }
-
-            if (readLacResponse.hasLastEntryBody()) {
-                lastEntryBuffer = Unpooled.wrappedBuffer(readLacResponse.getLastEntryBody().asReadOnlyByteBuffer());
-            }
+        void writeFieldsBeforeBody(CodedOutputStream out) throws IOException {
+            out.writeInt64(WriteLacRequest.LEDGERID_FIELD_NUMBER, ledgerId);
+            out.writeInt64(WriteLacRequest.LAC_FIELD_NUMBER, lac);
+            out.writeByteArray(WriteLacRequest.MASTERKEY_FIELD_NUMBER, masterKey);
+        }
 
-            if (LOG.isDebugEnabled()) {
-                logResponse(status, "ledgerId", ledgerId);
-            }
+        @Override
+        int bodyFieldNumber() {
+            return WriteLacRequest.BODY_FIELD_NUMBER;
+        }
 
-            int rc = convertStatus(status, BKException.Code.ReadException);
-            cb.readLacComplete(rc, ledgerId, lacBuffer.slice(),
-                               lastEntryBuffer.slice(), ctx);
+        @Override
+        public String toString() {
+            return String.format("WriteLacRequest(Txn=%d, Ledger=%d, Lac=%d)", txnId, ledgerId, lac);
         }
     }
 
-    // visible for testing
-    class ReadCompletion extends CompletionValue {
-        final ReadEntryCallback cb;
+    /**
+     * V3 get bookie info request.
+     */
+    static final class V3GetBookieInfoRequest extends V3FastRequest {
+        final long requested;
 
-        public ReadCompletion(final CompletionKey key,
-                              final ReadEntryCallback originalCallback,
-                              final Object originalCtx,
-                              long ledgerId, final long entryId) {
-            super("Read", originalCtx, ledgerId, entryId,
-                  readEntryOpLogger, readTimeoutOpLogger);
+        V3GetBookieInfoRequest(long txnId, long requested, MdcRequestContext requestContext) {
+            super(OperationType.GET_BOOKIE_INFO, txnId, false, requestContext);
+            this.requested = requested;
+        }
 
-            this.cb = new ReadEntryCallback() {
-                    @Override
-                    public void readEntryComplete(int rc, long ledgerId,
-                                                  long entryId, ByteBuf buffer,
-                                                  Object ctx) {
-                        logOpResult(rc);
-                        originalCallback.readEntryComplete(rc,
-                                                           ledgerId, entryId,
-                                                           buffer, originalCtx);
-                        key.release();
-                    }
-                };
+        @Override
+        int requestFieldNumber() {
+            return Request.GETBOOKIEINFOREQUEST_FIELD_NUMBER;
         }
 
         @Override
-        public void errorOut() {
-            errorOut(BKException.Code.BookieHandleNotAvailableException);
+        int fieldsBeforeBodySize() {
+            return CodedOutputStream.computeInt64Size(GetBookieInfoRequest.REQUESTED_FIELD_NUMBER, requested);
         }
 
         @Override
-        public void errorOut(final int rc) {
-            errorOutAndRunCallback(
-                    () -> cb.readEntryComplete(rc, ledgerId,
-                                               entryId, null, ctx));
+        void writeFieldsBeforeBody(CodedOutputStream out) throws IOException {
+            out.writeInt64(GetBookieInfoRequest.REQUESTED_FIELD_NUMBER, requested);
         }
 
         @Override
+        public String toString() {
+            return String.format("GetBookieInfoRequest(Txn=%d, Requested=%d)", txnId, requested);
+        }
+    }
+
+    /**
+     * Request encoder that serializes {@link V3FastRequest}s without the protobuf builders. A request
+     * without body is written into a single buffer. For a request with a body, the fields before the
+     * body are written into a small header buffer, the body buffers are appended as slices and the
+     * fields after the body go into a trailer buffer. Since protobuf writes the fields in field number
+     * order and the request context has the highest number, the frame is byte for byte what the
+     * protobuf builder would have produced.
+     *
+     * <p>The encoder sits between the main handler and the auth handler, so the auth handler sees the
+     * encoded frames, which it queues until authentication completes, and
+     * {@link BookieProtoEncoding.RequestEncoder} passes them through. Everything else is passed down
+     * unchanged.
+     */
+    static class V3RequestEncoder extends ChannelOutboundHandlerAdapter {
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+            if (msg instanceof V3FastRequest) {
+                ctx.write(encodeRequest((V3FastRequest) msg, ctx.alloc()), promise);
+            } else {
+                ctx.write(msg, promise);
+            }
+        }
+
+        static Object encodeRequest(V3FastRequest request, ByteBufAllocator allocator) throws IOException {
+            if (request instanceof V3BodyRequest) {
+                return encodeBodyRequest((V3BodyRequest) request, allocator);
+            }
+            final int headerSize = request.header.serializedSize(request.txnId);
+            final int fieldsBeforeBody = request.fieldsBeforeBodySize();
+            final int fieldsAfterBody = request.fieldsAfterBodySize();
+            final int innerSize = fieldsBeforeBody + fieldsAfterBody;
+            final int size = prefixSize(request, headerSize, innerSize, fieldsBeforeBody)
+                    + suffixSize(request, fieldsAfterBody);
+
+            ByteBuf buf = allocator.heapBuffer(size, size);
+            CodedOutputStream out = CodedOutputStream.newInstance(
+                    buf.array(), buf.arrayOffset() + buf.writerIndex(), size);
+            writePrefix(out, request, headerSize, innerSize);
+            writeSuffix(out, request);
+            out.checkNoSpaceLeft();
+            buf.writerIndex(buf.writerIndex() + size);
+            return buf;
+        }
+
+        private static Object encodeBodyRequest(V3BodyRequest request, ByteBufAllocator allocator)
+                throws IOException {
+            final ByteBufList body = request.body;
+            try {
+                final int bodySize = body.readableBytes();
+                final int headerSize = request.header.serializedSize(request.txnId);
+                final int fieldsBeforeBody = request.fieldsBeforeBodySize()
+                        + CodedOutputStream.computeTagSize(request.bodyFieldNumber())
+                        + CodedOutputStream.computeUInt32SizeNoTag(bodySize);
+                final int fieldsAfterBody = request.fieldsAfterBodySize();
+                final int innerSize = fieldsBeforeBody + bodySize + fieldsAfterBody;
+                final int prefixSize = prefixSize(request, headerSize, innerSize, fieldsBeforeBody);
+                final int suffixSize = suffixSize(request, fieldsAfterBody);
+
+                ByteBuf prefix = allocator.heapBuffer(prefixSize, prefixSize);
+                CodedOutputStream out = CodedOutputStream.newInstance(
+                        prefix.array(), prefix.arrayOffset() + prefix.writerIndex(), prefixSize);
+                writePrefix(out, request, headerSize, innerSize);
+                out.writeTag(request.bodyFieldNumber(), WireFormat.WIRETYPE_LENGTH_DELIMITED);
+                out.writeUInt32NoTag(bodySize);
+                out.checkNoSpaceLeft();
+                prefix.writerIndex(prefix.writerIndex() + prefixSize);
+
+                // the body may be shared with the requests to the other bookies, so it is sliced, not modified
+                ByteBufList frame = ByteBufList.get(prefix);
+                for (int i = 0; i < body.size(); i++) {
+                    frame.add(body.getBuffer(i).retainedSlice());
+                }
+
+                if (suffixSize > 0) {
+                    ByteBuf suffix = allocator.heapBuffer(suffixSize, suffixSize);
+                    out = CodedOutputStream.newInstance(
+                            suffix.array(), suffix.arrayOffset() + suffix.writerIndex(), suffixSize);
+                    writeSuffix(out, request);
+                    out.checkNoSpaceLeft();
+                    suffix.writerIndex(suffix.writerIndex() + suffixSize);
+                    frame.add(suffix);
+                }
+                return frame;
+            } finally {
+                body.release();
+            }
+        }
+
+        private static int prefixSize(V3FastRequest request, int headerSize, int innerSize, int fieldsBeforeBody) {
+            return CodedOutputStream.computeTagSize(Request.HEADER_FIELD_NUMBER)
+                    + CodedOutputStream.computeUInt32SizeNoTag(headerSize) + headerSize
+                    + CodedOutputStream.computeTagSize(request.requestFieldNumber())
+                    + CodedOutputStream.computeUInt32SizeNoTag(innerSize)
+                    + fieldsBeforeBody;
+        }
+
+        private static int suffixSize(V3FastRequest request, int fieldsAfterBody) {
+            // the request context fields are last and come already encoded
+            return fieldsAfterBody + request.requestContext.encoded.length;
+        }
+
+        private static void writePrefix(CodedOutputStream out, V3FastRequest request,
+                                        int headerSize, int innerSize) throws IOException {
+            out.writeTag(Request.HEADER_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+            out.writeUInt32NoTag(headerSize);
+            request.header.writeTo(out, request.txnId);
+            out.writeTag(request.requestFieldNumber(), WireFormat.WIRETYPE_LENGTH_DELIMITED);
+            out.writeUInt32NoTag(innerSize);
+            request.writeFieldsBeforeBody(out);
+        }
+
+        private static void writeSuffix(CodedOutputStream out, V3FastRequest request) throws IOException {
+            request.writeFieldsAfterBody(out);
+            out.writeRawBytes(request.requestContext.encoded);
+        }
+    }
+
+    private static OperationType getOperationType(byte opCode) {
+        switch (opCode) {
+            case BookieProtocol.ADDENTRY:
+                return  OperationType.ADD_ENTRY;
+            case BookieProtocol.READENTRY:
+                return OperationType.READ_ENTRY;
+            case BookieProtocol.AUTH:
+                return OperationType.AUTH;
+            case BookieProtocol.READ_LAC:
+                return OperationType.READ_LAC;
+            case BookieProtocol.WRITE_LAC:
+                return OperationType.WRITE_LAC;
+            case BookieProtocol.GET_BOOKIE_INFO:
+                return OperationType.GET_BOOKIE_INFO;
+            default:
+                throw new IllegalArgumentException("Invalid operation type " + opCode);
+        }
+    }
+
+    private static StatusCode getStatusCodeFromErrorCode(int errorCode) {
+        switch (errorCode) {
+            case BookieProtocol.EOK:
+                return StatusCode.EOK;
+            case BookieProtocol.ENOLEDGER:
+                return StatusCode.ENOLEDGER;
+            case BookieProtocol.ENOENTRY:
+                return StatusCode.ENOENTRY;
+            case BookieProtocol.EBADREQ:
+                return StatusCode.EBADREQ;
+            case BookieProtocol.EIO:
+                return StatusCode.EIO;
+            case BookieProtocol.EUA:
+                return StatusCode.EUA;
+            case BookieProtocol.EBADVERSION:
+                return StatusCode.EBADVERSION;
+            case BookieProtocol.EFENCED:
+                return StatusCode.EFENCED;
+            case BookieProtocol.EREADONLY:
+                return StatusCode.EREADONLY;
+            case BookieProtocol.ETOOMANYREQUESTS:
+                return StatusCode.ETOOMANYREQUESTS;
+            default:
+                throw new IllegalArgumentException("Invalid error code: " + errorCode);
+        }
+    }
+
+    private void readV3Response(ResponseDispatcher dispatcher, final Response response) {
+        final BKPacketHeader header = response.getHeader();
+
+        final CompletionKey key = newCompletionKey(header.getTxnId(), header.getOperation());
+        final CompletionValue completionValue = completionObjects.remove(key);
+
+        if (null == completionValue) {
+            // Unexpected response, so log it. The txnId should have been present.
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Unexpected response received from bookie : " + addr + " for type : "
+                        + header.getOperation() + " and txnId : " + header.getTxnId());
+            }
+        } else {
+            timeoutWheel.cancel(completionValue);
+            dispatcher.add(completionValue, response, null);
+        }
+    }
+
+    void initTLSHandshake() {
+        // create TLS handler
+        PerChannelBookieClient parentObj = PerChannelBookieClient.this;
+        SslHandler handler = parentObj.shFactory.newTLSHandler();
+        channel.pipeline().addFirst(parentObj.shFactory.getHandlerName(), handler);
+        handler.handshakeFuture().addListener(new GenericFutureListener<Future<Channel>>() {
+                @Override
+                public void operationComplete(Future<Channel> future) throws Exception {
+                    int rc;
+                    final Channel c = channel;
+                    ConnectionState s = state;
+
+                    if (future.isSuccess() && casState(ConnectionState.START_TLS, ConnectionState.CONNECTED)) {
+                        rc = BKException.Code.OK;
+                        LOG.info("Successfully connected to bookie using TLS: " + addr);
+
+                        AuthHandler.ClientSideHandler authHandler = future.get().pipeline()
+                                .get(AuthHandler.ClientSideHandler.class);
+                        authHandler.authProvider.onProtocolUpgrade();
+                        activeTlsChannelCounter.inc();
+                    } else if (future.isSuccess() && s == ConnectionState.CONNECTING) {
+                        LOG.error("Connection state changed before TLS handshake completed {}/{}", addr, s);
+                        rc = BKException.Code.BookieHandleNotAvailableException;
+                        closeChannel(c);
+                        CHANNEL_UPDATER.compareAndSet(PerChannelBookieClient.this, c, null);
+                        markDisconnected();
+                    } else if (future.isSuccess()
+                            && (s == ConnectionState.CLOSED || s == ConnectionState.DISCONNECTED)) {
+                        LOG.warn("Closed before TLS handshake completed, clean up: {}, current state {}",
+                                c, s);
+                        closeChannel(c);
+                        rc = BKException.Code.BookieHandleNotAvailableException;
+                        CHANNEL_UPDATER.compareAndSet(PerChannelBookieClient.this, c, null);
+                    } else if (future.isSuccess() && s == ConnectionState.CONNECTED) {
+                        LOG.debug("Already connected with another channel({}), so close the new channel({})",
+                                c, c);
+                        closeChannel(c);
+                        return; // pendingOps should have been completed when other channel connected
+                    } else {
+                        LOG.error("TLS handshake failed with bookie: {}/{}, current state {} : ",
+                                c, addr, s, future.cause());
+                        rc = BKException.Code.SecurityException;
+                        closeChannel(c);
+                        CHANNEL_UPDATER.compareAndSet(PerChannelBookieClient.this, c, null);
+                        markDisconnected();
+                        failedTlsHandshakeCounter.inc();
+                    }
+
+                    makeWritable();
+
+                    drainPendingOps(rc, PerChannelBookieClient.this);
+                }
+            });
+    }
+
+    /**
+     * Boiler-plate wrapper classes follow.
+     *
+     */
+
+    // visible for testing
+    abstract class CompletionValue {
+        private final OpStatsLogger opLogger;
+        private final OpStatsLogger timeoutOpLogger;
+        private final LatencyHistogram latencyHistogram;
+        private final String operationName;
+        // set when the completion is registered, recycled completions get the context of their new request
+        MdcRequestContext mdcContext = MdcRequestContext.EMPTY;
+        protected Object ctx;
+        protected long ledgerId;
+        protected long entryId;
+        protected long startTime;
+        // whether the request counts against the concurrency limit and feeds it with its latency
+        protected boolean concurrencyLimited = false;
+        // whether the latency is sampled for the read latency percentiles
+        protected boolean tracksReadLatency = false;
+
+        // timeout wheel links, guarded by the lock of the bucket the completion is registered in
+        CompletionKey timeoutKey;
+        long timeoutDeadline;
+        volatile TimeoutWheel.Bucket timeoutBucket;
+        CompletionValue timeoutPrev;
+        CompletionValue timeoutNext;
+
+        public CompletionValue(String operationName,
+                               Object ctx,
+                               long ledgerId, long entryId,
+                               OpStatsLogger opLogger,
+                               OpStatsLogger timeoutOpLogger) {
+            this(operationName, ctx, ledgerId, entryId, opLogger, timeoutOpLogger, null);
+        }
+
+        public CompletionValue(String operationName,
+                               Object ctx,
+                               long ledgerId, long entryId,
+                               OpStatsLogger opLogger,
+                               OpStatsLogger timeoutOpLogger,
+                               LatencyOp latencyOp) {
+            this.latencyHistogram = latencyOp == null ? null : latencyHistograms[latencyOp.ordinal()];
+            this.operationName = operationName;
+            this.ctx = ctx;
+            this.ledgerId = ledgerId;
+            this.entryId = entryId;
+            this.startTime = MathUtils.nowInNano();
+            this.opLogger = opLogger;
+            this.timeoutOpLogger = timeoutOpLogger;
+        }
+
+        private long latency() {
+            return MathUtils.elapsedNanos(startTime);
+        }
+
+        void logOpResult(int rc) {
+            final long latency = latency();
+            if (rc != BKException.Code.OK) {
+                opLogger.registerFailedEvent(latency, TimeUnit.NANOSECONDS);
+            } else {
+                opLogger.registerSuccessfulEvent(latency, TimeUnit.NANOSECONDS);
+            }
+            if (latencyHistogram != null) {
+                latencyHistogram.record(latency);
+            }
+            if (concurrencyLimited && concurrencyLimiter != null) {
+                concurrencyLimiter.onComplete(latency, rc);
+            }
+            if (tracksReadLatency && rc == BKException.Code.OK) {
+                readLatencyTracker.record(latency);
+            }
+
+            if (rc != BKException.Code.OK
+                && !expectedBkOperationErrors.contains(rc)) {
+                recordError();
+            }
+        }
+
+        long timeoutNanos() {
+            return readEntryTimeoutNanos;
+        }
+
+        boolean maybeTimeout() {
+            if (MathUtils.elapsedNanos(startTime) >= timeoutNanos()) {
+                timeout();
+                return true;
+            } else {
+                return false;
+            }
+        }
+
+        void timeout() {
+            errorOut(BKException.Code.TimeoutException);
+            timeoutOpLogger.registerSuccessfulEvent(latency(),
+                                                    TimeUnit.NANOSECONDS);
+        }
+
+        protected void logResponse(StatusCode status, Object... extraInfo) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Got {} response from bookie:{} rc:{}, {}", operationName, addr, status,
+                        Joiner.on(":").join(extraInfo));
+            }
+        }
+
+        protected int convertStatus(StatusCode status, int defaultStatus) {
+            // convert to BKException code
+            int rcToRet = statusCodeToExceptionCode(status);
+            if (rcToRet == BKException.Code.UNINITIALIZED) {
+                LOG.error("{} for failed on bookie {} code {}",
+                          operationName, addr, status);
+                return defaultStatus;
+            } else {
+                return rcToRet;
+            }
+        }
+
+        public void restoreMdcContext() {
+            MdcUtils.restoreContext(mdcContext.mdc);
+        }
+
+        public abstract void errorOut();
+        public abstract void errorOut(int rc);
         public void setOutstanding() {
-            readEntryOutstanding.inc();
+            // no-op
+        }
+
+        protected void errorOutAndRunCallback(final Runnable callback) {
+            executor.executeOrdered(ledgerId,
+                    new SafeRunnable() {
+                        @Override
+                        public void safeRun() {
+                            String bAddress = "null";
+                            Channel c = channel;
+                            if (c != null && c.remoteAddress() != null) {
+                                bAddress = c.remoteAddress().toString();
+                            }
+                            if (LOG.isDebugEnabled()) {
+                                LOG.debug("Could not write {} request to bookie {} for ledger {}, entry {}",
+                                          operationName, bAddress,
+                                          ledgerId, entryId);
+                            }
+                            callback.run();
+                        }
+                    });
+        }
+
+        public void handleV2Response(
+                long ledgerId, long entryId, StatusCode status,
+                BookieProtocol.Response response) {
+            LOG.warn("Unhandled V2 response {}", response);
+        }
+
+        public abstract void handleV3Response(
+                BookkeeperProtocol.Response response);
+    }
+
+    // visible for testing
+    class WriteLacCompletion extends CompletionValue {
+        final WriteLacCallback cb;
+
+        public WriteLacCompletion(final CompletionKey key,
+                                  final WriteLacCallback originalCallback,
+                                  final Object originalCtx,
+                                  final long ledgerId) {
+            super("WriteLAC",
+                  originalCtx, ledgerId, BookieProtocol.LAST_ADD_CONFIRMED,
+                  writeLacOpLogger, writeLacTimeoutOpLogger, LatencyOp.WRITE_LAC);
+            this.cb = new WriteLacCallback() {
+                    @Override
+                    public void writeLacComplete(int rc, long ledgerId,
+                                                 BookieSocketAddress addr,
+                                                 Object ctx) {
+                        logOpResult(rc);
+                        originalCallback.writeLacComplete(rc, ledgerId,
+                                                          addr, originalCtx);
+                        key.release();
+                    }
+                };
+        }
+
+        @Override
+        long timeoutNanos() {
+            // mostly like addEntry, hence uses addEntryTimeout
+            return addEntryTimeoutNanos;
+        }
+
+        @Override
+        public void errorOut() {
+            errorOut(BKException.Code.BookieHandleNotAvailableException);
+        }
+
+        @Override
+        public void errorOut(final int rc) {
+            errorOutAndRunCallback(
+                    () -> cb.writeLacComplete(rc, ledgerId, addr, ctx));
+        }
+
+        @Override
+        public void handleV3Response(BookkeeperProtocol.Response response) {
+            WriteLacResponse writeLacResponse = response.getWriteLacResponse();
+            StatusCode status = response.getStatus() == StatusCode.EOK
+                ? writeLacResponse.getStatus() : response.getStatus();
+            long ledgerId = writeLacResponse.getLedgerId();
+
+            if (LOG.isDebugEnabled()) {
+                logResponse(status, "ledger", ledgerId);
+            }
+            int rc = convertStatus(status, BKException.Code.WriteException);
+            cb.writeLacComplete(rc, ledgerId, addr, ctx);
+        }
+    }
+
+    class ForceLedgerCompletion extends CompletionValue {
+        final ForceLedgerCallback cb;
+
+        public ForceLedgerCompletion(final CompletionKey key,
+                                  final ForceLedgerCallback originalCallback,
+                                  final Object originalCtx,
+                                  final long ledgerId) {
+            super("ForceLedger",
+                  originalCtx, ledgerId, BookieProtocol.LAST_ADD_CONFIRMED,
+                  forceLedgerOpLogger, forceLedgerTimeoutOpLogger, LatencyOp.FORCE);
+            this.cb = new ForceLedgerCallback() {
+                    @Override
+                    public void forceLedgerComplete(int rc, long ledgerId,
+                                                 BookieSocketAddress addr,
+                                                 Object ctx) {
+                        logOpResult(rc);
+                        originalCallback.forceLedgerComplete(rc, ledgerId,
+                                                          addr, originalCtx);
+                        key.release();
+                    }
+                };
+        }
+
+        @Override
+        long timeoutNanos() {
+            // mostly like addEntry, hence uses addEntryTimeout
+            return addEntryTimeoutNanos;
+        }
+
+        @Override
+        public void errorOut() {
+            errorOut(BKException.Code.BookieHandleNotAvailableException);
+        }
+
+        @Override
+        public void errorOut(final int rc) {
+            errorOutAndRunCallback(
+                    () -> cb.forceLedgerComplete(rc, ledgerId, addr, ctx));
+        }
+
+        @Override
+        public void handleV3Response(BookkeeperProtocol.Response response) {
+            ForceLedgerResponse forceLedgerResponse = response.getForceLedgerResponse();
+            StatusCode status = response.getStatus() == StatusCode.EOK
+                ? forceLedgerResponse.getStatus() : response.getStatus();
+            long ledgerId = forceLedgerResponse.getLedgerId();
+
+            if (LOG.isDebugEnabled()) {
+                logResponse(status, "ledger", ledgerId);
+            }
+            int rc = convertStatus(status, BKException.Code.WriteException);
+            cb.forceLedgerComplete(rc, ledgerId, addr, ctx);
+        }
+    }
+
+    // visible for testing
+    class ReadLacCompletion extends CompletionValue {
+        final ReadLacCallback cb;
+
+        public ReadLacCompletion(final CompletionKey key,
+                                 ReadLacCallback originalCallback,
+                                 final Object ctx, final long ledgerId) {
+            super("ReadLAC", ctx, ledgerId, BookieProtocol.LAST_ADD_CONFIRMED,
+                  readLacOpLogger, readLacTimeoutOpLogger, LatencyOp.READ_LAC);
+            this.cb = new ReadLacCallback() {
+                    @Override
+                    public void readLacComplete(int rc, long ledgerId,
+                                                ByteBuf lacBuffer,
+                                                ByteBuf lastEntryBuffer,
+                                                Object ctx) {
+                        logOpResult(rc);
+                        originalCallback.readLacComplete(
+                                rc, ledgerId, lacBuffer, lastEntryBuffer, ctx);
+                        key.release();
+                    }
+                };
+        }
+
+        @Override
+        public void errorOut() {
+            errorOut(BKException.Code.BookieHandleNotAvailableException);
+        }
+
+        @Override
+        public void errorOut(final int rc) {
+            errorOutAndRunCallback(
+                    () -> cb.readLacComplete(rc, ledgerId, null, null, ctx));
+        }
+
+        @Override
+        public void handleV3Response(BookkeeperProtocol.Response response) {
+            ReadLacResponse readLacResponse = response.getReadLacResponse();
+            ByteBuf lacBuffer = Unpooled.EMPTY_BUFFER;
+            ByteBuf lastEntryBuffer = Unpooled.EMPTY_BUFFER;
+            StatusCode status = response.getStatus() == StatusCode.EOK
+                ? readLacResponse.getStatus() : response.getStatus();
+
+            if (readLacResponse.hasLacBody()) {
+                lacBuffer = Unpooled.wrappedBuffer(readLacResponse.getLacBody().asReadOnlyByteBuffer());
+            }
+
+            if (readLacResponse.hasLastEntryBody()) {
+                lastEntryBuffer = Unpooled.wrappedBuffer(readLacResponse.getLastEntryBody().asReadOnlyByteBuffer());
+            }
+
+            if (LOG.isDebugEnabled()) {
+                logResponse(status, "ledgerId", ledgerId);
+            }
+
+            int rc = convertStatus(status, BKException.Code.ReadException);
+            cb.readLacComplete(rc, ledgerId, lacBuffer.slice(),
+                               lastEntryBuffer.slice(), ctx);
+        }
+    }
+
+    // visible for testing
+    class ReadCompletion extends CompletionValue {
+        final CompletionKey key;
+        final ReadEntryCallback cb;
+        // set once the request made it to the wire, so that a cancelled read gives back its outstanding slot
+        private volatile boolean outstanding = false;
+        // whether the read is registered in inflightReads, so that identical reads can join it
+        boolean coalescible = false;
+        // set if the read is a long poll registered in lacSubscriptions, so that identical long polls can join it
+        LongPollKey pollKey = null;
+        // the reads that joined this one and the LAC piggy-backed on the response, guarded by this
+        private List<CoalescedRead> joined = null;
+        private boolean joinClosed = false;
+        private long maxLAC = INVALID_ENTRY_ID;
+        private long lacUpdateTimestamp = -1L;
+
+        public ReadCompletion(final CompletionKey key,
+                              final ReadEntryCallback originalCallback,
+                              final Object originalCtx,
+                              long ledgerId, final long entryId) {
+            super("Read", originalCtx, ledgerId, entryId,
+                  readEntryOpLogger, readTimeoutOpLogger, LatencyOp.READ);
+            this.key = key;
+
+            this.cb = new ReadEntryCallback() {
+                    @Override
+                    public void readEntryComplete(int rc, long ledgerId,
+                                                  long entryId, ByteBuf buffer,
+                                                  Object ctx) {
+                        logOpResult(rc);
+                        List<CoalescedRead> joinedReads = closeJoin();
+                        try {
+                            originalCallback.readEntryComplete(rc,
+                                                               ledgerId, entryId,
+                                                               buffer, originalCtx);
+                        } finally {
+                            if (joinedReads != null) {
+                                completeJoined(joinedReads, rc, ledgerId, entryId, buffer);
+                            }
+                        }
+                        key.release();
+                    }
+                };
+        }
+
+        @Override
+        public void errorOut() {
+            errorOut(BKException.Code.BookieHandleNotAvailableException);
+        }
+
+        @Override
+        public void errorOut(final int rc) {
+            errorOutAndRunCallback(
+                    () -> cb.readEntryComplete(rc, ledgerId,
+                                               entryId, null, ctx));
+        }
+
+        @Override
+        public void setOutstanding() {
+            outstanding = true;
+            readEntryOutstanding.inc();
+            numOutstandingReads.increment();
+        }
+
+        void cancelOutstanding() {
+            if (outstanding) {
+                readEntryOutstanding.dec();
+                numOutstandingReads.decrement();
+            }
+        }
+
+        /**
+         * Makes an identical read wait for the response of this one instead of sending its own.
+         *
+         * @return false if this read is already completing and cannot be joined anymore
+         */
+        synchronized boolean join(ReadEntryCallback cb, Object ctx) {
+            if (joinClosed) {
+                return false;
+            }
+            if (joined == null) {
+                joined = new ArrayList<>(2);
+            }
+            joined.add(new CoalescedRead(cb, ctx));
+            return true;
+        }
+
+        private boolean isJoinable() {
+            return coalescible || pollKey != null;
+        }
+
+        private void unregisterJoinable() {
+            if (coalescible) {
+                inflightReads.remove(ledgerId, entryId, OperationType.READ_ENTRY.getNumber(), this);
+            } else {
+                lacSubscriptions.unregister(pollKey, this);
+            }
+        }
+
+        private List<CoalescedRead> closeJoin() {
+            if (!isJoinable()) {
+                return null;
+            }
+            unregisterJoinable();
+            synchronized (this) {
+                joinClosed = true;
+                return joined;
+            }
+        }
+
+        /**
+         * Stops other reads from joining this one, unless some already did.
+         */
+        boolean closeIfNotJoined() {
+            if (!isJoinable()) {
+                return true;
+            }
+            synchronized (this) {
+                if (joined != null) {
+                    return false;
+                }
+                joinClosed = true;
+            }
+            unregisterJoinable();
+            return true;
+        }
+
+        private void completeJoined(List<CoalescedRead> joinedReads, int rc, long ledgerId, long entryId,
+                                    ByteBuf buffer) {
+            long lac;
+            long lacTimestamp;
+            synchronized (this) {
+                lac = maxLAC;
+                lacTimestamp = lacUpdateTimestamp;
+            }
+            for (CoalescedRead read : joinedReads) {
+                if (lac > INVALID_ENTRY_ID && (read.ctx instanceof ReadEntryCallbackCtx)) {
+                    ((ReadEntryCallbackCtx) read.ctx).setLastAddConfirmed(lac);
+                }
+                if (lacTimestamp > -1L && (read.ctx instanceof ReadLastConfirmedAndEntryContext)) {
+                    ((ReadLastConfirmedAndEntryContext) read.ctx).setLacUpdateTimestamp(lacTimestamp);
+                }
+                // every reader gets its own view of the payload, released once its callback returns
+                ByteBuf slice = buffer == null ? null : buffer.retainedSlice();
+                try {
+                    read.cb.readEntryComplete(rc, ledgerId, entryId, slice, read.ctx);
+                } catch (Throwable t) {
+                    LOG.error("Unexpected throwable caught in the callback of a coalesced read of {}:{}",
+                              ledgerId, entryId, t);
+                } finally {
+                    if (slice != null) {
+                        slice.release();
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void handleV2Response(long ledgerId, long entryId,
+                                     StatusCode status,
+                                     BookieProtocol.Response response) {
+            readEntryOutstanding.dec();
+            numOutstandingReads.decrement();
+            if (!(response instanceof BookieProtocol.ReadResponse)) {
+                return;
+            }
+            BookieProtocol.ReadResponse readResponse = (BookieProtocol.ReadResponse) response;
+            handleReadResponse(ledgerId, entryId, status, readResponse.getData(),
+                               INVALID_ENTRY_ID, -1L);
+        }
+
+        @Override
+        public void handleV3Response(BookkeeperProtocol.Response response) {
+            readEntryOutstanding.dec();
+            numOutstandingReads.decrement();
+            ReadResponse readResponse = response.getReadResponse();
+            StatusCode status = response.getStatus() == StatusCode.EOK
+                ? readResponse.getStatus() : response.getStatus();
+            ByteBuf buffer = Unpooled.EMPTY_BUFFER;
+            if (readResponse.hasBody()) {
+                buffer = Unpooled.wrappedBuffer(readResponse.getBody().asReadOnlyByteBuffer());
+            }
+            long maxLAC = INVALID_ENTRY_ID;
+            if (readResponse.hasMaxLAC()) {
+                maxLAC = readResponse.getMaxLAC();
+            }
+            long lacUpdateTimestamp = -1L;
+            if (readResponse.hasLacUpdateTimestamp()) {
+                lacUpdateTimestamp = readResponse.getLacUpdateTimestamp();
+            }
+            handleReadResponse(readResponse.getLedgerId(),
+                               readResponse.getEntryId(),
+                               status, buffer, maxLAC, lacUpdateTimestamp);
+            buffer.release(); // meaningless using unpooled, but client may expect to hold the last reference
+        }
+
+        private void handleReadResponse(long ledgerId,
+                                        long entryId,
+                                        StatusCode status,
+                                        ByteBuf buffer,
+                                        long maxLAC, // max known lac piggy-back from bookies
+                                        long lacUpdateTimestamp) { // the timestamp when the lac is updated.
+            int readableBytes = buffer.readableBytes();
+            if (LOG.isDebugEnabled()) {
+                logResponse(status, "ledger", ledgerId, "entry", entryId, "entryLength", readableBytes);
+            }
+
+            int rc = convertStatus(status, BKException.Code.ReadException);
+
+            if (maxLAC > INVALID_ENTRY_ID && (ctx instanceof ReadEntryCallbackCtx)) {
+                ((ReadEntryCallbackCtx) ctx).setLastAddConfirmed(maxLAC);
+            }
+            if (isJoinable()) {
+                synchronized (this) {
+                    this.maxLAC = maxLAC;
+                    this.lacUpdateTimestamp = lacUpdateTimestamp;
+                }
+            }
+            if (lacUpdateTimestamp > -1L && (ctx instanceof ReadLastConfirmedAndEntryContext)) {
+                ((ReadLastConfirmedAndEntryContext) ctx).setLacUpdateTimestamp(lacUpdateTimestamp);
+            }
+            cb.readEntryComplete(rc, ledgerId, entryId, buffer.slice(), ctx);
+        }
+    }
+
+    /**
+     * Identity of a long poll read: readers tailing the same ledger from the same LAC can share it.
+     * The entry and the previous LAC are part of the key because the response carries the entry
+     * after the previous LAC of the request; it is of no use to a reader that is at another LAC.
+     */
+    static final class LongPollKey {
+        final long ledgerId;
+        final long entryId;
+        final long previousLAC;
+        final boolean piggyBackEntry;
+
+        LongPollKey(long ledgerId, long entryId, long previousLAC, boolean piggyBackEntry) {
+            this.ledgerId = ledgerId;
+            this.entryId = entryId;
+            this.previousLAC = previousLAC;
+            this.piggyBackEntry = piggyBackEntry;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof LongPollKey)) {
+                return false;
+            }
+            LongPollKey that = (LongPollKey) o;
+            return ledgerId == that.ledgerId && entryId == that.entryId
+                    && previousLAC == that.previousLAC && piggyBackEntry == that.piggyBackEntry;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) V2CompletionTable.hash(ledgerId, entryId, (int) previousLAC) ^ (piggyBackEntry ? 1 : 0);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("LongPoll(Ledger=%d, Entry=%d, PreviousLAC=%d, Piggyback=%b)",
+                                 ledgerId, entryId, previousLAC, piggyBackEntry);
+        }
+    }
+
+    /**
+     * Keeps a single long poll in flight per ledger and previous LAC on this channel. Tailing readers
+     * that call {@link #readEntryWaitForLACUpdate} with the same arguments while a long poll is
+     * pending join it instead of sending their own request; once the LAC advances or the poll times
+     * out, the result, with the piggy-backed entry if one was requested, is fanned out to all of them.
+     * Readers of the same ledger at different LACs still send one poll each.
+     *
+     * <p>Readers that join a poll are bound by the timeout of the reader that sent it.
+     */
+    class LacSubscriptionManager {
+        private final ConcurrentHashMap<LongPollKey, ReadCompletion> polls = new ConcurrentHashMap<>();
+
+        boolean join(LongPollKey key, ReadEntryCallback cb, Object ctx) {
+            ReadCompletion poll = polls.get(key);
+            if (poll != null && poll.join(cb, ctx)) {
+                longPollsJoined.inc();
+                return true;
+            }
+            return false;
+        }
+
+        void register(LongPollKey key, ReadCompletion poll) {
+            // a poll that can no longer be joined is replaced, it unregisters itself only if still present
+            polls.put(key, poll);
+        }
+
+        void unregister(LongPollKey key, ReadCompletion poll) {
+            polls.remove(key, poll);
+        }
+
+        int getNumPolls() {
+            return polls.size();
+        }
+    }
+
+    /**
+     * A read waiting on an identical {@link ReadCompletion} already in flight.
+     */
+    static final class CoalescedRead {
+        final ReadEntryCallback cb;
+        final Object ctx;
+
+        CoalescedRead(ReadEntryCallback cb, Object ctx) {
+            this.cb = cb;
+            this.ctx = ctx;
+        }
+    }
+
+    class StartTLSCompletion extends CompletionValue {
+        final StartTLSCallback cb;
+
+        public StartTLSCompletion(final CompletionKey key) {
+            super("StartTLS", null, -1, -1,
+                  startTLSOpLogger, startTLSTimeoutOpLogger);
+            this.cb = new StartTLSCallback() {
+                @Override
+                public void startTLSComplete(int rc, Object ctx) {
+                    logOpResult(rc);
+                    key.release();
+                }
+            };
+        }
+
+        @Override
+        long timeoutNanos() {
+            return TimeUnit.SECONDS.toNanos(startTLSTimeout);
+        }
+
+        @Override
+        public void errorOut() {
+            errorOut(BKException.Code.BookieHandleNotAvailableException);
+        }
+
+        @Override
+        public void errorOut(final int rc) {
+            failTLS(rc);
+        }
+
+        @Override
+        public void handleV3Response(BookkeeperProtocol.Response response) {
+            StatusCode status = response.getStatus();
+
+            if (LOG.isDebugEnabled()) {
+                logResponse(status);
+            }
+
+            int rc = convertStatus(status, BKException.Code.SecurityException);
+
+            // Cancel START_TLS request timeout
+            cb.startTLSComplete(rc, null);
+
+            if (state != ConnectionState.START_TLS) {
+                LOG.error("Connection state changed before TLS response received");
+                failTLS(BKException.Code.BookieHandleNotAvailableException);
+            } else if (status != StatusCode.EOK) {
+                LOG.error("Client received error {} during TLS negotiation", status);
+                failTLS(BKException.Code.SecurityException);
+            } else {
+                initTLSHandshake();
+            }
+        }
+
+    }
+
+    // visible for testing
+    class GetBookieInfoCompletion extends CompletionValue {
+        final GetBookieInfoCallback cb;
+
+        public GetBookieInfoCompletion(final CompletionKey key,
+                                       final GetBookieInfoCallback origCallback,
+                                       final Object origCtx) {
+            super("GetBookieInfo", origCtx, 0L, 0L,
+                  getBookieInfoOpLogger, getBookieInfoTimeoutOpLogger);
+            this.cb = new GetBookieInfoCallback() {
+                @Override
+                public void getBookieInfoComplete(int rc, BookieInfo bInfo,
+                                                  Object ctx) {
+                    logOpResult(rc);
+                    origCallback.getBookieInfoComplete(rc, bInfo, origCtx);
+                    key.release();
+                }
+            };
+        }
+
+        @Override
+        long timeoutNanos() {
+            return TimeUnit.SECONDS.toNanos(getBookieInfoTimeout);
+        }
+
+        @Override
+        public void errorOut() {
+            errorOut(BKException.Code.BookieHandleNotAvailableException);
+        }
+
+        @Override
+        public void errorOut(final int rc) {
+            errorOutAndRunCallback(
+                    () -> cb.getBookieInfoComplete(rc, new BookieInfo(), ctx));
+        }
+
+        @Override
+        public void handleV3Response(BookkeeperProtocol.Response response) {
+            GetBookieInfoResponse getBookieInfoResponse = response.getGetBookieInfoResponse();
+            StatusCode status = response.getStatus() == StatusCode.EOK
+                ? getBookieInfoResponse.getStatus() : response.getStatus();
+
+            long freeDiskSpace = getBookieInfoResponse.getFreeDiskSpace();
+            long totalDiskSpace = getBookieInfoResponse.getTotalDiskCapacity();
+
+            if (LOG.isDebugEnabled()) {
+                logResponse(status, "freeDisk", freeDiskSpace, "totalDisk", totalDiskSpace);
+            }
+
+            int rc = convertStatus(status, BKException.Code.ReadException);
+            cb.getBookieInfoComplete(rc,
+                                     new BookieInfo(totalDiskSpace,
+                                                    freeDiskSpace), ctx);
+        }
+    }
+
+    private final Recycler<AddCompletion> addCompletionRecycler = new Recycler<AddCompletion>() {
+            protected AddCompletion newObject(Recycler.Handle<AddCompletion> handle) {
+                return new AddCompletion(handle);
+            }
+        };
+
+    AddCompletion acquireAddCompletion(final CompletionKey key,
+                                       final WriteCallback originalCallback,
+                                       final Object originalCtx,
+                                       final long ledgerId, final long entryId) {
+        AddCompletion completion = addCompletionRecycler.get();
+        completion.reset(key, originalCallback, originalCtx, ledgerId, entryId);
+        return completion;
+    }
+
+    // visible for testing
+    class AddCompletion extends CompletionValue implements WriteCallback {
+        final Recycler.Handle<AddCompletion> handle;
+
+        CompletionKey key = null;
+        WriteCallback originalCallback = null;
+
+        AddCompletion(Recycler.Handle<AddCompletion> handle) {
+            super("Add", null, -1, -1, addEntryOpLogger, addTimeoutOpLogger, LatencyOp.ADD);
+            this.handle = handle;
+        }
+
+        void reset(final CompletionKey key,
+                   final WriteCallback originalCallback,
+                   final Object originalCtx,
+                   final long ledgerId, final long entryId) {
+            this.key = key;
+            this.originalCallback = originalCallback;
+            this.ctx = originalCtx;
+            this.ledgerId = ledgerId;
+            this.entryId = entryId;
+            this.startTime = MathUtils.nowInNano();
+            this.concurrencyLimited = true;
+        }
+
+        @Override
+        public void writeComplete(int rc, long ledgerId, long entryId,
+                                  BookieSocketAddress addr,
+                                  Object ctx) {
+            logOpResult(rc);
+            originalCallback.writeComplete(rc, ledgerId, entryId, addr, ctx);
+            key.release();
+            handle.recycle(this);
+        }
+
+        @Override
+        long timeoutNanos() {
+            return addEntryTimeoutNanos;
+        }
+
+        @Override
+        public void errorOut() {
+            errorOut(BKException.Code.BookieHandleNotAvailableException);
+        }
+
+        @Override
+        public void errorOut(final int rc) {
+            errorOutAndRunCallback(
+                    () -> writeComplete(rc, ledgerId, entryId, addr, ctx));
+        }
+
+        @Override
+        public void setOutstanding() {
+            addEntryOutstanding.inc();
+            numOutstandingAdds.increment();
+        }
+
+        @Override
+        public void handleV2Response(
+                long ledgerId, long entryId, StatusCode status,
+                BookieProtocol.Response response) {
+            addEntryOutstanding.dec();
+            numOutstandingAdds.decrement();
+            handleResponse(ledgerId, entryId, status);
+        }
+
+        @Override
+        public void handleV3Response(
+                BookkeeperProtocol.Response response) {
+            addEntryOutstanding.dec();
+            numOutstandingAdds.decrement();
+            AddResponse addResponse = response.getAddResponse();
+            StatusCode status = response.getStatus() == StatusCode.EOK
+                ? addResponse.getStatus() : response.getStatus();
+            handleResponse(addResponse.getLedgerId(), addResponse.getEntryId(),
+                           status);
+        }
+
+        private void handleResponse(long ledgerId, long entryId,
+                                    StatusCode status) {
+            if (LOG.isDebugEnabled()) {
+                logResponse(status, "ledger", ledgerId, "entry", entryId);
+            }
+
+            int rc = convertStatus(status, BKException.Code.WriteException);
+            writeComplete(rc, ledgerId, entryId, addr, ctx);
+        }
+    }
+
+    // visable for testing
+    CompletionKey newCompletionKey(long txnId, OperationType operationType) {
+        return new V3CompletionKey(txnId, operationType);
+    }
+
+    class V3CompletionKey extends CompletionKey {
+
+        public V3CompletionKey(long txnId, OperationType operationType) {
+            super(txnId, operationType);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof V3CompletionKey)) {
+                return false;
+            }
+            V3CompletionKey that = (V3CompletionKey) obj;
+            return this.txnId == that.txnId && this.operationType == that.operationType;
+        }
+
+        @Override
+        public int hashCode() {
+            return ((int) txnId);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("TxnId(%d), OperationType(%s)", txnId, operationType);
+        }
+
+    }
+
+    abstract class CompletionKey {
+        final long txnId;
+        OperationType operationType;
+
+        CompletionKey(long txnId,
+                      OperationType operationType) {
+            this.txnId = txnId;
+            this.operationType = operationType;
+        }
+
+        public void release() {}
+    }
+
+    /**
+     * Note : Helper functions follow
+     */
+
+    /**
+     * @param status
+     * @return {@link BKException.Code.UNINITIALIZED} if the statuscode is unknown.
+     */
+    private int statusCodeToExceptionCode(StatusCode status) {
+        switch (status) {
+            case EOK:
+                return BKException.Code.OK;
+            case ENOENTRY:
+                return BKException.Code.NoSuchEntryException;
+            case ENOLEDGER:
+                return BKException.Code.NoSuchLedgerExistsException;
+            case EBADVERSION:
+                return BKException.Code.ProtocolVersionException;
+            case EUA:
+                return BKException.Code.UnauthorizedAccessException;
+            case EFENCED:
+                return BKException.Code.LedgerFencedException;
+            case EREADONLY:
+                return BKException.Code.WriteOnReadOnlyBookieException;
+            case ETOOMANYREQUESTS:
+                return BKException.Code.TooManyRequestsException;
+            default:
+                return BKException.Code.UNINITIALIZED;
+        }
+    }
+
+    /**
+     * Registers the completion of a request, which restores the given context on its callback. The
+     * context is captured once per request and is the one the request is sent with.
+     */
+    private void putCompletionKeyValue(CompletionKey key, CompletionValue value, MdcRequestContext requestContext) {
+        value.mdcContext = requestContext;
+        // link into the wheel before publishing: once in the maps, the completion can be removed,
+        // completed and recycled by another thread at any time
+        timeoutWheel.register(key, value);
+        if (key instanceof V2CompletionKey) {
+            // V2 keys are not unique: pending reads on the same ledger/entry are all kept under the same key
+            V2CompletionKey v2Key = (V2CompletionKey) key;
+            completionObjectsV2.put(v2Key.ledgerId, v2Key.entryId, v2Key.operationType.getNumber(), value);
+        } else {
+            completionObjects.put(key, value);
+        }
+        if (value.concurrencyLimited && concurrencyLimiter != null) {
+            concurrencyLimiter.onRegister();
+        }
+    }
+
+    private CompletionValue getCompletionValue(CompletionKey key) {
+        CompletionValue completionValue;
+        if (key instanceof V2CompletionKey) {
+            V2CompletionKey v2Key = (V2CompletionKey) key;
+            completionValue = completionObjectsV2.removeAny(
+                    v2Key.ledgerId, v2Key.entryId, v2Key.operationType.getNumber());
+        } else {
+            completionValue = completionObjects.remove(key);
+        }
+        if (completionValue != null) {
+            timeoutWheel.cancel(completionValue);
+        }
+        return completionValue;
+    }
+
+    /**
+     * Removes the given completion from the completion maps, only if it is still registered under its key.
+     */
+    private boolean removeCompletionValue(CompletionKey key, CompletionValue value) {
+        if (key instanceof V2CompletionKey) {
+            V2CompletionKey v2Key = (V2CompletionKey) key;
+            return completionObjectsV2.remove(v2Key.ledgerId, v2Key.entryId, v2Key.operationType.getNumber(), value);
+        }
+        return completionObjects.remove(key, value);
+    }
+
+    private CompletionValue peekCompletionValue(CompletionKey key) {
+        if (key instanceof V2CompletionKey) {
+            V2CompletionKey v2Key = (V2CompletionKey) key;
+            return completionObjectsV2.get(v2Key.ledgerId, v2Key.entryId, v2Key.operationType.getNumber());
+        }
+        return completionObjects.get(key);
+    }
+
+    private long getTxnId() {
+        return txnIdGenerator.incrementAndGet();
+    }
+
+    private final Recycler<V2CompletionKey> v2KeyRecycler = new Recycler<V2CompletionKey>() {
+            protected V2CompletionKey newObject(
+                    Recycler.Handle<V2CompletionKey> handle) {
+                return new V2CompletionKey(handle);
+            }
+        };
+
+    V2CompletionKey acquireV2Key(long ledgerId, long entryId,
+                             OperationType operationType) {
+        V2CompletionKey key = v2KeyRecycler.get();
+        key.reset(ledgerId, entryId, operationType);
+        return key;
+    }
+
+    private class V2CompletionKey extends CompletionKey {
+        private final Handle<V2CompletionKey> recyclerHandle;
+        long ledgerId;
+        long entryId;
+
+        private V2CompletionKey(Handle<V2CompletionKey> handle) {
+            super(-1, null);
+            this.recyclerHandle = handle;
+        }
+
+        void reset(long ledgerId, long entryId, OperationType operationType) {
+            this.ledgerId = ledgerId;
+            this.entryId = entryId;
+            this.operationType = operationType;
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (!(object instanceof V2CompletionKey)) {
+                return  false;
+            }
+            V2CompletionKey that = (V2CompletionKey) object;
+            return this.entryId == that.entryId
+                && this.ledgerId == that.ledgerId
+                && this.operationType == that.operationType;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(ledgerId) * 31 + Long.hashCode(entryId);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d:%d %s", ledgerId, entryId, operationType);
+        }
+
+        @Override
+        public void release() {
+            recyclerHandle.recycle(this);
+        }
+    }
+
+    /**
+     * Hashed timing wheel indexing the deadlines of the pending completions. Completions are linked
+     * into the bucket of the tick their deadline falls in, which makes registration and cancellation
+     * O(1), while {@link #expire(long)} only visits the buckets whose tick has passed since the
+     * previous check. Completions whose deadline is more than one rotation away stay in their bucket
+     * until a later visit finds them due.
+     */
+    class TimeoutWheel {
+        private static final int WHEEL_SIZE = 512;
+        private final long tickNanos = TimeUnit.MILLISECONDS.toNanos(100);
+        private final Bucket[] buckets = new Bucket[WHEEL_SIZE];
+        // last tick whose bucket has been expired; updated under that bucket's lock
+        private volatile long lastExpiredTick;
+
+        class Bucket {
+            CompletionValue head;
+        }
+
+        TimeoutWheel() {
+            for (int i = 0; i < WHEEL_SIZE; i++) {
+                buckets[i] = new Bucket();
+            }
+            this.lastExpiredTick = tickOf(MathUtils.nowInNano()) - 1;
+        }
+
+        private long tickOf(long nanos) {
+            return Math.floorDiv(nanos, tickNanos);
+        }
+
+        void register(CompletionKey key, CompletionValue value) {
+            long deadline = value.startTime + value.timeoutNanos();
+            long deadlineTick = tickOf(deadline);
+            while (true) {
+                long tick = Math.max(deadlineTick, lastExpiredTick + 1);
+                Bucket bucket = buckets[(int) (tick & (WHEEL_SIZE - 1))];
+                synchronized (bucket) {
+                    if (tick <= lastExpiredTick) {
+                        // the wheel moved past this tick while we were picking the bucket
+                        continue;
+                    }
+                    value.timeoutKey = key;
+                    value.timeoutDeadline = deadline;
+                    value.timeoutPrev = null;
+                    value.timeoutNext = bucket.head;
+                    if (bucket.head != null) {
+                        bucket.head.timeoutPrev = value;
+                    }
+                    bucket.head = value;
+                    value.timeoutBucket = bucket;
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Drops the completion from the wheel. Must be called once the completion has been removed
+         * from the completion maps and before its callback runs.
+         */
+        void cancel(CompletionValue value) {
+            Bucket bucket;
+            while ((bucket = value.timeoutBucket) != null) {
+                synchronized (bucket) {
+                    if (value.timeoutBucket == bucket) {
+                        unlink(bucket, value);
+                        return;
+                    }
+                }
+            }
+        }
+
+        private void unlink(Bucket bucket, CompletionValue value) {
+            if (value.timeoutPrev != null) {
+                value.timeoutPrev.timeoutNext = value.timeoutNext;
+            } else {
+                bucket.head = value.timeoutNext;
+            }
+            if (value.timeoutNext != null) {
+                value.timeoutNext.timeoutPrev = value.timeoutPrev;
+            }
+            value.timeoutPrev = null;
+            value.timeoutNext = null;
+            value.timeoutKey = null;
+            value.timeoutBucket = null;
+        }
+
+        /**
+         * Times out the completions whose deadline has passed.
+         *
+         * @return the number of timed out completions
+         */
+        int expire(long now) {
+            long currentTick = tickOf(now);
+            long fromTick = Math.max(lastExpiredTick + 1, currentTick - WHEEL_SIZE + 1);
+            List<CompletionValue> expired = null;
+            for (long tick = fromTick; tick <= currentTick; tick++) {
+                Bucket bucket = buckets[(int) (tick & (WHEEL_SIZE - 1))];
+                synchronized (bucket) {
+                    CompletionValue value = bucket.head;
+                    while (value != null) {
+                        CompletionValue next = value.timeoutNext;
+                        // the completion cannot be recycled while it is linked here, since whoever
+                        // removes it from the maps has to cancel it before running the callback.
+                        // One that is not in the maps is left to that thread, or is not published
+                        // yet and is looked at again on the next rotation
+                        if (value.timeoutDeadline - now <= 0 && removeCompletionValue(value.timeoutKey, value)) {
+                            unlink(bucket, value);
+                            if (expired == null) {
+                                expired = new ArrayList<>();
+                            }
+                            expired.add(value);
+                        }
+                        value = next;
+                    }
+                    lastExpiredTick = tick;
+                }
+            }
+            if (expired == null) {
+                return 0;
+            }
+            for (CompletionValue value : expired) {
+                value.timeout();
+            }
+            return expired.size();
+        }
+    }
+
+    /**
+     * Pool that stripes the traffic to one bookie over several channels. Requests keyed by ledger
+     * always go to the same channel, picked among the first numChannelsPerBookie channels, so the
+     * adds, LAC writes and forces of a ledger keep their order on the wire. Reads of different
+     * entries are spread over all the stripes in use.
+     *
+     * <p>The number of read stripes adapts to the load: every timeout check looks at the average
+     * number of outstanding adds and reads per stripe, doubling the stripes when it is above the high
+     * mark and halving them when it is below the low mark, at most once per
+     * {@link #RESIZE_INTERVAL_MS}. Only reads move on a resize, so no ordering is lost. Channels
+     * dropped from the rotation are disconnected once they have nothing pending.
+     */
+    static class StripedBookieClientPool implements PerChannelBookieClientPool {
+        static final String MIN_STRIPES = "clientStripedChannelsMin";
+        static final String MAX_STRIPES = "clientStripedChannelsMax";
+        static final String STRIPE_HIGH_OUTSTANDING = "clientStripedChannelsHighOutstanding";
+        static final String STRIPE_LOW_OUTSTANDING = "clientStripedChannelsLowOutstanding";
+        static final long RESIZE_INTERVAL_MS = 10000;
+
+        private final PerChannelBookieClient[] clients;
+        private final Runnable errorRecorder;
+        private final int minStripes;
+        // channels the requests keyed by ledger are spread over, fixed for the life of the pool
+        private final int orderedStripes;
+        private final long highOutstanding;
+        private final long lowOutstanding;
+        private volatile int activeStripes;
+        private volatile long lastResizeTime;
+
+        /**
+         * @param clientFactory creates the client of one stripe, bound to this pool
+         * @param errorRecorder notified of the errors recorded by any of the stripes
+         */
+        StripedBookieClientPool(ClientConfiguration conf,
+                                Function<PerChannelBookieClientPool, PerChannelBookieClient> clientFactory,
+                                Runnable errorRecorder) {
+            this.errorRecorder = errorRecorder;
+            int maxStripes = Math.max(1, conf.getInt(MAX_STRIPES, conf.getNumChannelsPerBookie()));
+            this.minStripes = Math.min(maxStripes, Math.max(1, conf.getInt(MIN_STRIPES, 1)));
+            this.orderedStripes = Math.min(maxStripes, Math.max(1, conf.getNumChannelsPerBookie()));
+            this.highOutstanding = conf.getLong(STRIPE_HIGH_OUTSTANDING, 1000);
+            this.lowOutstanding = conf.getLong(STRIPE_LOW_OUTSTANDING, 100);
+            this.clients = new PerChannelBookieClient[maxStripes];
+            for (int i = 0; i < maxStripes; i++) {
+                clients[i] = clientFactory.apply(this);
+            }
+            this.activeStripes = minStripes;
+            this.lastResizeTime = MathUtils.now();
+        }
+
+        @Override
+        public void intialize() {
+            for (int i = 0; i < Math.max(activeStripes, orderedStripes); i++) {
+                clients[i].connectIfNeededAndDoOp((rc, client) -> {});
+            }
+        }
+
+        /**
+         * Routes by ledger, the key is expected to be the ledger id. The mapping does not depend on
+         * the number of read stripes in use, so a resize never moves a ledger to another channel.
+         */
+        @Override
+        public void obtain(GenericCallback<PerChannelBookieClient> callback, long key) {
+            clientForKey(key).connectIfNeededAndDoOp(callback);
+        }
+
+        /**
+         * Routes a read by ledger and entry, so that reads of different entries use different channels.
+         */
+        public void obtainForRead(GenericCallback<PerChannelBookieClient> callback, long ledgerId, long entryId) {
+            long key = V2CompletionTable.hash(ledgerId, entryId, 0) >>> 1;
+            clients[MathUtils.signSafeMod(key, activeStripes)].connectIfNeededAndDoOp(callback);
+        }
+
+        @Override
+        public boolean isWritable(long key) {
+            return clientForKey(key).isWritable();
+        }
+
+        private PerChannelBookieClient clientForKey(long key) {
+            return clients[MathUtils.signSafeMod(key, orderedStripes)];
+        }
+
+        int getActiveStripes() {
+            return activeStripes;
+        }
+
+        @Override
+        public long getNumPendingCompletionRequests() {
+            long pending = 0;
+            for (PerChannelBookieClient client : clients) {
+                pending += client.getNumPendingCompletionRequests();
+            }
+            return pending;
+        }
+
+        @Override
+        public void checkTimeoutOnPendingOperations() {
+            for (PerChannelBookieClient client : clients) {
+                client.checkTimeoutOnPendingOperations();
+            }
+            maybeResize();
+        }
+
+        private void maybeResize() {
+            int stripes = activeStripes;
+            long outstanding = 0;
+            for (int i = 0; i < stripes; i++) {
+                outstanding += clients[i].getNumOutstandingAdds() + clients[i].getNumOutstandingReads();
+            }
+            long perStripe = outstanding / stripes;
+            long now = MathUtils.now();
+            if (now - lastResizeTime >= RESIZE_INTERVAL_MS) {
+                int newStripes = stripes;
+                if (perStripe > highOutstanding && stripes < clients.length) {
+                    newStripes = Math.min(clients.length, stripes * 2);
+                } else if (perStripe < lowOutstanding && stripes > minStripes) {
+                    newStripes = Math.max(minStripes, stripes / 2);
+                }
+                if (newStripes != stripes) {
+                    LOG.info("Resizing bookie client stripes to {}: {} outstanding requests per stripe for {}",
+                             newStripes, perStripe, clients[0].addr);
+                    activeStripes = newStripes;
+                    lastResizeTime = now;
+                }
+            }
+            // channels out of the rotation are released once they have drained
+            for (int i = Math.max(activeStripes, orderedStripes); i < clients.length; i++) {
+                PerChannelBookieClient client = clients[i];
+                if (client.channel != null && client.getNumPendingCompletionRequests() == 0) {
+                    client.disconnect(false);
+                }
+            }
+        }
+
+        @Override
+        public void recordError() {
+            errorRecorder.run();
+        }
+
+        @Override
+        public void disconnect(boolean wait) {
+            for (PerChannelBookieClient client : clients) {
+                client.disconnect(wait);
+            }
         }
 
         @Override
-        public void handleV2Response(long ledgerId, long entryId,
-                                     StatusCode status,
-                                     BookieProtocol.Response response) {
-            readEntryOutstanding.dec();
-            if (!(response instanceof BookieProtocol.ReadResponse)) {
-                return;
+        public void close(boolean wait) {
+            for (PerChannelBookieClient client : clients) {
+                client.close(wait);
             }
-            BookieProtocol.ReadResponse readResponse = (BookieProtocol.ReadResponse) response;
-            handleReadResponse(ledgerId, entryId, status, readResponse.getData(),
-                               INVALID_ENTRY_ID, -1L);
         }
+    }
 
-        @Override
-        public void handleV3Response(BookkeeperProtocol.Response response) {
-            readEntryOutstanding.dec();
-            ReadResponse readResponse = response.getReadResponse();
-            StatusCode status = response.getStatus() == StatusCode.EOK
-                ? readResponse.getStatus() : response.getStatus();
-            ByteBuf buffer = Unpooled.EMPTY_BUFFER;
-            if (readResponse.hasBody()) {
-                buffer = Unpooled.wrappedBuffer(readResponse.getBody().asReadOnlyByteBuffer());
+    /**
+     * AIMD limit on the number of outstanding adds and reads of a channel. The latency of every
+     * completed request is compared with a slowly moving baseline: a request that took more than
+     * {@link #LATENCY_TOLERANCE} times the baseline, or that timed out, cuts the limit by
+     * {@link #BACKOFF_RATIO} (at most once per baseline latency), while the others raise it by
+     * about one for every limit's worth of completions. Requests allowing fast fail are rejected
+     * while the number of outstanding requests is above the limit, which kicks in long before the
+     * channel stops being writable.
+     *
+     * <p>The limit and the baseline are updated without synchronization; a lost update only delays
+     * the adaptation by one sample.
+     */
+    static class AimdConcurrencyLimiter {
+        private static final double BACKOFF_RATIO = 0.9;
+        private static final double LATENCY_TOLERANCE = 2.0;
+        private static final double BASELINE_ALPHA = 0.01;
+
+        private final int minLimit;
+        private final int maxLimit;
+        private final AtomicInteger inflight = new AtomicInteger(0);
+        private volatile double limit;
+        private volatile double baselineLatencyNanos = -1;
+        // nanoTime has an arbitrary origin, so no value of it can stand for "never decreased"
+        private volatile boolean decreased = false;
+        private volatile long lastDecreaseNanos;
+
+        AimdConcurrencyLimiter(int minLimit, int maxLimit, int initialLimit) {
+            checkArgument(minLimit > 0 && minLimit <= maxLimit, "invalid concurrency limit bounds");
+            this.minLimit = minLimit;
+            this.maxLimit = maxLimit;
+            this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+        }
+
+        int getLimit() {
+            return (int) limit;
+        }
+
+        int getInflight() {
+            return inflight.get();
+        }
+
+        void onRegister() {
+            inflight.incrementAndGet();
+        }
+
+        void onCancel() {
+            inflight.decrementAndGet();
+        }
+
+        boolean isOverLimit() {
+            return inflight.get() > limit;
+        }
+
+        void onComplete(long latencyNanos, int rc) {
+            inflight.decrementAndGet();
+            if (rc == BKException.Code.TimeoutException) {
+                decrease();
+                return;
+            } else if (rc != BKException.Code.OK) {
+                // errors say nothing about the load, and TooManyRequests may come from this limiter
+                return;
             }
-            long maxLAC = INVALID_ENTRY_ID;
-            if (readResponse.hasMaxLAC()) {
-                maxLAC = readResponse.getMaxLAC();
+            double baseline = baselineLatencyNanos;
+            if (baseline < 0) {
+                baselineLatencyNanos = latencyNanos;
+                return;
             }
-            long lacUpdateTimestamp = -1L;
-            if (readResponse.hasLacUpdateTimestamp()) {
-                lacUpdateTimestamp = readResponse.getLacUpdateTimestamp();
+            baselineLatencyNanos = baseline + (latencyNanos - baseline) * BASELINE_ALPHA;
+            if (latencyNanos > baseline * LATENCY_TOLERANCE) {
+                decrease();
+            } else {
+                double l = limit;
+                if (l < maxLimit) {
+                    limit = Math.min(maxLimit, l + 1.0 / l);
+                }
             }
-            handleReadResponse(readResponse.getLedgerId(),
-                               readResponse.getEntryId(),
-                               status, buffer, maxLAC, lacUpdateTimestamp);
-            buffer.release(); // meaningless using unpooled, but client may expect to hold the last reference
         }
 
-        private void handleReadResponse(long ledgerId,
-                                        long entryId,
-                                        StatusCode status,
-                                        ByteBuf buffer,
-                                        long maxLAC, // max known lac piggy-back from bookies
-                                        long lacUpdateTimestamp) { // the timestamp when the lac is updated.
-            int readableBytes = buffer.readableBytes();
-            if (LOG.isDebugEnabled()) {
-                logResponse(status, "ledger", ledgerId, "entry", entryId, "entryLength", readableBytes);
+        private void decrease() {
+            long now = MathUtils.nowInNano();
+            if (decreased && now - lastDecreaseNanos < baselineLatencyNanos) {
+                // the requests completing now were sent before the previous cut
+                return;
             }
+            lastDecreaseNanos = now;
+            decreased = true;
+            limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+        }
+    }
 
-            int rc = convertStatus(status, BKException.Code.ReadException);
+    /**
+     * Decaying log2 histogram of read latencies in micros. Updates are lock-free; the counts are
+     * halved every {@link #DECAY_SAMPLES} samples so that the percentiles follow the recent reads.
+     * Concurrent updates racing with a decay may be lost, which is fine for an estimate.
+     */
+    static class ReadLatencyTracker {
+        private static final int NUM_BUCKETS = 40;
+        private static final int DECAY_SAMPLES = 4096;
+        private static final long MIN_SAMPLES = 32;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+        private final AtomicLong samples = new AtomicLong(0);
+
+        void record(long latencyNanos) {
+            long micros = TimeUnit.NANOSECONDS.toMicros(latencyNanos);
+            int bucket = Math.min(NUM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+            buckets.incrementAndGet(bucket);
+            if (samples.incrementAndGet() % DECAY_SAMPLES == 0) {
+                for (int i = 0; i < NUM_BUCKETS; i++) {
+                    long count = buckets.get(i);
+                    buckets.addAndGet(i, -(count >>> 1));
+                }
+            }
+        }
 
-            if (maxLAC > INVALID_ENTRY_ID && (ctx instanceof ReadEntryCallbackCtx)) {
-                ((ReadEntryCallbackCtx) ctx).setLastAddConfirmed(maxLAC);
+        /**
+         * @return the upper bound of the bucket holding the percentile, in nanos, or -1 without enough samples
+         */
+        long percentileNanos(double percentile) {
+            if (samples.get() < MIN_SAMPLES) {
+                return -1;
             }
-            if (lacUpdateTimestamp > -1L && (ctx instanceof ReadLastConfirmedAndEntryContext)) {
-                ((ReadLastConfirmedAndEntryContext) ctx).setLacUpdateTimestamp(lacUpdateTimestamp);
+            long[] counts = new long[NUM_BUCKETS];
+            long total = 0;
+            for (int i = 0; i < NUM_BUCKETS; i++) {
+                counts[i] = buckets.get(i);
+                total += counts[i];
             }
-            cb.readEntryComplete(rc, ledgerId, entryId, buffer.slice(), ctx);
+            long threshold = (long) Math.ceil(total * percentile / 100.0);
+            long seen = 0;
+            for (int i = 0; i < NUM_BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= threshold) {
+                    return TimeUnit.MICROSECONDS.toNanos(1L << i);
+                }
+            }
+            return TimeUnit.MICROSECONDS.toNanos(1L << (NUM_BUCKETS - 1));
         }
     }
 
-    class StartTLSCompletion extends CompletionValue {
-        final StartTLSCallback cb;
-
-        public StartTLSCompletion(final CompletionKey key) {
-            super("StartTLS", null, -1, -1,
-                  startTLSOpLogger, startTLSTimeoutOpLogger);
-            this.cb = new StartTLSCallback() {
-                @Override
-                public void startTLSComplete(int rc, Object ctx) {
-                    logOpResult(rc);
-                    key.release();
-                }
-            };
+    /**
+     * Speculative reads over the clients of the replicas of an entry. The entry is first read from
+     * the first replica; if the read is still pending after the configured percentile of that
+     * bookie's recent read latency, it is also requested from the next replica, and so on. The
+     * first successful read wins, the reads still in flight are cancelled and their responses
+     * released. A failed read moves on to the next replica right away.
+     */
+    static class HedgedReader {
+        static final String HEDGED_READ_PERCENTILE = "clientHedgedReadPercentile";
+        static final String HEDGED_READ_MIN_DELAY_MICROS = "clientHedgedReadMinDelayMicros";
+        static final String HEDGED_READ_DEFAULT_DELAY_MICROS = "clientHedgedReadDefaultDelayMicros";
+        static final String HEDGED_READS_ISSUED = "HEDGED_READS_ISSUED";
+        static final String HEDGED_READS_WON = "HEDGED_READS_WON";
+
+        private final ScheduledExecutorService scheduler;
+        private final double percentile;
+        private final long minDelayNanos;
+        private final long defaultDelayNanos;
+        @StatsDoc(
+            name = HEDGED_READS_ISSUED,
+            help = "the number of speculative reads sent to another replica"
+        )
+        private final Counter hedgesIssued;
+        @StatsDoc(
+            name = HEDGED_READS_WON,
+            help = "the number of reads completed by a speculative read"
+        )
+        private final Counter hedgesWon;
+
+        HedgedReader(ClientConfiguration conf, ScheduledExecutorService scheduler, StatsLogger statsLogger) {
+            this.scheduler = scheduler;
+            this.percentile = conf.getDouble(HEDGED_READ_PERCENTILE, 95.0);
+            checkArgument(percentile > 0 && percentile <= 100, "invalid hedged read percentile");
+            this.minDelayNanos = TimeUnit.MICROSECONDS.toNanos(conf.getLong(HEDGED_READ_MIN_DELAY_MICROS, 500));
+            this.defaultDelayNanos = TimeUnit.MICROSECONDS.toNanos(
+                    conf.getLong(HEDGED_READ_DEFAULT_DELAY_MICROS, 10000));
+            this.hedgesIssued = statsLogger.getCounter(HEDGED_READS_ISSUED);
+            this.hedgesWon = statsLogger.getCounter(HEDGED_READS_WON);
         }
 
-        @Override
-        public void errorOut() {
-            errorOut(BKException.Code.BookieHandleNotAvailableException);
+        /**
+         * Reads an entry from the given replicas, in order of preference. The buffer passed to the
+         * callback follows the {@link PerChannelBookieClient#readEntry} contract.
+         */
+        void readEntry(PerChannelBookieClient[] replicas,
+                       long ledgerId,
+                       long entryId,
+                       ReadEntryCallback cb,
+                       Object ctx,
+                       int flags,
+                       byte[] masterKey) {
+            checkArgument(replicas.length > 0, "no replica to read from");
+            new HedgedReadOp(replicas, ledgerId, entryId, cb, ctx, flags, masterKey).start();
         }
 
-        @Override
-        public void errorOut(final int rc) {
-            failTLS(rc);
+        private long hedgeDelayNanos(PerChannelBookieClient client) {
+            long latency = client.getReadLatencyPercentileNanos(percentile);
+            if (latency < 0) {
+                return defaultDelayNanos;
+            }
+            return Math.max(minDelayNanos, latency);
         }
 
-        @Override
-        public void handleV3Response(BookkeeperProtocol.Response response) {
-            StatusCode status = response.getStatus();
-
-            if (LOG.isDebugEnabled()) {
-                logResponse(status);
+        class HedgedReadOp implements ReadEntryCallback, Runnable {
+            private final PerChannelBookieClient[] replicas;
+            private final ReadCompletion[] reads;
+            private final boolean[] completed;
+            private final long ledgerId;
+            private final long entryId;
+            private final ReadEntryCallback cb;
+            private final Object ctx;
+            private final int flags;
+            private final byte[] masterKey;
+
+            private int nextReplica = 0;
+            private int outstanding = 0;
+            private int lastRc = BKException.Code.BookieHandleNotAvailableException;
+            private boolean done = false;
+            private ScheduledFuture<?> hedgeTimer = null;
+
+            HedgedReadOp(PerChannelBookieClient[] replicas, long ledgerId, long entryId,
+                         ReadEntryCallback cb, Object ctx, int flags, byte[] masterKey) {
+                this.replicas = replicas;
+                this.reads = new ReadCompletion[replicas.length];
+                this.completed = new boolean[replicas.length];
+                this.ledgerId = ledgerId;
+                this.entryId = entryId;
+                this.cb = cb;
+                this.ctx = ctx;
+                this.flags = flags;
+                this.masterKey = masterKey;
             }
 
-            int rc = convertStatus(status, BKException.Code.SecurityException);
+            void start() {
+                int replica;
+                synchronized (this) {
+                    replica = claimNext(false);
+                }
+                send(replica);
+            }
 
-            // Cancel START_TLS request timeout
-            cb.startTLSComplete(rc, null);
+            // the hedge timer
+            @Override
+            public void run() {
+                int replica;
+                synchronized (this) {
+                    hedgeTimer = null;
+                    if (done || nextReplica >= replicas.length) {
+                        return;
+                    }
+                    replica = claimNext(true);
+                }
+                send(replica);
+            }
 
-            if (state != ConnectionState.START_TLS) {
-                LOG.error("Connection state changed before TLS response received");
-                failTLS(BKException.Code.BookieHandleNotAvailableException);
-            } else if (status != StatusCode.EOK) {
-                LOG.error("Client received error {} during TLS negotiation", status);
-                failTLS(BKException.Code.SecurityException);
-            } else {
-                initTLSHandshake();
+            /**
+             * Picks the next replica to read from and arms the hedge timer. Called holding the lock.
+             */
+            private int claimNext(boolean hedge) {
+                int replica = nextReplica++;
+                outstanding++;
+                if (hedge) {
+                    hedgesIssued.inc();
+                }
+                if (nextReplica < replicas.length && hedgeTimer == null) {
+                    hedgeTimer = scheduler.schedule(this, hedgeDelayNanos(replicas[replica]), TimeUnit.NANOSECONDS);
+                }
+                return replica;
             }
-        }
 
-    }
+            /**
+             * Sends the read to the replica. Called without holding the lock: a read rejected right
+             * away completes on this thread, and may run the callback of the op.
+             */
+            private void send(int replica) {
+                ReadCompletion read = replicas[replica].readEntryCancellable(
+                        ledgerId, entryId, this, replica, flags, masterKey);
+                boolean lost = false;
+                synchronized (this) {
+                    if (completed[replica]) {
+                        // the read was rejected and completed synchronously
+                        return;
+                    }
+                    if (done) {
+                        // another read won while this one was being sent
+                        lost = true;
+                    } else {
+                        reads[replica] = read;
+                    }
+                }
+                if (lost && read != null) {
+                    replicas[replica].cancelRead(read);
+                }
+            }
 
-    // visible for testing
-    class GetBookieInfoCompletion extends CompletionValue {
-        final GetBookieInfoCallback cb;
+            @Override
+            public void readEntryComplete(int rc, long ledgerId, long entryId, ByteBuf buffer, Object replicaCtx) {
+                int replica = (Integer) replicaCtx;
+                ReadCompletion[] losers = null;
+                int next = -1;
+                synchronized (this) {
+                    outstanding--;
+                    completed[replica] = true;
+                    reads[replica] = null;
+                    if (done) {
+                        // a read that lost the race, its buffer is released by the client once we return
+                        return;
+                    }
+                    if (rc != BKException.Code.OK) {
+                        lastRc = rc;
+                        if (nextReplica < replicas.length) {
+                            // move on right away, whether or not other reads are still pending
+                            cancelHedgeTimer();
+                            next = claimNext(false);
+                        } else if (outstanding > 0) {
+                            return;
+                        }
+                    } else {
+                        if (replica > 0) {
+                            hedgesWon.inc();
+                        }
+                        losers = reads.clone();
+                        Arrays.fill(reads, null);
+                    }
+                    if (next < 0) {
+                        done = true;
+                        cancelHedgeTimer();
+                    }
+                }
+                if (next >= 0) {
+                    send(next);
+                } else if (losers != null) {
+                    for (int i = 0; i < losers.length; i++) {
+                        if (losers[i] != null) {
+                            replicas[i].cancelRead(losers[i]);
+                        }
+                    }
+                    cb.readEntryComplete(rc, ledgerId, entryId, buffer, ctx);
+                } else {
+                    cb.readEntryComplete(lastRc, ledgerId, entryId, null, ctx);
+                }
+            }
 
-        public GetBookieInfoCompletion(final CompletionKey key,
-                                       final GetBookieInfoCallback origCallback,
-                                       final Object origCtx) {
-            super("GetBookieInfo", origCtx, 0L, 0L,
-                  getBookieInfoOpLogger, getBookieInfoTimeoutOpLogger);
-            this.cb = new GetBookieInfoCallback() {
-                @Override
-                public void getBookieInfoComplete(int rc, BookieInfo bInfo,
-                                                  Object ctx) {
-                    logOpResult(rc);
-                    origCallback.getBookieInfoComplete(rc, bInfo, origCtx);
-                    key.release();
+            private void cancelHedgeTimer() {
+                if (hedgeTimer != null) {
+                    hedgeTimer.cancel(false);
+                    hedgeTimer = null;
                 }
-            };
+            }
         }
+    }
 
-        @Override
-        public void errorOut() {
-            errorOut(BKException.Code.BookieHandleNotAvailableException);
+    /**
+     * Operations with a per channel latency histogram.
+     */
+    enum LatencyOp {
+        ADD("add"),
+        READ("read"),
+        READ_LAC("read_lac"),
+        WRITE_LAC("write_lac"),
+        FORCE("force"),
+        NETTY_WRITE("netty_write");
+
+        final String label;
+
+        LatencyOp(String label) {
+            this.label = label;
         }
+    }
 
-        @Override
-        public void errorOut(final int rc) {
-            errorOutAndRunCallback(
-                    () -> cb.getBookieInfoComplete(rc, new BookieInfo(), ctx));
+    /**
+     * Lock-free latency histogram in micros, laid out like an HDR histogram with 3 significant
+     * bits: every power of two is split into 8 linear sub-buckets, so a value is reported with at
+     * most 12.5% error. Recording is a single atomic increment and allocates nothing.
+     *
+     * <p>The counts are cumulative. {@link #intervalSnapshot} reports what was recorded since the
+     * counts passed in by the caller, so that every consumer keeps its own interval.
+     */
+    static class LatencyHistogram {
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int MAX_EXPONENT = 40;
+        static final int NUM_BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+
+        static LatencyHistogram[] forAllOps() {
+            LatencyHistogram[] histograms = new LatencyHistogram[LatencyOp.values().length];
+            for (int i = 0; i < histograms.length; i++) {
+                histograms[i] = new LatencyHistogram();
+            }
+            return histograms;
         }
 
-        @Override
-        public void handleV3Response(BookkeeperProtocol.Response response) {
-            GetBookieInfoResponse getBookieInfoResponse = response.getGetBookieInfoResponse();
-            StatusCode status = response.getStatus() == StatusCode.EOK
-                ? getBookieInfoResponse.getStatus() : response.getStatus();
+        void record(long latencyNanos) {
+            counts.incrementAndGet(bucketIndex(TimeUnit.NANOSECONDS.toMicros(latencyNanos)));
+        }
 
-            long freeDiskSpace = getBookieInfoResponse.getFreeDiskSpace();
-            long totalDiskSpace = getBookieInfoResponse.getTotalDiskCapacity();
+        static int bucketIndex(long micros) {
+            if (micros < SUB_BUCKETS) {
+                return (int) Math.max(0, micros);
+            }
+            int exponent = Math.min(MAX_EXPONENT, 63 - Long.numberOfLeadingZeros(micros));
+            int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return Math.min(NUM_BUCKETS - 1, (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket);
+        }
 
-            if (LOG.isDebugEnabled()) {
-                logResponse(status, "freeDisk", freeDiskSpace, "totalDisk", totalDiskSpace);
+        /**
+         * @return the highest value, in micros, that falls into the bucket
+         */
+        static long bucketUpperBound(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
             }
+            int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            long subBucketWidth = 1L << (exponent - SUB_BUCKET_BITS);
+            long lowerBound = (SUB_BUCKETS + index % SUB_BUCKETS) * subBucketWidth;
+            return lowerBound + subBucketWidth - 1;
+        }
 
-            int rc = convertStatus(status, BKException.Code.ReadException);
-            cb.getBookieInfoComplete(rc,
-                                     new BookieInfo(totalDiskSpace,
-                                                    freeDiskSpace), ctx);
+        /**
+         * @param lastCounts the counts at the previous snapshot of the caller, updated to the current
+         *                   ones; null to get everything recorded so far
+         */
+        Interval intervalSnapshot(long[] lastCounts) {
+            long[] interval = new long[NUM_BUCKETS];
+            long total = 0;
+            for (int i = 0; i < NUM_BUCKETS; i++) {
+                long count = counts.get(i);
+                if (lastCounts != null) {
+                    interval[i] = count - lastCounts[i];
+                    lastCounts[i] = count;
+                } else {
+                    interval[i] = count;
+                }
+                total += interval[i];
+            }
+            return new Interval(total, percentile(interval, total, 50.0),
+                                percentile(interval, total, 99.0), percentile(interval, total, 99.9));
         }
-    }
 
-    private final Recycler<AddCompletion> addCompletionRecycler = new Recycler<AddCompletion>() {
-            protected AddCompletion newObject(Recycler.Handle<AddCompletion> handle) {
-                return new AddCompletion(handle);
+        private static long percentile(long[] interval, long total, double percentile) {
+            if (total == 0) {
+                return 0;
             }
-        };
+            long threshold = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+            long seen = 0;
+            for (int i = 0; i < interval.length; i++) {
+                seen += interval[i];
+                if (seen >= threshold) {
+                    return bucketUpperBound(i);
+                }
+            }
+            return bucketUpperBound(interval.length - 1);
+        }
 
-    AddCompletion acquireAddCompletion(final CompletionKey key,
-                                       final WriteCallback originalCallback,
-                                       final Object originalCtx,
-                                       final long ledgerId, final long entryId) {
-        AddCompletion completion = addCompletionRecycler.get();
-        completion.reset(key, originalCallback, originalCtx, ledgerId, entryId);
-        return completion;
+        /**
+         * Count and percentiles, in micros, of the values recorded during an interval.
+         */
+        static final class Interval {
+            final long count;
+            final long p50Micros;
+            final long p99Micros;
+            final long p999Micros;
+
+            Interval(long count, long p50Micros, long p99Micros, long p999Micros) {
+                this.count = count;
+                this.p50Micros = p50Micros;
+                this.p99Micros = p99Micros;
+                this.p999Micros = p999Micros;
+            }
+
+            @Override
+            public String toString() {
+                return "(count=" + count + ", p50=" + p50Micros + "us, p99=" + p99Micros
+                        + "us, p999=" + p999Micros + "us)";
+            }
+        }
     }
 
-    // visible for testing
-    class AddCompletion extends CompletionValue implements WriteCallback {
-        final Recycler.Handle<AddCompletion> handle;
+    /**
+     * State of a single channel, as returned by {@link #latencySnapshot}.
+     */
+    public static final class ChannelLatencySnapshot {
+        private final BookieSocketAddress bookie;
+        private final long outstandingAdds;
+        private final long outstandingReads;
+        private final long bytesInFlight;
+        private final LatencyHistogram.Interval[] latencies;
+
+        ChannelLatencySnapshot(BookieSocketAddress bookie, long outstandingAdds, long outstandingReads,
+                               long bytesInFlight, LatencyHistogram.Interval[] latencies) {
+            this.bookie = bookie;
+            this.outstandingAdds = outstandingAdds;
+            this.outstandingReads = outstandingReads;
+            this.bytesInFlight = bytesInFlight;
+            this.latencies = latencies;
+        }
 
-        CompletionKey key = null;
-        WriteCallback originalCallback = null;
+        public BookieSocketAddress getBookie() {
+            return bookie;
+        }
 
-        AddCompletion(Recycler.Handle<AddCompletion> handle) {
-            super("Add", null, -1, -1, addEntryOpLogger, addTimeoutOpLogger);
-            this.handle = handle;
+        public long getOutstandingAdds() {
+            return outstandingAdds;
         }
 
-        void reset(final CompletionKey key,
-                   final WriteCallback originalCallback,
-                   final Object originalCtx,
-                   final long ledgerId, final long entryId) {
-            this.key = key;
-            this.originalCallback = originalCallback;
-            this.ctx = originalCtx;
-            this.ledgerId = ledgerId;
-            this.entryId = entryId;
-            this.startTime = MathUtils.nowInNano();
+        public long getOutstandingReads() {
+            return outstandingReads;
         }
 
-        @Override
-        public void writeComplete(int rc, long ledgerId, long entryId,
-                                  BookieSocketAddress addr,
-                                  Object ctx) {
-            logOpResult(rc);
-            originalCallback.writeComplete(rc, ledgerId, entryId, addr, ctx);
-            key.release();
-            handle.recycle(this);
+        public long getBytesInFlight() {
+            return bytesInFlight;
         }
 
-        @Override
-        boolean maybeTimeout() {
-            if (MathUtils.elapsedNanos(startTime) >= addEntryTimeoutNanos) {
-                timeout();
-                return true;
-            } else {
-                return false;
-            }
+        public long getCount(LatencyOp op) {
+            return latencies[op.ordinal()].count;
+        }
+
+        public long getP50Micros(LatencyOp op) {
+            return latencies[op.ordinal()].p50Micros;
+        }
+
+        public long getP99Micros(LatencyOp op) {
+            return latencies[op.ordinal()].p99Micros;
+        }
+
+        public long getP999Micros(LatencyOp op) {
+            return latencies[op.ordinal()].p999Micros;
         }
 
         @Override
-        public void errorOut() {
-            errorOut(BKException.Code.BookieHandleNotAvailableException);
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("ChannelLatencySnapshot(bookie=").append(bookie)
+                .append(", outstandingAdds=").append(outstandingAdds)
+                .append(", outstandingReads=").append(outstandingReads)
+                .append(", bytesInFlight=").append(bytesInFlight);
+            for (LatencyOp op : LatencyOp.values()) {
+                sb.append(", ").append(op.label).append('=').append(latencies[op.ordinal()]);
+            }
+            return sb.append(')').toString();
         }
+    }
+
+    /**
+     * JMX view of a channel, registered when {@link #CHANNEL_JMX_ENABLED} is set. The latencies
+     * cover all the operations completed on the channel; reading them resets nothing, so several
+     * JMX clients see the same values.
+     */
+    public interface ChannelStatsMXBean {
+        String getBookie();
+
+        long getOutstandingAdds();
+
+        long getOutstandingReads();
+
+        long getBytesInFlight();
+
+        /**
+         * @return the percentiles in micros, keyed by operation and percentile, e.g. "read.p99"
+         */
+        Map<String, Long> getLatencyMicros();
+    }
 
+    class ChannelStats implements ChannelStatsMXBean {
         @Override
-        public void errorOut(final int rc) {
-            errorOutAndRunCallback(
-                    () -> writeComplete(rc, ledgerId, entryId, addr, ctx));
+        public String getBookie() {
+            return addr.toString();
         }
 
         @Override
-        public void setOutstanding() {
-            addEntryOutstanding.inc();
+        public long getOutstandingAdds() {
+            return getNumOutstandingAdds();
         }
 
         @Override
-        public void handleV2Response(
-                long ledgerId, long entryId, StatusCode status,
-                BookieProtocol.Response response) {
-            addEntryOutstanding.dec();
-            handleResponse(ledgerId, entryId, status);
+        public long getOutstandingReads() {
+            return getNumOutstandingReads();
         }
 
         @Override
-        public void handleV3Response(
-                BookkeeperProtocol.Response response) {
-            addEntryOutstanding.dec();
-            AddResponse addResponse = response.getAddResponse();
-            StatusCode status = response.getStatus() == StatusCode.EOK
-                ? addResponse.getStatus() : response.getStatus();
-            handleResponse(addResponse.getLedgerId(), addResponse.getEntryId(),
-                           status);
+        public long getBytesInFlight() {
+            return PerChannelBookieClient.this.getBytesInFlight();
         }
 
-        private void handleResponse(long ledgerId, long entryId,
-                                    StatusCode status) {
-            if (LOG.isDebugEnabled()) {
-                logResponse(status, "ledger", ledgerId, "entry", entryId);
+        @Override
+        public Map<String, Long> getLatencyMicros() {
+            ChannelLatencySnapshot snapshot = latencySnapshot();
+            Map<String, Long> latencies = new TreeMap<>();
+            for (LatencyOp op : LatencyOp.values()) {
+                latencies.put(op.label + ".count", snapshot.getCount(op));
+                latencies.put(op.label + ".p50", snapshot.getP50Micros(op));
+                latencies.put(op.label + ".p99", snapshot.getP99Micros(op));
+                latencies.put(op.label + ".p999", snapshot.getP999Micros(op));
             }
-
-            int rc = convertStatus(status, BKException.Code.WriteException);
-            writeComplete(rc, ledgerId, entryId, addr, ctx);
+            return latencies;
         }
     }
 
-    // visable for testing
-    CompletionKey newCompletionKey(long txnId, OperationType operationType) {
-        return new V3CompletionKey(txnId, operationType);
-    }
+    /**
+     * Concurrent open addressing table for V2 completions. Keys are (ledgerId, entryId, operation)
+     * stored as primitive longs, so neither inserts nor lookups need a key object. A key may hold
+     * several values, e.g. duplicated reads of the same entry; they are handed out in insertion order.
+     *
+     * <p>The table is split in sections, each one guarded by its own lock, so that concurrent
+     * readers and responses for different entries rarely contend.
+     */
+    static class V2CompletionTable<V> {
+        private static final int DEFAULT_SECTIONS = 16;
+        private static final int DEFAULT_SECTION_CAPACITY = 64;
 
-    class V3CompletionKey extends CompletionKey {
+        private final Section<V>[] sections;
+        private final int sectionMask;
 
-        public V3CompletionKey(long txnId, OperationType operationType) {
-            super(txnId, operationType);
+        V2CompletionTable() {
+            this(DEFAULT_SECTIONS, DEFAULT_SECTION_CAPACITY);
         }
 
-        @Override
-        public boolean equals(Object obj) {
-            if (!(obj instanceof V3CompletionKey)) {
-                return false;
+        @SuppressWarnings("unchecked")
+        V2CompletionTable(int numSections, int sectionCapacity) {
+            checkArgument(Integer.bitCount(numSections) == 1, "numSections must be a power of 2");
+            checkArgument(Integer.bitCount(sectionCapacity) == 1, "sectionCapacity must be a power of 2");
+            this.sections = (Section<V>[]) new Section[numSections];
+            this.sectionMask = numSections - 1;
+            for (int i = 0; i < numSections; i++) {
+                sections[i] = new Section<>(sectionCapacity);
             }
-            V3CompletionKey that = (V3CompletionKey) obj;
-            return this.txnId == that.txnId && this.operationType == that.operationType;
         }
 
-        @Override
-        public int hashCode() {
-            return ((int) txnId);
+        void put(long ledgerId, long entryId, int operation, V value) {
+            checkNotNull(value);
+            long h = hash(ledgerId, entryId, operation);
+            sectionFor(h).put(ledgerId, entryId, operation, value, (int) h);
         }
 
-        @Override
-        public String toString() {
-            return String.format("TxnId(%d), OperationType(%s)", txnId, operationType);
+        /**
+         * @return the oldest value under the key, without removing it, or null
+         */
+        V get(long ledgerId, long entryId, int operation) {
+            long h = hash(ledgerId, entryId, operation);
+            return sectionFor(h).get(ledgerId, entryId, operation, (int) h);
         }
 
-    }
-
-    abstract class CompletionKey {
-        final long txnId;
-        OperationType operationType;
+        /**
+         * @return the oldest value under the key, after removing it, or null
+         */
+        V removeAny(long ledgerId, long entryId, int operation) {
+            long h = hash(ledgerId, entryId, operation);
+            return sectionFor(h).removeAny(ledgerId, entryId, operation, (int) h);
+        }
 
-        CompletionKey(long txnId,
-                      OperationType operationType) {
-            this.txnId = txnId;
-            this.operationType = operationType;
+        /**
+         * Removes the given value, if it is still present under the key.
+         */
+        boolean remove(long ledgerId, long entryId, int operation, V value) {
+            long h = hash(ledgerId, entryId, operation);
+            return sectionFor(h).remove(ledgerId, entryId, operation, value, (int) h);
         }
 
-        public void release() {}
-    }
+        /**
+         * Removes all the values, passing each one to the consumer outside of the section locks.
+         */
+        void removeAll(Consumer<V> consumer) {
+            for (Section<V> s : sections) {
+                for (V value : s.clear()) {
+                    consumer.accept(value);
+                }
+            }
+        }
 
-    /**
-     * Note : Helper functions follow
-     */
+        long size() {
+            long size = 0;
+            for (Section<V> s : sections) {
+                size += s.size;
+            }
+            return size;
+        }
 
-    /**
-     * @param status
-     * @return {@link BKException.Code.UNINITIALIZED} if the statuscode is unknown.
-     */
-    private int statusCodeToExceptionCode(StatusCode status) {
-        switch (status) {
-            case EOK:
-                return BKException.Code.OK;
-            case ENOENTRY:
-                return BKException.Code.NoSuchEntryException;
-            case ENOLEDGER:
-                return BKException.Code.NoSuchLedgerExistsException;
-            case EBADVERSION:
-                return BKException.Code.ProtocolVersionException;
-            case EUA:
-                return BKException.Code.UnauthorizedAccessException;
-            case EFENCED:
-                return BKException.Code.LedgerFencedException;
-            case EREADONLY:
-                return BKException.Code.WriteOnReadOnlyBookieException;
-            case ETOOMANYREQUESTS:
-                return BKException.Code.TooManyRequestsException;
-            default:
-                return BKException.Code.UNINITIALIZED;
+        private Section<V> sectionFor(long hash) {
+            return sections[(int) (hash >>> 32) & sectionMask];
         }
-    }
 
-    private void putCompletionKeyValue(CompletionKey key, CompletionValue value) {
-        CompletionValue existingValue = completionObjects.putIfAbsent(key, value);
-        if (existingValue != null) { // will only happen for V2 keys, as V3 have unique txnid
-            // There's a pending read request on same ledger/entry. Use the multimap to track all of them
-            completionObjectsV2Conflicts.put(key, value);
+        static long hash(long ledgerId, long entryId, int operation) {
+            long h = ledgerId * 0x9E3779B97F4A7C15L;
+            h ^= entryId * 0xC2B2AE3D27D4EB4FL;
+            h ^= operation;
+            h ^= h >>> 29;
+            h *= 0xBF58476D1CE4E5B9L;
+            return h ^ (h >>> 32);
         }
-    }
 
-    private CompletionValue getCompletionValue(CompletionKey key) {
-        CompletionValue completionValue = completionObjects.remove(key);
-        if (completionValue == null) {
-            // If there's no completion object here, try in the multimap
-            completionValue = completionObjectsV2Conflicts.removeAny(key).orElse(null);
+        /**
+         * Holds the values sharing a key when there is more than one of them.
+         */
+        private static final class MultiValue extends ArrayDeque<Object> {
+            private static final long serialVersionUID = 1L;
         }
-        return completionValue;
-    }
 
-    private long getTxnId() {
-        return txnIdGenerator.incrementAndGet();
-    }
+        private static final Object DELETED = new Object();
 
-    private final Recycler<V2CompletionKey> v2KeyRecycler = new Recycler<V2CompletionKey>() {
-            protected V2CompletionKey newObject(
-                    Recycler.Handle<V2CompletionKey> handle) {
-                return new V2CompletionKey(handle);
+        private static final class Section<V> {
+            // each bucket uses 3 slots: ledgerId, entryId, operation
+            private long[] keys;
+            // null for a free bucket, DELETED for a tombstone, a value or a MultiValue otherwise
+            private Object[] values;
+            private int capacity;
+            private int usedBuckets;
+            private int liveBuckets;
+            private volatile long size;
+
+            Section(int capacity) {
+                allocate(capacity);
             }
-        };
 
-    V2CompletionKey acquireV2Key(long ledgerId, long entryId,
-                             OperationType operationType) {
-        V2CompletionKey key = v2KeyRecycler.get();
-        key.reset(ledgerId, entryId, operationType);
-        return key;
-    }
+            private void allocate(int capacity) {
+                this.capacity = capacity;
+                this.keys = new long[capacity * 3];
+                this.values = new Object[capacity];
+                this.usedBuckets = 0;
+                this.liveBuckets = 0;
+            }
 
-    private class V2CompletionKey extends CompletionKey {
-        private final Handle<V2CompletionKey> recyclerHandle;
-        long ledgerId;
-        long entryId;
+            private boolean matches(int bucket, long ledgerId, long entryId, int operation) {
+                int k = bucket * 3;
+                return keys[k] == ledgerId && keys[k + 1] == entryId && keys[k + 2] == operation;
+            }
 
-        private V2CompletionKey(Handle<V2CompletionKey> handle) {
-            super(-1, null);
-            this.recyclerHandle = handle;
-        }
+            private int find(long ledgerId, long entryId, int operation, int hash) {
+                int mask = capacity - 1;
+                int bucket = hash & mask;
+                while (true) {
+                    Object v = values[bucket];
+                    if (v == null) {
+                        return -1;
+                    } else if (v != DELETED && matches(bucket, ledgerId, entryId, operation)) {
+                        return bucket;
+                    }
+                    bucket = (bucket + 1) & mask;
+                }
+            }
 
-        void reset(long ledgerId, long entryId, OperationType operationType) {
-            this.ledgerId = ledgerId;
-            this.entryId = entryId;
-            this.operationType = operationType;
-        }
+            synchronized void put(long ledgerId, long entryId, int operation, V value, int hash) {
+                int mask = capacity - 1;
+                int bucket = hash & mask;
+                int firstDeleted = -1;
+                while (true) {
+                    Object v = values[bucket];
+                    if (v == null) {
+                        break;
+                    } else if (v == DELETED) {
+                        if (firstDeleted == -1) {
+                            firstDeleted = bucket;
+                        }
+                    } else if (matches(bucket, ledgerId, entryId, operation)) {
+                        MultiValue multi;
+                        if (v instanceof MultiValue) {
+                            multi = (MultiValue) v;
+                        } else {
+                            multi = new MultiValue();
+                            multi.add(v);
+                            values[bucket] = multi;
+                        }
+                        multi.add(value);
+                        size++;
+                        return;
+                    }
+                    bucket = (bucket + 1) & mask;
+                }
 
-        @Override
-        public boolean equals(Object object) {
-            if (!(object instanceof V2CompletionKey)) {
-                return  false;
+                if (firstDeleted != -1) {
+                    bucket = firstDeleted;
+                } else {
+                    usedBuckets++;
+                }
+                int k = bucket * 3;
+                keys[k] = ledgerId;
+                keys[k + 1] = entryId;
+                keys[k + 2] = operation;
+                values[bucket] = value;
+                liveBuckets++;
+                size++;
+
+                if (usedBuckets > capacity * 2 / 3) {
+                    // grow when mostly live, otherwise just get rid of the tombstones
+                    rehash(liveBuckets > capacity / 3 ? capacity * 2 : capacity);
+                }
             }
-            V2CompletionKey that = (V2CompletionKey) object;
-            return this.entryId == that.entryId
-                && this.ledgerId == that.ledgerId
-                && this.operationType == that.operationType;
-        }
 
-        @Override
-        public int hashCode() {
-            return Long.hashCode(ledgerId) * 31 + Long.hashCode(entryId);
-        }
+            @SuppressWarnings("unchecked")
+            synchronized V get(long ledgerId, long entryId, int operation, int hash) {
+                int bucket = find(ledgerId, entryId, operation, hash);
+                if (bucket == -1) {
+                    return null;
+                }
+                Object v = values[bucket];
+                return (V) (v instanceof MultiValue ? ((MultiValue) v).peekFirst() : v);
+            }
 
-        @Override
-        public String toString() {
-            return String.format("%d:%d %s", ledgerId, entryId, operationType);
-        }
+            @SuppressWarnings("unchecked")
+            synchronized V removeAny(long ledgerId, long entryId, int operation, int hash) {
+                int bucket = find(ledgerId, entryId, operation, hash);
+                if (bucket == -1) {
+                    return null;
+                }
+                Object v = values[bucket];
+                Object removed;
+                if (v instanceof MultiValue) {
+                    MultiValue multi = (MultiValue) v;
+                    removed = multi.pollFirst();
+                    if (multi.isEmpty()) {
+                        removeBucket(bucket);
+                    }
+                } else {
+                    removed = v;
+                    removeBucket(bucket);
+                }
+                size--;
+                return (V) removed;
+            }
 
-        @Override
-        public void release() {
-            recyclerHandle.recycle(this);
+            synchronized boolean remove(long ledgerId, long entryId, int operation, V value, int hash) {
+                int bucket = find(ledgerId, entryId, operation, hash);
+                if (bucket == -1) {
+                    return false;
+                }
+                Object v = values[bucket];
+                if (v instanceof MultiValue) {
+                    MultiValue multi = (MultiValue) v;
+                    // identity match, completions do not override equals
+                    if (!multi.removeFirstOccurrence(value)) {
+                        return false;
+                    }
+                    if (multi.isEmpty()) {
+                        removeBucket(bucket);
+                    }
+                } else if (v == value) {
+                    removeBucket(bucket);
+                } else {
+                    return false;
+                }
+                size--;
+                return true;
+            }
+
+            @SuppressWarnings("unchecked")
+            synchronized List<V> clear() {
+                if (size == 0) {
+                    return Collections.emptyList();
+                }
+                List<V> removed = new ArrayList<>((int) size);
+                for (Object v : values) {
+                    if (v instanceof MultiValue) {
+                        for (Object o : (MultiValue) v) {
+                            removed.add((V) o);
+                        }
+                    } else if (v != null && v != DELETED) {
+                        removed.add((V) v);
+                    }
+                }
+                allocate(capacity);
+                size = 0;
+                return removed;
+            }
+
+            private void removeBucket(int bucket) {
+                int next = (bucket + 1) & (capacity - 1);
+                if (values[next] == null) {
+                    // end of a probe chain, the bucket can be freed instead of left as a tombstone
+                    values[bucket] = null;
+                    usedBuckets--;
+                } else {
+                    values[bucket] = DELETED;
+                }
+                liveBuckets--;
+            }
+
+            private void rehash(int newCapacity) {
+                long[] oldKeys = keys;
+                Object[] oldValues = values;
+                allocate(newCapacity);
+                int mask = newCapacity - 1;
+                for (int i = 0; i < oldValues.length; i++) {
+                    Object v = oldValues[i];
+                    if (v == null || v == DELETED) {
+                        continue;
+                    }
+                    long ledgerId = oldKeys[i * 3];
+                    long entryId = oldKeys[i * 3 + 1];
+                    int operation = (int) oldKeys[i * 3 + 2];
+                    int bucket = (int) hash(ledgerId, entryId, operation) & mask;
+                    while (values[bucket] != null) {
+                        bucket = (bucket + 1) & mask;
+                    }
+                    int k = bucket * 3;
+                    keys[k] = ledgerId;
+                    keys[k + 1] = entryId;
+                    keys[k + 2] = operation;
+                    values[bucket] = v;
+                    usedBuckets++;
+                    liveBuckets++;
+                }
+            }
         }
     }
 
@@ -2103,19 +4806,89 @@ public class PerChannelBookieClient extends ChannelInboundHandlerAdapter {
         return builder;
     }
 
+    MdcRequestContext requestContext() {
+        return preserveMdcForTaskExecution ? MdcRequestContext.current() : MdcRequestContext.EMPTY;
+    }
+
     static Request.Builder appendRequestContext(Request.Builder builder) {
-        final Map<String, String> mdcContextMap = MDC.getCopyOfContextMap();
-        if (mdcContextMap == null || mdcContextMap.isEmpty()) {
-            return builder;
+        return MdcRequestContext.current().appendTo(builder);
+    }
+
+    /**
+     * Immutable snapshot of the MDC of a thread, shared by reference by all the requests and
+     * completions created while the MDC of that thread does not change. It holds the context as a
+     * map, to restore it on the callback threads, as request context pairs for the protobuf
+     * builders, and as the request context fields of a V3 request, already encoded.
+     *
+     * <p>slf4j has no way to tell that the MDC changed, so each capture still takes a copy of it
+     * and compares it to the last snapshot of the thread; only a new context pays for building
+     * the pairs and encoding them. A request captures it once, for both the request and its
+     * completion.
+     */
+    static final class MdcRequestContext {
+        static final MdcRequestContext EMPTY = new MdcRequestContext(Collections.emptyMap());
+
+        private static final FastThreadLocal<MdcRequestContext> LAST_CONTEXT =
+                new FastThreadLocal<MdcRequestContext>() {
+                    @Override
+                    protected MdcRequestContext initialValue() {
+                        return EMPTY;
+                    }
+                };
+
+        final Map<String, String> mdc;
+        final List<BookkeeperProtocol.ContextPair> pairs;
+        final byte[] encoded;
+
+        private MdcRequestContext(Map<String, String> mdc) {
+            this.mdc = mdc;
+            List<BookkeeperProtocol.ContextPair> pairs = new ArrayList<>(mdc.size());
+            int encodedSize = 0;
+            for (Map.Entry<String, String> kv : mdc.entrySet()) {
+                BookkeeperProtocol.ContextPair pair = BookkeeperProtocol.ContextPair.newBuilder()
+                        .setKey(kv.getKey())
+                        .setValue(kv.getValue())
+                        .build();
+                pairs.add(pair);
+                encodedSize += CodedOutputStream.computeMessageSize(Request.REQUESTCONTEXT_FIELD_NUMBER, pair);
+            }
+            this.pairs = Collections.unmodifiableList(pairs);
+            this.encoded = new byte[encodedSize];
+            try {
+                CodedOutputStream out = CodedOutputStream.newInstance(encoded);
+                for (BookkeeperProtocol.ContextPair pair : pairs) {
+                    out.writeMessage(Request.REQUESTCONTEXT_FIELD_NUMBER, pair);
+                }
+                out.checkNoSpaceLeft();
+            } catch (IOException e) {
+                // writing to a byte array of the computed size does not fail
+                throw new IllegalStateException("Failed to encode request context " + mdc, e);
+            }
         }
-        for (Map.Entry<String, String> kv : mdcContextMap.entrySet()) {
-            final BookkeeperProtocol.ContextPair context = BookkeeperProtocol.ContextPair.newBuilder()
-                    .setKey(kv.getKey())
-                    .setValue(kv.getValue())
-                    .build();
-            builder.addRequestContext(context);
+
+        /**
+         * @return the context of the calling thread, the same instance as long as its MDC is unchanged
+         */
+        static MdcRequestContext current() {
+            final Map<String, String> mdc = MDC.getCopyOfContextMap();
+            if (mdc == null || mdc.isEmpty()) {
+                return EMPTY;
+            }
+            MdcRequestContext last = LAST_CONTEXT.get();
+            if (last.mdc.equals(mdc)) {
+                return last;
+            }
+            MdcRequestContext context = new MdcRequestContext(Collections.unmodifiableMap(mdc));
+            LAST_CONTEXT.set(context);
+            return context;
+        }
+
+        Request.Builder appendTo(Request.Builder builder) {
+            if (!pairs.isEmpty()) {
+                builder.addAllRequestContext(pairs);
+            }
+            return builder;
         }
-        return builder;
     }
 
     ChannelFutureListener contextPreservingListener(ChannelFutureListener listener) {
@@ -2161,7 +4934,7 @@ public class PerChannelBookieClient extends ChannelInboundHandlerAdapter {
                 LOG.debug("Channel connected ({}) {}", future.isSuccess(), future.channel());
             }
             int rc;
-            Queue<GenericCallback<PerChannelBookieClient>> oldPendingOps;
+            final Channel newChannel = future.channel();
 
             /* We fill in the timer based on whether the connect operation itself succeeded regardless of
              * whether there was a race */
@@ -2173,109 +4946,104 @@ public class PerChannelBookieClient extends ChannelInboundHandlerAdapter {
                 .connectTimer.registerFailedEvent(MathUtils.elapsedNanos(startTime), TimeUnit.NANOSECONDS);
             }
 
-            synchronized (PerChannelBookieClient.this) {
-                if (future.isSuccess() && state == ConnectionState.CONNECTING && future.channel().isActive()) {
-                    LOG.info("Successfully connected to bookie: {}", future.channel());
-                    rc = BKException.Code.OK;
-                    channel = future.channel();
-                    if (shFactory != null) {
-                        makeWritable();
-                        initiateTLS();
+            ConnectionState s = state;
+            if (future.isSuccess() && s == ConnectionState.CONNECTING && newChannel.isActive()) {
+                // publish the channel before the state, so that CONNECTED always comes with a channel
+                channel = newChannel;
+                if (shFactory != null) {
+                    makeWritable();
+                    if (initiateTLS()) {
                         return;
-                    } else {
-                        LOG.info("Successfully connected to bookie: " + addr);
-                        state = ConnectionState.CONNECTED;
-                        activeNonTlsChannelCounter.inc();
                     }
-                } else if (future.isSuccess() && state == ConnectionState.START_TLS) {
+                } else if (casState(ConnectionState.CONNECTING, ConnectionState.CONNECTED)) {
+                    LOG.info("Successfully connected to bookie: {}", newChannel);
                     rc = BKException.Code.OK;
-                    LOG.info("Successfully connected to bookie using TLS: " + addr);
-
-                    state = ConnectionState.CONNECTED;
-                    AuthHandler.ClientSideHandler authHandler = future.channel().pipeline()
-                            .get(AuthHandler.ClientSideHandler.class);
-                    authHandler.authProvider.onProtocolUpgrade();
-                    activeTlsChannelCounter.inc();
-                } else if (future.isSuccess() && (state == ConnectionState.CLOSED
-                    || state == ConnectionState.DISCONNECTED)) {
-                    LOG.warn("Closed before connection completed, clean up: {}, current state {}",
-                            future.channel(), state);
-                    closeChannel(future.channel());
-                    rc = BKException.Code.BookieHandleNotAvailableException;
-                    channel = null;
-                } else if (future.isSuccess() && state == ConnectionState.CONNECTED) {
-                    if (LOG.isDebugEnabled()) {
-                        LOG.debug("Already connected with another channel({}), so close the new channel({})", channel,
-                                future.channel());
-                    }
-                    closeChannel(future.channel());
-                    return; // pendingOps should have been completed when other channel connected
+                    activeNonTlsChannelCounter.inc();
+                    drainPendingOps(rc, PerChannelBookieClient.this);
+                    makeWritable();
+                    return;
+                }
+                // the client was disconnected or closed while the channel was being published
+                LOG.warn("Closed before connection completed, clean up: {}, current state {}",
+                        newChannel, state);
+                closeChannel(newChannel);
+                CHANNEL_UPDATER.compareAndSet(PerChannelBookieClient.this, newChannel, null);
+                rc = BKException.Code.BookieHandleNotAvailableException;
+            } else if (future.isSuccess() && casState(ConnectionState.START_TLS, ConnectionState.CONNECTED)) {
+                rc = BKException.Code.OK;
+                LOG.info("Successfully connected to bookie using TLS: " + addr);
+
+                AuthHandler.ClientSideHandler authHandler = newChannel.pipeline()
+                        .get(AuthHandler.ClientSideHandler.class);
+                authHandler.authProvider.onProtocolUpgrade();
+                activeTlsChannelCounter.inc();
+            } else if (future.isSuccess() && (s == ConnectionState.CLOSED
+                || s == ConnectionState.DISCONNECTED)) {
+                LOG.warn("Closed before connection completed, clean up: {}, current state {}",
+                        newChannel, s);
+                closeChannel(newChannel);
+                rc = BKException.Code.BookieHandleNotAvailableException;
+                CHANNEL_UPDATER.compareAndSet(PerChannelBookieClient.this, newChannel, null);
+            } else if (future.isSuccess() && s == ConnectionState.CONNECTED) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Already connected with another channel({}), so close the new channel({})", channel,
+                            newChannel);
+                }
+                closeChannel(newChannel);
+                return; // pendingOps should have been completed when other channel connected
+            } else {
+                Throwable cause = future.cause();
+                if (cause instanceof UnknownHostException || cause instanceof NativeIoException) {
+                    // Don't log stack trace for common errors
+                    LOG.warn("Could not connect to bookie: {}/{}, current state {} : {}",
+                            newChannel, addr, s, cause != null ? cause.getMessage() : null);
                 } else {
-                    Throwable cause = future.cause();
-                    if (cause instanceof UnknownHostException || cause instanceof NativeIoException) {
-                        // Don't log stack trace for common errors
-                        LOG.warn("Could not connect to bookie: {}/{}, current state {} : {}",
-                                future.channel(), addr, state, future.cause().getMessage());
-                    } else {
-                        // Regular exceptions, include stack trace
-                        LOG.error("Could not connect to bookie: {}/{}, current state {} : ",
-                                future.channel(), addr, state, future.cause());
-                    }
-
-                    rc = BKException.Code.BookieHandleNotAvailableException;
-                    closeChannel(future.channel());
-                    channel = null;
-                    if (state != ConnectionState.CLOSED) {
-                        state = ConnectionState.DISCONNECTED;
-                    }
-                    failedConnectionCounter.inc();
+                    // Regular exceptions, include stack trace
+                    LOG.error("Could not connect to bookie: {}/{}, current state {} : ",
+                            newChannel, addr, s, cause);
                 }
 
-                // trick to not do operations under the lock, take the list
-                // of pending ops and assign it to a new variable, while
-                // emptying the pending ops by just assigning it to a new
-                // list
-                oldPendingOps = pendingOps;
-                pendingOps = new ArrayDeque<>();
+                rc = BKException.Code.BookieHandleNotAvailableException;
+                closeChannel(newChannel);
+                CHANNEL_UPDATER.compareAndSet(PerChannelBookieClient.this, newChannel, null);
+                markDisconnected();
+                failedConnectionCounter.inc();
             }
 
-            for (GenericCallback<PerChannelBookieClient> pendingOp : oldPendingOps) {
-                pendingOp.operationComplete(rc, PerChannelBookieClient.this);
-            }
+            drainPendingOps(rc, PerChannelBookieClient.this);
 
             makeWritable();
         }
     }
 
-    private void initiateTLS() {
+    /**
+     * @return false if the connection was no longer CONNECTING, in which case nothing was sent
+     */
+    private boolean initiateTLS() {
         LOG.info("Initializing TLS to {}", channel);
-        assert state == ConnectionState.CONNECTING;
+        if (!casState(ConnectionState.CONNECTING, ConnectionState.START_TLS)) {
+            return false;
+        }
         final long txnId = getTxnId();
+        final MdcRequestContext requestContext = requestContext();
         final CompletionKey completionKey = new V3CompletionKey(txnId, OperationType.START_TLS);
-        completionObjects.put(completionKey,
-                              new StartTLSCompletion(completionKey));
-        BookkeeperProtocol.Request.Builder h = withRequestContext(BookkeeperProtocol.Request.newBuilder());
+        putCompletionKeyValue(completionKey,
+                              new StartTLSCompletion(completionKey), requestContext);
+        BookkeeperProtocol.Request.Builder h = requestContext.appendTo(BookkeeperProtocol.Request.newBuilder());
         BKPacketHeader.Builder headerBuilder = BKPacketHeader.newBuilder()
                 .setVersion(ProtocolVersion.VERSION_THREE)
                 .setOperation(OperationType.START_TLS)
                 .setTxnId(txnId);
         h.setHeader(headerBuilder.build());
         h.setStartTLSRequest(BookkeeperProtocol.StartTLSRequest.newBuilder().build());
-        state = ConnectionState.START_TLS;
         writeAndFlush(channel, completionKey, h.build());
+        return true;
     }
 
     private void failTLS(int rc) {
         LOG.error("TLS failure on: {}, rc: {}", channel, rc);
-        Queue<GenericCallback<PerChannelBookieClient>> oldPendingOps;
-        synchronized (this) {
-            disconnect();
-            oldPendingOps = pendingOps;
-            pendingOps = new ArrayDeque<>();
-        }
-        for (GenericCallback<PerChannelBookieClient> pendingOp : oldPendingOps) {
-            pendingOp.operationComplete(rc, null);
-        }
+        disconnect();
+        drainPendingOps(rc, null);
         failedTlsHandshakeCounter.inc();
     }
 }
\ No newline at end of file
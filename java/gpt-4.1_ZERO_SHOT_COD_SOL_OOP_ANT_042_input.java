@@ -1,6 +1,9 @@
 public class DebugInfoDecoder {
     /** encoded debug info */
-    private final byte[] encoded;
+    private final ByteBuffer encoded;
+
+    /** offset of the debug info item in {@code encoded} */
+    private final int offset;
 
     /** positions decoded */
     private final ArrayList<PositionEntry> positions;
@@ -11,8 +14,26 @@ public class DebugInfoDecoder {
     /** size of code block in code units */
     private final int codesize;
 
-    /** indexed by register, the last local variable live in a reg */
-    private final LocalEntry[] lastEntryForReg;
+    /**
+     * indexed by register, the state of the last local variable event
+     * in a reg: one of {@code REG_NONE}, {@code REG_LIVE} or
+     * {@code REG_DEAD}
+     */
+    private final int[] regState;
+
+    /** indexed by register, name index of the last local in a reg */
+    private final int[] regNameIndex;
+
+    /** indexed by register, type index of the last local in a reg */
+    private final int[] regTypeIndex;
+
+    /** indexed by register, signature index of the last local in a reg */
+    private final int[] regSignatureIndex;
+
+    /** register states, see {@code regState} */
+    private static final int REG_NONE = 0;
+    private static final int REG_LIVE = 1;
+    private static final int REG_DEAD = 2;
 
     /** method descriptor of method this debug info is for */
     private final Prototype desc;
@@ -29,12 +50,6 @@ public class DebugInfoDecoder {
      */
     private final int regSize;
 
-    /** current decoding state: line number */
-    private int line = 1;
-
-    /** current decoding state: bytecode address */
-    private int address = 0;
-
     /** string index of the string "this" */
     private final int thisStringIdx;
 
@@ -51,11 +66,31 @@ public class DebugInfoDecoder {
      */
     DebugInfoDecoder(byte[] encoded, int codesize, int regSize,
             boolean isStatic, CstMethodRef ref, DexFile file) {
+        this(wrap(encoded), 0, codesize, regSize, isStatic, ref, file);
+    }
+
+    /**
+     * Constructs an instance that reads the debug info item in place,
+     * for example from a memory-mapped dex file.
+     *
+     * @param encoded buffer holding the encoded debug info; its position
+     * and limit are not used
+     * @param offset offset of the debug info item in {@code encoded}
+     * @param codesize size of code block in code units
+     * @param regSize register size, in register units, of the register space
+     * used by this method
+     * @param isStatic true if method is static
+     * @param ref method descriptor of method this debug info is for
+     * @param file dex file this debug info will be stored in
+     */
+    DebugInfoDecoder(ByteBuffer encoded, int offset, int codesize,
+            int regSize, boolean isStatic, CstMethodRef ref, DexFile file) {
         if (encoded == null) {
             throw new NullPointerException("encoded == null");
         }
 
         this.encoded = encoded;
+        this.offset = offset;
         this.isStatic = isStatic;
         this.desc = ref.getPrototype();
         this.file = file;
@@ -64,7 +99,10 @@ public class DebugInfoDecoder {
         positions = new ArrayList<PositionEntry>();
         locals = new ArrayList<LocalEntry>();
         this.codesize = codesize;
-        lastEntryForReg = new LocalEntry[regSize];
+        regState = new int[regSize];
+        regNameIndex = new int[regSize];
+        regTypeIndex = new int[regSize];
+        regSignatureIndex = new int[regSize];
 
         int idx = -1;
 
@@ -81,6 +119,14 @@ public class DebugInfoDecoder {
         thisStringIdx = idx;
     }
 
+    private static ByteBuffer wrap(byte[] encoded) {
+        if (encoded == null) {
+            throw new NullPointerException("encoded == null");
+        }
+
+        return ByteBuffer.wrap(encoded);
+    }
+
     /**
      * An entry in the resulting postions table
      */
@@ -157,28 +203,62 @@ public class DebugInfoDecoder {
     }
 
     /**
-     * Decodes the debug info sequence.
+     * Receives the entries of a debug info sequence as it is decoded.
+     */
+    public interface Visitor {
+        /**
+         * Called for each position entry, in ascending address order.
+         *
+         * @param address bytecode address
+         * @param line line number
+         */
+        void visitPosition(int address, int line);
+
+        /**
+         * Called for each local start or end, in ascending address order.
+         *
+         * @param address address of event
+         * @param isStart {@code true} iff it's a local start
+         * @param reg register number
+         * @param nameIndex index of name in strings table
+         * @param typeIndex index of type in types table
+         * @param signatureIndex index of type signature in strings table
+         */
+        void visitLocal(int address, boolean isStart, int reg, int nameIndex,
+                int typeIndex, int signatureIndex);
+    }
+
+    /**
+     * Decodes the debug info sequence into the positions and locals lists.
      */
     public void decode() {
-        try {
-            decode0();
-        } catch (Exception ex) {
-            throw ExceptionWithContext.withContext(ex,
-                    "...while decoding debug info");
-        }
+        decode(new Visitor() {
+            public void visitPosition(int address, int line) {
+                positions.add(new PositionEntry(address, line));
+            }
+
+            public void visitLocal(int address, boolean isStart, int reg,
+                    int nameIndex, int typeIndex, int signatureIndex) {
+                locals.add(new LocalEntry(address, isStart, reg, nameIndex,
+                        typeIndex, signatureIndex));
+            }
+        });
     }
 
     /**
-     * Reads a string index. String indicies are offset by 1, and a 0 value
-     * in the stream (-1 as returned by this method) means "null"
+     * Decodes the debug info sequence, handing each entry to
+     * {@code visitor} as soon as it is read. Nothing is allocated
+     * per entry, and the positions and locals lists are left untouched.
      *
-     * @return index into file's string ids table, -1 means null
-     * @throws IOException
+     * @param visitor {@code non-null;} receives the entries
      */
-    private int readStringIndex(ByteInput bs) throws IOException {
-        int offsetIndex = Leb128.readUnsignedLeb128(bs);
-
-        return offsetIndex - 1;
+    public void decode(Visitor visitor) {
+        try {
+            decode0(visitor);
+        } catch (Exception ex) {
+            throw ExceptionWithContext.withContext(ex,
+                    "...while decoding debug info");
+        }
     }
 
     /**
@@ -193,11 +273,9 @@ public class DebugInfoDecoder {
                 - desc.getParameterTypes().getWordCount() - (isStatic? 0 : 1);
     }
 
-    private void decode0() throws IOException {
-        ByteInput bs = new ByteArrayByteInput(encoded);
-
-        line = Leb128.readUnsignedLeb128(bs);
-        int szParams = Leb128.readUnsignedLeb128(bs);
+    private void decode0(Visitor visitor) {
+        Cursor cursor = new Cursor(encoded, offset);
+        int szParams = cursor.getParameterCount();
         StdTypeList params = desc.getParameterTypes();
         int curReg = getParamBase();
 
@@ -206,158 +284,360 @@ public class DebugInfoDecoder {
                     "Mismatch between parameters_size and prototype");
         }
 
+        Arrays.fill(regState, REG_NONE);
+
         if (!isStatic) {
             // Start off with implicit 'this' entry
-            LocalEntry thisEntry =
-                new LocalEntry(0, true, curReg, thisStringIdx, 0, 0);
-            locals.add(thisEntry);
-            lastEntryForReg[curReg] = thisEntry;
+            startLocal(visitor, 0, curReg, thisStringIdx, 0, 0);
             curReg++;
         }
 
         for (int i = 0; i < szParams; i++) {
             Type paramType = params.getType(i);
-            LocalEntry le;
-
-            int nameIdx = readStringIndex(bs);
-
-            if (nameIdx == -1) {
-                /*
-                 * Unnamed parameter; often but not always filled in by an
-                 * extended start op after the prologue
-                 */
-                le = new LocalEntry(0, true, curReg, -1, 0, 0);
-            } else {
-                // TODO: Final 0 should be idx of paramType.getDescriptor().
-                le = new LocalEntry(0, true, curReg, nameIdx, 0, 0);
-            }
 
-            locals.add(le);
-            lastEntryForReg[curReg] = le;
+            /*
+             * An unnamed parameter (-1) is often but not always filled
+             * in by an extended start op after the prologue.
+             * TODO: Final 0 should be idx of paramType.getDescriptor().
+             */
+            startLocal(visitor, 0, curReg, cursor.nextParameterName(), 0, 0);
             curReg += paramType.getCategory();
         }
 
         for (;;) {
-            int opcode = bs.readByte() & 0xff;
-
-            switch (opcode) {
-                case DBG_START_LOCAL: {
-                    int reg = Leb128.readUnsignedLeb128(bs);
-                    int nameIdx = readStringIndex(bs);
-                    int typeIdx = readStringIndex(bs);
-                    LocalEntry le = new LocalEntry(
-                            address, true, reg, nameIdx, typeIdx, 0);
-
-                    locals.add(le);
-                    lastEntryForReg[reg] = le;
-                }
-                break;
+            int event = cursor.next();
+            int reg = cursor.getRegister();
 
-                case DBG_START_LOCAL_EXTENDED: {
-                    int reg = Leb128.readUnsignedLeb128(bs);
-                    int nameIdx = readStringIndex(bs);
-                    int typeIdx = readStringIndex(bs);
-                    int sigIdx = readStringIndex(bs);
-                    LocalEntry le = new LocalEntry(
-                            address, true, reg, nameIdx, typeIdx, sigIdx);
+            switch (event) {
+                case Cursor.POSITION:
+                    visitor.visitPosition(cursor.getAddress(),
+                            cursor.getLine());
+                break;
 
-                    locals.add(le);
-                    lastEntryForReg[reg] = le;
-                }
+                case Cursor.START_LOCAL:
+                    startLocal(visitor, cursor.getAddress(), reg,
+                            cursor.getNameIndex(), cursor.getTypeIndex(),
+                            cursor.getSignatureIndex());
                 break;
 
-                case DBG_RESTART_LOCAL: {
-                    int reg = Leb128.readUnsignedLeb128(bs);
-                    LocalEntry prevle;
-                    LocalEntry le;
+                case Cursor.RESTART_LOCAL:
+                    if (regState[reg] == REG_NONE) {
+                        throw new RuntimeException(
+                                "Encountered RESTART_LOCAL on new v" + reg);
+                    }
 
-                    try {
-                        prevle = lastEntryForReg[reg];
+                    if (regState[reg] == REG_LIVE) {
+                        throw new RuntimeException("nonsensical "
+                                + "RESTART_LOCAL on live register v"
+                                + reg);
+                    }
 
-                        if (prevle.isStart) {
-                            throw new RuntimeException("nonsensical "
-                                    + "RESTART_LOCAL on live register v"
-                                    + reg);
-                        }
+                    startLocal(visitor, cursor.getAddress(), reg,
+                            regNameIndex[reg], regTypeIndex[reg], 0);
+                break;
 
-                        le = new LocalEntry(address, true, reg,
-                                prevle.nameIndex, prevle.typeIndex, 0);
-                    } catch (NullPointerException ex) {
+                case Cursor.END_LOCAL:
+                    if (regState[reg] == REG_NONE) {
                         throw new RuntimeException(
-                                "Encountered RESTART_LOCAL on new v" + reg);
+                                "Encountered END_LOCAL on new v" + reg);
                     }
 
-                    locals.add(le);
-                    lastEntryForReg[reg] = le;
-                }
+                    if (regState[reg] == REG_DEAD) {
+                        throw new RuntimeException("nonsensical "
+                                + "END_LOCAL on dead register v" + reg);
+                    }
+
+                    regState[reg] = REG_DEAD;
+                    visitor.visitLocal(cursor.getAddress(), false, reg,
+                            regNameIndex[reg], regTypeIndex[reg],
+                            regSignatureIndex[reg]);
                 break;
 
-                case DBG_END_LOCAL: {
-                    int reg = Leb128.readUnsignedLeb128(bs);
-                    LocalEntry prevle;
-                    LocalEntry le;
+                case Cursor.END:
+                    // all done
+                return;
+            }
+        }
+    }
+
+    /**
+     * Records a local start in {@code reg} and hands it to the visitor.
+     */
+    private void startLocal(Visitor visitor, int address, int reg,
+            int nameIndex, int typeIndex, int signatureIndex) {
+        regState[reg] = REG_LIVE;
+        regNameIndex[reg] = nameIndex;
+        regTypeIndex[reg] = typeIndex;
+        regSignatureIndex[reg] = signatureIndex;
+        visitor.visitLocal(address, true, reg, nameIndex, typeIndex,
+                signatureIndex);
+    }
+
+    /**
+     * A pull-style reader of one debug_info_item, decoding straight from
+     * a buffer such as a memory-mapped dex file. The address and line
+     * are advanced in place, so reading an item allocates nothing.
+     * Register bookkeeping such as matching an END_LOCAL to its start
+     * is left to the caller.
+     */
+    public static final class Cursor {
+        /** event: end of the sequence */
+        public static final int END = 0;
+
+        /** event: a position entry at {@code getAddress()}, {@code getLine()} */
+        public static final int POSITION = 1;
+
+        /** event: a local starts in {@code getRegister()} */
+        public static final int START_LOCAL = 2;
+
+        /** event: the last local in {@code getRegister()} restarts */
+        public static final int RESTART_LOCAL = 3;
+
+        /** event: the local in {@code getRegister()} ends */
+        public static final int END_LOCAL = 4;
+
+        /** buffer holding the item */
+        private final ByteBuffer buf;
+
+        /** absolute read position in {@code buf} */
+        private int pos;
+
+        /** parameter names not yet read */
+        private int parametersLeft;
+
+        /** number of parameter names in the header */
+        private final int parameterCount;
+
+        /** true once the end of the sequence was read */
+        private boolean done;
+
+        /** current decoding state: line number */
+        private int line;
+
+        /** current decoding state: bytecode address */
+        private int address = 0;
+
+        /** register of the last local event */
+        private int reg;
+
+        /** name index of the last START_LOCAL, -1 means null */
+        private int nameIndex;
+
+        /** type index of the last START_LOCAL, -1 means null */
+        private int typeIndex;
+
+        /** signature index of the last START_LOCAL, -1 means null */
+        private int signatureIndex;
+
+        /**
+         * Constructs an instance and reads the item header.
+         *
+         * @param buf {@code non-null;} buffer holding the item; its
+         * position and limit are not used
+         * @param offset offset of the item in {@code buf}
+         */
+        public Cursor(ByteBuffer buf, int offset) {
+            this.buf = buf;
+            this.pos = offset;
+            line = readUnsignedLeb128();
+            parameterCount = readUnsignedLeb128();
+            parametersLeft = parameterCount;
+        }
+
+        /**
+         * @return the number of parameter names in the item header
+         */
+        public int getParameterCount() {
+            return parameterCount;
+        }
+
+        /**
+         * Reads the next parameter name from the item header. Must be
+         * called before the first {@code next()}; names not read by then
+         * are skipped.
+         *
+         * @return index into file's string ids table, -1 means null
+         */
+        public int nextParameterName() {
+            if (parametersLeft == 0) {
+                throw new IllegalStateException("no parameter names left");
+            }
+
+            parametersLeft--;
+            return readStringIndex();
+        }
+
+        /**
+         * Reads up to and including the next position or local event.
+         *
+         * @return one of the event constants; {@code END} at and after
+         * the end of the sequence
+         */
+        public int next() {
+            if (done) {
+                return END;
+            }
+
+            while (parametersLeft > 0) {
+                nextParameterName();
+            }
+
+            for (;;) {
+                int opcode = buf.get(pos++) & 0xff;
+
+                switch (opcode) {
+                    case DBG_START_LOCAL:
+                        reg = readUnsignedLeb128();
+                        nameIndex = readStringIndex();
+                        typeIndex = readStringIndex();
+                        signatureIndex = 0;
+                    return START_LOCAL;
+
+                    case DBG_START_LOCAL_EXTENDED:
+                        reg = readUnsignedLeb128();
+                        nameIndex = readStringIndex();
+                        typeIndex = readStringIndex();
+                        signatureIndex = readStringIndex();
+                    return START_LOCAL;
+
+                    case DBG_RESTART_LOCAL:
+                        reg = readUnsignedLeb128();
+                    return RESTART_LOCAL;
+
+                    case DBG_END_LOCAL:
+                        reg = readUnsignedLeb128();
+                    return END_LOCAL;
+
+                    case DBG_END_SEQUENCE:
+                        done = true;
+                    return END;
+
+                    case DBG_ADVANCE_PC:
+                        address += readUnsignedLeb128();
+                    break;
 
-                    try {
-                        prevle = lastEntryForReg[reg];
+                    case DBG_ADVANCE_LINE:
+                        line += readSignedLeb128();
+                    break;
 
-                        if (!prevle.isStart) {
-                            throw new RuntimeException("nonsensical "
-                                    + "END_LOCAL on dead register v" + reg);
+                    case DBG_SET_PROLOGUE_END:
+                        //TODO do something with this.
+                    break;
+
+                    case DBG_SET_EPILOGUE_BEGIN:
+                        //TODO do something with this.
+                    break;
+
+                    case DBG_SET_FILE:
+                        // skip the source file name index
+                        readStringIndex();
+                    break;
+
+                    default:
+                        if (opcode < DBG_FIRST_SPECIAL) {
+                            throw new RuntimeException(
+                                    "Invalid extended opcode encountered "
+                                            + opcode);
                         }
 
-                        le = new LocalEntry(address, false, reg,
-                                prevle.nameIndex, prevle.typeIndex,
-                                prevle.signatureIndex);
-                    } catch (NullPointerException ex) {
-                        throw new RuntimeException(
-                                "Encountered END_LOCAL on new v" + reg);
-                    }
+                        int adjopcode = opcode - DBG_FIRST_SPECIAL;
 
-                    locals.add(le);
-                    lastEntryForReg[reg] = le;
+                        address += adjopcode / DBG_LINE_RANGE;
+                        line += DBG_LINE_BASE + (adjopcode % DBG_LINE_RANGE);
+                    return POSITION;
                 }
-                break;
+            }
+        }
 
-                case DBG_END_SEQUENCE:
-                    // all done
-                return;
+        /** @return current bytecode address */
+        public int getAddress() {
+            return address;
+        }
 
-                case DBG_ADVANCE_PC:
-                    address += Leb128.readUnsignedLeb128(bs);
-                break;
+        /** @return current line number */
+        public int getLine() {
+            return line;
+        }
 
-                case DBG_ADVANCE_LINE:
-                    line += Leb128.readSignedLeb128(bs);
-                break;
+        /** @return register of the last local event */
+        public int getRegister() {
+            return reg;
+        }
 
-                case DBG_SET_PROLOGUE_END:
-                    //TODO do something with this.
-                break;
+        /** @return name index of the last START_LOCAL, -1 means null */
+        public int getNameIndex() {
+            return nameIndex;
+        }
 
-                case DBG_SET_EPILOGUE_BEGIN:
-                    //TODO do something with this.
-                break;
+        /** @return type index of the last START_LOCAL, -1 means null */
+        public int getTypeIndex() {
+            return typeIndex;
+        }
 
-                case DBG_SET_FILE:
-                    //TODO do something with this.
-                break;
+        /** @return signature index of the last START_LOCAL */
+        public int getSignatureIndex() {
+            return signatureIndex;
+        }
 
-                default:
-                    if (opcode < DBG_FIRST_SPECIAL) {
-                        throw new RuntimeException(
-                                "Invalid extended opcode encountered "
-                                        + opcode);
-                    }
+        /**
+         * @return absolute offset of the next unread byte; just past the
+         * item once {@code next()} has returned {@code END}
+         */
+        public int getOffset() {
+            return pos;
+        }
 
-                    int adjopcode = opcode - DBG_FIRST_SPECIAL;
+        /**
+         * Reads a string index. String indicies are offset by 1, and a 0
+         * value in the stream (-1 as returned by this method) means "null"
+         *
+         * @return index into file's string ids table, -1 means null
+         */
+        private int readStringIndex() {
+            return readUnsignedLeb128() - 1;
+        }
 
-                    address += adjopcode / DBG_LINE_RANGE;
-                    line += DBG_LINE_BASE + (adjopcode % DBG_LINE_RANGE);
+        private int readUnsignedLeb128() {
+            int result = 0;
+            int cur;
+            int count = 0;
 
-                    positions.add(new PositionEntry(address, line));
-                break;
+            do {
+                cur = buf.get(pos++) & 0xff;
+                result |= (cur & 0x7f) << (count * 7);
+                count++;
+            } while (((cur & 0x80) == 0x80) && count < 5);
 
+            if ((cur & 0x80) == 0x80) {
+                throw new RuntimeException("invalid LEB128 sequence");
             }
+
+            return result;
+        }
+
+        private int readSignedLeb128() {
+            int result = 0;
+            int cur;
+            int count = 0;
+            int signBits = -1;
+
+            do {
+                cur = buf.get(pos++) & 0xff;
+                result |= (cur & 0x7f) << (count * 7);
+                signBits <<= 7;
+                count++;
+            } while (((cur & 0x80) == 0x80) && count < 5);
+
+            if ((cur & 0x80) == 0x80) {
+                throw new RuntimeException("invalid LEB128 sequence");
+            }
+
+            // Sign extend if appropriate
+            if (((signBits >> 1) & result) != 0) {
+                result |= signBits;
+            }
+
+            return result;
         }
     }
 